@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Numbers of insert, update and delete statements executed by Hibernate individually and in JDBC batches during a
+ * single test (see {@link HibernateSpringTxTestRule#jdbcBatchSize()}), with assertions which fail if statements which
+ * should be batched are not, for example:
+ * <pre>
+ * dao.saveAll(orders);
+ * txContext.flush();
+ * txContext.getBatchStatistics().assertAllStatementsBatched();
+ * </pre>
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public final class BatchStatistics {
+
+    private final List<String> individualStatements;
+    private final List<Integer> batchSizes;
+
+    BatchStatistics(List<String> individualStatements, List<Integer> batchSizes) {
+        this.individualStatements = Collections.unmodifiableList(new ArrayList<String>(individualStatements));
+        this.batchSizes = Collections.unmodifiableList(new ArrayList<Integer>(batchSizes));
+    }
+
+    /**
+     * Returns sql of insert, update and delete statements executed individually (not in batches).
+     */
+    public List<String> getIndividualStatements() {
+        return individualStatements;
+    }
+
+    /**
+     * Returns sizes of executed batches, in execution order.
+     */
+    public List<Integer> getBatchSizes() {
+        return batchSizes;
+    }
+
+    public int getBatchCount() {
+        return batchSizes.size();
+    }
+
+    /**
+     * Returns the number of statements executed in batches.
+     */
+    public int getBatchedStatementCount() {
+        int count = 0;
+        for (Integer size : batchSizes) {
+            count += size;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the size of the largest executed batch (zero if there was no batch).
+     */
+    public int getLargestBatchSize() {
+        return batchSizes.isEmpty() ? 0 : Collections.max(batchSizes);
+    }
+
+    /**
+     * Asserts that no insert, update or delete statement was executed individually (which happens for example when
+     * an identity generator is used or batching is not configured).
+     */
+    public BatchStatistics assertAllStatementsBatched() {
+        if (!individualStatements.isEmpty()) {
+            throw new AssertionError("expected all statements to be batched but " + individualStatements.size()
+                    + " were executed individually: " + individualStatements + "\n" + this);
+        }
+        return this;
+    }
+
+    /**
+     * Asserts that at least one batch had at least the given number of statements.
+     */
+    public BatchStatistics assertLargestBatchAtLeast(int size) {
+        if (getLargestBatchSize() < size) {
+            throw new AssertionError("expected a batch of at least " + size + " statements\n" + this);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "individual statements: " + individualStatements.size() + ", batches: " + batchSizes.size()
+                + " (sizes: " + batchSizes + ")";
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import java.io.File;
+
+/**
+ * Local directory in which ormtest keeps data between test runs. The directory is <code>target/ormtest-cache</code>
+ * by default and can be changed through the <code>ormtest.cacheDir</code> system property.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class CacheDirectory {
+
+    static final String PROPERTY = "ormtest.cacheDir";
+    private static final String DEFAULT = "target/ormtest-cache";
+
+    private CacheDirectory() {
+    }
+
+    /**
+     * Returns the cache directory (which may not exist yet).
+     */
+    static File get() {
+        return new File(System.getProperty(PROPERTY, DEFAULT));
+    }
+
+    /**
+     * Returns a file in the cache directory creating the directory if needed.
+     */
+    static File file(String name) {
+        return new File(mkdirs(get()), name);
+    }
+
+    /**
+     * Returns a subdirectory of the cache directory creating it if needed.
+     */
+    static File directory(String name) {
+        return mkdirs(new File(get(), name));
+    }
+
+    private static File mkdirs(File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException("can't create cache directory " + dir.getAbsolutePath());
+        }
+        return dir;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+/**
+ * Numbers of hits, misses and puts of a second-level (or query) cache region counted for a single thread since the
+ * beginning of its current test (see {@link HibernateSpringTxTestRule#useSecondLevelCache()}).
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public final class CacheRegionStatistics {
+
+    private final String regionName;
+    private final long hitCount;
+    private final long missCount;
+    private final long putCount;
+
+    CacheRegionStatistics(String regionName, long hitCount, long missCount, long putCount) {
+        this.regionName = regionName;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.putCount = putCount;
+    }
+
+    public String getRegionName() {
+        return regionName;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getPutCount() {
+        return putCount;
+    }
+
+    @Override
+    public String toString() {
+        return regionName + ": hits: " + hitCount + ", misses: " + missCount + ", puts: " + putCount;
+    }
+}
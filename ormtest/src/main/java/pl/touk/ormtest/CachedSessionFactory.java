@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.orm.hibernate3.HibernateTemplate;
+import org.springframework.orm.hibernate3.LocalSessionFactoryBean;
+
+import javax.sql.DataSource;
+
+/**
+ * A session factory built by {@link HibernateSpringTxTestRule} together with its template and, if known, the factory
+ * bean which built it and the script creating its schema.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class CachedSessionFactory {
+
+    private static final Log log = LogFactory.getLog(CachedSessionFactory.class);
+
+    private final SessionFactory sessionFactory;
+    private final HibernateTemplate hibernateTemplate;
+    private final LocalSessionFactoryBean sessionFactoryBean;
+    private final SchemaScript schemaScript;
+
+    // Set by the rule right after building the factory:
+    private volatile String url;
+    private volatile long retainedHeap = -1;
+
+    // Guarded by the lock of SessionFactoryLifecycle:
+    private boolean inUse;
+    private long lastUsed;
+    private boolean closeRequested;
+
+    /**
+     * @param sessionFactory     session factory
+     * @param sessionFactoryBean bean which built the session factory or <code>null</code> if unknown
+     */
+    CachedSessionFactory(SessionFactory sessionFactory, LocalSessionFactoryBean sessionFactoryBean) {
+        this(sessionFactory, sessionFactoryBean, null);
+    }
+
+    /**
+     * @param sessionFactory     session factory
+     * @param sessionFactoryBean bean which built the session factory or <code>null</code> if unknown
+     * @param schemaScript       script creating the schema of the session factory (instead of Hibernate's
+     *                           <code>hbm2ddl</code>) or <code>null</code>; requires the bean
+     */
+    CachedSessionFactory(SessionFactory sessionFactory, LocalSessionFactoryBean sessionFactoryBean,
+                         SchemaScript schemaScript) {
+        this.sessionFactory = sessionFactory;
+        this.hibernateTemplate = new HibernateTemplate(sessionFactory);
+        this.sessionFactoryBean = sessionFactoryBean;
+        this.schemaScript = schemaScript;
+    }
+
+    SessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    HibernateTemplate getHibernateTemplate() {
+        return hibernateTemplate;
+    }
+
+    LocalSessionFactoryBean getSessionFactoryBean() {
+        return sessionFactoryBean;
+    }
+
+    /**
+     * Returns <code>true</code> if the schema of the session factory was created by a schema script or when the
+     * factory was built (<code>hibernate.hbm2ddl.auto</code> is <code>create</code> or <code>create-drop</code>) and
+     * the factory bean is known, so that the schema can be created again.
+     */
+    boolean createsSchema() {
+        if (sessionFactoryBean == null) {
+            return false;
+        }
+        if (schemaScript != null) {
+            return true;
+        }
+        String hbm2ddl = sessionFactoryBean.getConfiguration().getProperty(Environment.HBM2DDL_AUTO);
+        return "create".equals(hbm2ddl) || "create-drop".equals(hbm2ddl);
+    }
+
+    /**
+     * Drops and creates the schema of the session factory, as Hibernate does when the factory is built.
+     */
+    void recreateSchema() {
+        if (schemaScript != null) {
+            schemaScript.apply(sessionFactoryBean.getDataSource());
+        } else {
+            sessionFactoryBean.dropDatabaseSchema();
+            sessionFactoryBean.createDatabaseSchema();
+        }
+    }
+
+    /**
+     * Returns the url of the database of this session factory or <code>null</code> if unknown (or if the factory
+     * is shared by threads with different databases).
+     */
+    String getUrl() {
+        return url;
+    }
+
+    void setUrl(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Returns the approximate number of bytes of heap retained by this factory or <code>-1</code> if it has not
+     * been measured (see {@link SessionFactoryLifecycle#setMeasureHeap(boolean)}).
+     */
+    long getRetainedHeap() {
+        return retainedHeap;
+    }
+
+    void setRetainedHeap(long retainedHeap) {
+        this.retainedHeap = retainedHeap;
+    }
+
+    boolean isInUse() {
+        return inUse;
+    }
+
+    void setInUse(boolean inUse) {
+        this.inUse = inUse;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+
+    /**
+     * Returns <code>true</code> if another thread has requested that the thread which built this factory closes it
+     * (instead of using it again).
+     */
+    boolean isCloseRequested() {
+        return closeRequested;
+    }
+
+    void setCloseRequested(boolean closeRequested) {
+        this.closeRequested = closeRequested;
+    }
+
+    /**
+     * Returns <code>true</code> if the database of this factory is an embedded in-memory database.
+     */
+    boolean hasInMemoryDatabase() {
+        return url != null && (url.startsWith("jdbc:hsqldb:mem:") || url.startsWith("jdbc:h2:mem:"));
+    }
+
+    /**
+     * Closes the session factory and releases the connections kept alive for it (if connections are reused).
+     */
+    void close() {
+        try {
+            sessionFactory.close();
+        } catch (RuntimeException e) {
+            log.warn("exception while closing session factory", e);
+        }
+        DataSource dataSource = sessionFactoryBean != null
+                ? ReadOnlyGuard.unguard(sessionFactoryBean.getDataSource()) : null;
+        if (dataSource instanceof ReusableConnectionDataSource) {
+            ((ReusableConnectionDataSource) dataSource).close();
+        } else if (dataSource instanceof ThreadRoutingDataSource) {
+            ((ThreadRoutingDataSource) dataSource).close();
+        }
+    }
+
+    /**
+     * Shuts down the in-memory database of this factory, freeing all its memory. Must be invoked only after all
+     * factories using the database have been closed.
+     */
+    void shutdownDatabase() {
+        if (!hasInMemoryDatabase()) {
+            return;
+        }
+        DataSource dataSource = sessionFactoryBean != null
+                ? ReadOnlyGuard.unguard(sessionFactoryBean.getDataSource()) : null;
+        if (dataSource instanceof ReusableConnectionDataSource) {
+            dataSource = ((ReusableConnectionDataSource) dataSource).getTarget();
+        }
+        if (dataSource == null) {
+            dataSource = new DriverManagerDataSource(url, "sa", "");
+        }
+        try {
+            new JdbcTemplate(dataSource).execute("SHUTDOWN");
+        } catch (RuntimeException e) {
+            log.warn("exception while shutting down database " + url, e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.collect.MapMaker;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the first class on the current call stack which is not a subclass of a given class.
+ * <p>
+ * On JVMs that expose <code>sun.misc.JavaLangAccess</code> (Java 6 to 8) the stack is inspected frame by frame
+ * and the lookup stops at the first matching frame without materializing the whole stack trace. On other JVMs
+ * the whole stack trace of a fresh <code>Throwable</code> is used. Resolutions of class names to classes are
+ * cached.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class CallerLookup {
+
+    private static final Log log = LogFactory.getLog(CallerLookup.class);
+
+    // Weak values so that the cache doesn't prevent unloading of test classes:
+    private static final ConcurrentMap<String, Class<?>> classes = new MapMaker().weakValues().makeMap();
+
+    private static final Object javaLangAccess;
+    private static final Method getStackTraceElementMethod;
+    private static final Method getStackTraceDepthMethod;
+
+    static {
+        Object access = null;
+        Method getElement = null;
+        Method getDepth = null;
+        try {
+            Class<?> sharedSecrets = Class.forName("sun.misc.SharedSecrets");
+            access = sharedSecrets.getMethod("getJavaLangAccess").invoke(null);
+            Class<?> accessClass = Class.forName("sun.misc.JavaLangAccess");
+            getElement = accessClass.getMethod("getStackTraceElement", Throwable.class, int.class);
+            getDepth = accessClass.getMethod("getStackTraceDepth", Throwable.class);
+        } catch (Throwable e) {
+            log.debug("lazy stack trace access not available - using full stack traces (" + e + ")");
+            access = null;
+            getElement = null;
+            getDepth = null;
+        }
+        javaLangAccess = access;
+        getStackTraceElementMethod = getElement;
+        getStackTraceDepthMethod = getDepth;
+    }
+
+    private CallerLookup() {
+    }
+
+    /**
+     * Returns the class of the first frame (skipping this method's frame) which is not assignable to
+     * <code>excluded</code>.
+     *
+     * @param excluded classes assignable to this one are skipped
+     * @return the first class on the stack not assignable to <code>excluded</code>
+     */
+    static Class<?> findFirstCallerNotAssignableTo(Class<?> excluded) {
+        Throwable throwable = new Throwable();
+        if (javaLangAccess != null) {
+            try {
+                int depth = (Integer) getStackTraceDepthMethod.invoke(javaLangAccess, throwable);
+                for (int i = 1; i < depth; i++) {
+                    StackTraceElement el = (StackTraceElement) getStackTraceElementMethod.invoke(javaLangAccess, throwable, i);
+                    Class<?> classOfElement = resolve(el.getClassName());
+                    if (!excluded.isAssignableFrom(classOfElement)) {
+                        return classOfElement;
+                    }
+                }
+                throw new RuntimeException("first class not assignable to " + excluded.getName() + " not found");
+            } catch (IllegalAccessException e) {
+                log.debug("lazy stack trace access failed - using full stack trace", e);
+            } catch (InvocationTargetException e) {
+                log.debug("lazy stack trace access failed - using full stack trace", e);
+            }
+        }
+        StackTraceElement[] stackTrace = throwable.getStackTrace();
+        for (int i = 1; i < stackTrace.length; i++) {
+            Class<?> classOfElement = resolve(stackTrace[i].getClassName());
+            if (!excluded.isAssignableFrom(classOfElement)) {
+                return classOfElement;
+            }
+        }
+        throw new RuntimeException("first class not assignable to " + excluded.getName() + " not found");
+    }
+
+    private static Class<?> resolve(String className) {
+        Class<?> result = classes.get(className);
+        if (result == null) {
+            try {
+                result = Class.forName(className);
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+            classes.put(className, result);
+        }
+        return result;
+    }
+}
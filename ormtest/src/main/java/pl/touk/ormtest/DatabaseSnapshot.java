@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Complete state (schema and data) of an H2 database captured with H2's <code>SCRIPT</code> command and kept in
+ * memory, so that the database can be brought back to this state without executing the original fixture scripts.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class DatabaseSnapshot {
+
+    private final String[] statements;
+
+    private DatabaseSnapshot(List<String> statements) {
+        this.statements = statements.toArray(new String[statements.size()]);
+    }
+
+    /**
+     * Captures the state of the database behind the given data source (as seen by the transaction bound to the
+     * current thread, if any).
+     *
+     * @return a snapshot or <code>null</code> if the database is not an H2 database
+     */
+    static DatabaseSnapshot capture(DataSource dataSource) {
+        if (!isH2(dataSource)) {
+            return null;
+        }
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        List<String> statements = new ArrayList<String>();
+        for (Object row : jdbcTemplate.queryForList("SCRIPT NOPASSWORDS", String.class)) {
+            String statement = (String) row;
+            // Skip comments (for example row counts):
+            if (!statement.startsWith("--")) {
+                statements.add(statement);
+            }
+        }
+        return new DatabaseSnapshot(statements);
+    }
+
+    /**
+     * Drops everything from the database behind the given data source and recreates the captured state.
+     */
+    void restore(DataSource dataSource) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("DROP ALL OBJECTS");
+        jdbcTemplate.batchUpdate(statements);
+    }
+
+    List<String> getStatements() {
+        List<String> list = new ArrayList<String>(statements.length);
+        Collections.addAll(list, statements);
+        return list;
+    }
+
+    static boolean isH2(DataSource dataSource) {
+        return (Boolean) new JdbcTemplate(dataSource).execute(new ConnectionCallback() {
+            public Object doInConnection(Connection con) throws SQLException {
+                return "H2".equals(con.getMetaData().getDatabaseProductName());
+            }
+        });
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Reads entity indexes written by {@link EntityIndexProcessor} (<code>META-INF/ormtest/entities</code> files of all
+ * classpath entries).
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class EntityIndex {
+
+    private static final Log log = LogFactory.getLog(EntityIndex.class);
+
+    private EntityIndex() {
+    }
+
+    /**
+     * Returns indexed classes from the given package (or its subpackages).
+     *
+     * @param packagePrefix package name followed by a dot or an empty string (meaning all packages)
+     * @param classLoader   class loader used to find indexes and load classes
+     * @return indexed classes or <code>null</code> if there is no index on the classpath (in which case the classpath
+     *         has to be scanned)
+     */
+    static Class[] find(String packagePrefix, ClassLoader classLoader) {
+        Set<String> names = readIndexes(classLoader);
+        if (names == null) {
+            return null;
+        }
+        List<Class> classes = new ArrayList<Class>();
+        for (String name : names) {
+            if (name.startsWith(packagePrefix)) {
+                try {
+                    classes.add(Class.forName(name, false, classLoader));
+                } catch (ClassNotFoundException e) {
+                    // Index not rebuilt after removing a class:
+                    log.warn("indexed entity " + name + " not found - skipping it");
+                }
+            }
+        }
+        return classes.toArray(new Class[classes.size()]);
+    }
+
+    private static Set<String> readIndexes(ClassLoader classLoader) {
+        Enumeration<URL> indexes;
+        try {
+            indexes = classLoader.getResources(EntityIndexProcessor.INDEX);
+        } catch (IOException e) {
+            throw new RuntimeException("can't find " + EntityIndexProcessor.INDEX + " files", e);
+        }
+        if (!indexes.hasMoreElements()) {
+            return null;
+        }
+        Set<String> names = new TreeSet<String>();
+        while (indexes.hasMoreElements()) {
+            URL index = indexes.nextElement();
+            InputStream in = null;
+            try {
+                in = index.openStream();
+                for (Object line : IOUtils.readLines(in, "UTF-8")) {
+                    String name = ((String) line).trim();
+                    if (name.length() > 0) {
+                        names.add(name);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("can't read entity index " + index, e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        return names;
+    }
+}
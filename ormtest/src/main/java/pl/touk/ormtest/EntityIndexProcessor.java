@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Annotation processor which writes names of all classes annotated with <code>&#64;Entity</code>,
+ * <code>&#64;Embeddable</code> or <code>&#64;MappedSuperclass</code> to the <code>META-INF/ormtest/entities</code>
+ * file of the compiled module, so that {@link HibernateSpringTxTestRule} can find entity classes without scanning
+ * the classpath (see {@link HibernateSpringTxTestRule#useEntityIndex()}).
+ * <p>
+ * The processor is registered in <code>META-INF/services</code> of the OrmTest jar, so it runs automatically when
+ * code is compiled with OrmTest on the classpath (usually test code). Entities of main code are indexed if OrmTest
+ * is also on the processor path when main code is compiled (for example through the <code>annotationProcessorPaths</code>
+ * of the maven compiler plugin).
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+@SupportedAnnotationTypes({"javax.persistence.Entity", "javax.persistence.Embeddable", "javax.persistence.MappedSuperclass"})
+public class EntityIndexProcessor extends AbstractProcessor {
+
+    static final String INDEX = "META-INF/ormtest/entities";
+
+    private final Set<String> entities = new TreeSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind().isClass()) {
+                    entities.add(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString());
+                }
+            }
+        }
+        if (roundEnv.processingOver() && !entities.isEmpty()) {
+            writeIndex();
+        }
+        // Other processors may be interested in the same annotations:
+        return false;
+    }
+
+    private void writeIndex() {
+        // In incremental builds only some classes are compiled so entities indexed before are kept (if they still
+        // exist):
+        Set<String> index = new TreeSet<String>(readExistingIndex());
+        index.addAll(entities);
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            Writer writer = new OutputStreamWriter(file.openOutputStream(), "UTF-8");
+            try {
+                for (String entity : index) {
+                    writer.write(entity);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "can't write " + INDEX + ": " + e);
+        }
+    }
+
+    private Set<String> readExistingIndex() {
+        Set<String> existing = new TreeSet<String>();
+        try {
+            FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(file.openInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0 && processingEnv.getElementUtils().getTypeElement(line.replace('$', '.')) != null) {
+                        existing.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // There is no index yet
+        } catch (IllegalArgumentException e) {
+            // There is no index yet
+        }
+        return existing;
+    }
+}
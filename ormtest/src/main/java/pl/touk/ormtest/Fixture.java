@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.commons.io.IOUtils;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+import org.springframework.test.jdbc.SimpleJdbcTestUtils;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A fixture, i.e. a list of sql scripts, identified by a fingerprint of the scripts' contents.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class Fixture {
+
+    // Classpath resources don't change during a test run so their fingerprints are computed only once:
+    private static final ConcurrentMap<String, String> fingerprintsOfResources = new ConcurrentHashMap<String, String>();
+
+    private final Resource[] scripts;
+    private final String fingerprint;
+
+    Fixture(Resource... scripts) {
+        Preconditions.checkNotNull(scripts, "scripts must not be null");
+        Preconditions.checkArgument(scripts.length > 0, "scripts must not be empty");
+        this.scripts = scripts.clone();
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (int i = 0; i < scripts.length; i++) {
+            Preconditions.checkNotNull(scripts[i], "scripts[%s] is null", i);
+            hasher.putUnencodedChars(fingerprintOf(scripts[i]));
+        }
+        this.fingerprint = hasher.hash().toString();
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Executes the scripts of this fixture using the given data source (in the transaction bound to the current
+     * thread, if any).
+     */
+    void execute(DataSource dataSource) {
+        SimpleJdbcTemplate template = new SimpleJdbcTemplate(dataSource);
+        for (Resource script : scripts) {
+            SimpleJdbcTestUtils.executeSqlScript(template, script, false);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof Fixture && fingerprint.equals(((Fixture) o).fingerprint));
+    }
+
+    @Override
+    public int hashCode() {
+        return fingerprint.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(scripts) + "#" + fingerprint;
+    }
+
+    private static String fingerprintOf(Resource script) {
+        if (!(script instanceof ClassPathResource)) {
+            return hashContents(script);
+        }
+        String key = script.getDescription();
+        String fingerprint = fingerprintsOfResources.get(key);
+        if (fingerprint == null) {
+            fingerprint = hashContents(script);
+            fingerprintsOfResources.put(key, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    private static String hashContents(Resource script) {
+        InputStream in = null;
+        try {
+            in = script.getInputStream();
+            return Hashing.sha1().hashBytes(IOUtils.toByteArray(in)).toString();
+        } catch (IOException e) {
+            throw new RuntimeException("can't read fixture script " + script.getDescription(), e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
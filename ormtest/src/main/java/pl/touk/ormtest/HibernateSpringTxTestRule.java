@@ -4,23 +4,64 @@
 */
 package pl.touk.ormtest;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.FlushMode;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.cfg.Environment;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.event.def.DefaultInitializeCollectionEventListener;
+import org.hibernate.event.def.DefaultLoadEventListener;
+import org.hibernate.event.def.DefaultMergeEventListener;
+import org.hibernate.event.def.DefaultPersistEventListener;
+import org.hibernate.event.def.DefaultPostLoadEventListener;
+import org.hibernate.event.def.DefaultSaveEventListener;
+import org.hibernate.event.def.DefaultSaveOrUpdateEventListener;
+import org.hibernate.event.def.DefaultUpdateEventListener;
+import org.hibernate.jdbc.Work;
+import org.hibernate.stat.Statistics;
 import org.junit.rules.TestRule;
 import org.junit.runner.Description;
 import org.junit.runners.model.Statement;
+import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.orm.hibernate3.HibernateTemplate;
+import org.springframework.orm.hibernate3.LocalSessionFactoryBean;
 import org.springframework.orm.hibernate3.SessionFactoryUtils;
 import org.springframework.orm.hibernate3.SessionHolder;
 import org.springframework.orm.hibernate3.annotation.AnnotationSessionFactoryBean;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.sql.DataSource;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Class for JUnit testing of Spring-based Hibernate DAOs. Such DAOs extend Spring's {@link HibernateDaoSupport}
@@ -55,15 +96,98 @@ import java.util.Properties;
  * in-memory database.
  * <p>
  * By default <code>HibernateSpringTxTestRule</code> scans for entity classes so every
- * class marked with <code>&#64;Entity</code> will be available during tests.
+ * class marked with <code>&#64;Entity</code> will be available during tests. Scanning can be replaced with an index
+ * of entity classes built at compile time (see {@link #useEntityIndex()}).
+ * <p>
+ * Every thread keeps the session factories it has built (see {@link #setSessionFactoryCacheSize(int)}), so test
+ * classes with equally configured rules don't pay for building a session factory again. Factories which are no
+ * longer needed are closed and their in-memory databases shut down by {@link SessionFactoryLifecycle}.
+ * <p>
+ * Tests annotated with {@link ReadOnlyTransaction} run in read-only transactions, with <code>FlushMode.MANUAL</code>
+ * sessions and read-only entities, and fail if they write.
  *
  * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
  */
 public class HibernateSpringTxTestRule implements TestRule {
+    private static final Log log = LogFactory.getLog(HibernateSpringTxTestRule.class);
+
     private final static ThreadLocal<SessionFactory> FACTORY = new ThreadLocal<SessionFactory>();
     private final static ThreadLocal<HibernateTemplate> HIBERNATE_TEMPLATE = new ThreadLocal<HibernateTemplate>();
     private final static ThreadLocal<Session> SESSION = new ThreadLocal<Session>();
     private final static ThreadLocal<Class<?>> LAST_TEST_CLASS = new ThreadLocal<Class<?>>();
+    private final static ThreadLocal<HibernateTestStatistics> LAST_TEST_STATISTICS =
+            new ThreadLocal<HibernateTestStatistics>();
+    // Entity graphs built for bulkInsert(String, Callable) by the current thread for its current test class:
+    private final static ThreadLocal<Map<String, Collection<?>>> ENTITY_FIXTURES =
+            new ThreadLocal<Map<String, Collection<?>>>() {
+                @Override
+                protected Map<String, Collection<?>> initialValue() {
+                    return new HashMap<String, Collection<?>>();
+                }
+            };
+    private final static ThreadLocal<Map<String, Savepoint>> SAVEPOINTS = new ThreadLocal<Map<String, Savepoint>>() {
+        @Override
+        protected Map<String, Savepoint> initialValue() {
+            return new LinkedHashMap<String, Savepoint>();
+        }
+    };
+    // Name of the database of a session factory being built in background by the warm pool:
+    private final static ThreadLocal<String> POOLED_DATABASE_NAME = new ThreadLocal<String>();
+    // Isolation level to be restored after a read-only transaction with a custom one:
+    private final static ThreadLocal<Integer> PREVIOUS_ISOLATION_LEVEL = new ThreadLocal<Integer>();
+    // Bean which built the last session factory in the default implementation of sessionFactory():
+    private final static ThreadLocal<LocalSessionFactoryBean> LAST_SESSION_FACTORY_BEAN =
+            new ThreadLocal<LocalSessionFactoryBean>();
+
+    static final String SESSION_FACTORY_CACHE_SIZE_PROPERTY = "ormtest.sessionFactoryCacheSize";
+    private static final int SESSION_FACTORY_CACHE_SIZE_DEFAULT = 4;
+    private static volatile int sessionFactoryCacheSize =
+            Integer.getInteger(SESSION_FACTORY_CACHE_SIZE_PROPERTY, SESSION_FACTORY_CACHE_SIZE_DEFAULT);
+
+    static final String SHARE_SESSION_FACTORY_PROPERTY = "ormtest.shareSessionFactory";
+    static final String ENTITY_INDEX_PROPERTY = "ormtest.useEntityIndex";
+    static final String MAPPING_CACHE_PROPERTY = "ormtest.cacheMappings";
+    static final String SCHEMA_SCRIPTS_PROPERTY = "ormtest.cacheSchemaScripts";
+    static final String SCHEMA_VALIDATION_PROPERTY = "ormtest.cacheSchemaValidation";
+    static final String STATISTICS_PROPERTY = "ormtest.generateStatistics";
+    static final String LAZY_FETCH_THRESHOLD_PROPERTY = "ormtest.lazyFetchThreshold";
+    static final String FAIL_ON_LAZY_FETCH_THRESHOLD_PROPERTY = "ormtest.failOnLazyFetchThreshold";
+    static final String SECOND_LEVEL_CACHE_PROPERTY = "ormtest.secondLevelCache";
+    static final String JDBC_BATCH_SIZE_PROPERTY = "ormtest.jdbcBatchSize";
+    static final String PERSISTENCE_CONTEXT_LIMIT_PROPERTY = "ormtest.persistenceContextLimit";
+    // Set while a shared session factory is being built:
+    private final static ThreadLocal<Boolean> BUILDING_SHARED_SESSION_FACTORY = new ThreadLocal<Boolean>();
+    // Rule running a test in the current thread (data sources of shared session factories are obtained from it):
+    private final static ThreadLocal<HibernateSpringTxTestRule> CURRENT_RULE =
+            new ThreadLocal<HibernateSpringTxTestRule>();
+
+    // Rule classes overriding sessionFactory() or annotationSessionFactoryBean():
+    private final static ConcurrentMap<Class<?>, Boolean> customFactoryCreation =
+            new ConcurrentHashMap<Class<?>, Boolean>();
+    // Rule classes overriding dataSource():
+    private final static ConcurrentMap<Class<?>, Boolean> customDataSource = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    // Definition of transactions of the current test (null for the default read-write transactions):
+    private TransactionDefinition transactionDefinition;
+
+    /**
+     * Sets the maximum number of session factories kept by every thread. A thread moving to a test class whose
+     * rule is configured like the rule of a class it has already run reuses the session factory built for that
+     * class (dropping and creating its schema again if <code>hibernate.hbm2ddl.auto</code> is <code>create</code>
+     * or <code>create-drop</code>) instead of building a new one. When the limit is reached the least recently used
+     * factories are closed. The default limit is 4 and can also be changed through the
+     * <code>ormtest.sessionFactoryCacheSize</code> system property.
+     *
+     * @param size maximum number of session factories per thread (must be positive)
+     */
+    public static void setSessionFactoryCacheSize(int size) {
+        Preconditions.checkArgument(size > 0, "size must be positive but is %s", size);
+        sessionFactoryCacheSize = size;
+    }
+
+    public static int getSessionFactoryCacheSize() {
+        return sessionFactoryCacheSize;
+    }
 
     /**
      * Returns a data source. The returned data source is used in the default
@@ -71,7 +195,13 @@ public class HibernateSpringTxTestRule implements TestRule {
      * <p>
      * The default implementation of this method returns a data
      * source for an in-memory HSQL database (with sid being <code>"test"</code> followed by the current thread's
-     * hash code, with user name <code>sa</code> and no password).
+     * hash code, with user name <code>sa</code> and no password). Session factories built in background by the
+     * {@link WarmPool} get databases with unique sids instead (see {@link #databaseName()}).
+     * <p>
+     * Session factories of rules overriding this method (or the methods creating the factory) are not built in
+     * background unless {@link #useWarmPool()} is overridden too, because a pooled factory is isolated only if its
+     * data source is named after {@link #databaseName()} (and not, for example, after the current thread, which is a
+     * background builder).
      *
      * @return data source to be used during tests
      */
@@ -80,13 +210,244 @@ public class HibernateSpringTxTestRule implements TestRule {
 
         ds.setDriverClassName("org.hsqldb.jdbcDriver");
         // If tests are run in parallel, then each thread should have its own database:
-        ds.setUrl("jdbc:hsqldb:mem:test" + Thread.currentThread().hashCode());
+        ds.setUrl("jdbc:hsqldb:mem:" + databaseName());
         ds.setUsername("sa");
         ds.setPassword("");
 
         return ds;
     }
 
+    /**
+     * Returns <code>true</code> if a single physical connection to the data source returned by
+     * {@link #dataSource()} should be kept alive for every thread and reused by all sessions (see
+     * {@link ReusableConnectionDataSource}). Otherwise every session opens and closes its own physical connection.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.reuseConnections</code> system property
+     * (<code>false</code> if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return <code>true</code> if connections should be reused
+     */
+    protected boolean reuseConnections() {
+        return Boolean.getBoolean(SpringTxTestRule.REUSE_CONNECTIONS_PROPERTY);
+    }
+
+    /**
+     * Returns <code>true</code> if a single session factory should be built and shared by all threads instead of
+     * building a session factory for every thread. Sessions of every thread still work on the thread's own database
+     * (the shared factory's data source routes every thread to the data source returned by {@link #dataSource()}
+     * of the rule running a test in that thread) and the schema is created in every thread's database, but mapping
+     * metadata, query plans and the cost of building the factory are paid once per JVM (for every distinct
+     * configuration). Factories are shared only by rules whose databases are of the same kind (have the same JDBC
+     * subprotocol, or if the url of the data source is unknown, only by rules of the same class). Shared factories
+     * are closed by {@link SessionFactoryLifecycle#closeAll()}.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.shareSessionFactory</code> system property
+     * (<code>false</code> if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return <code>true</code> if the session factory should be shared by all threads
+     */
+    protected boolean shareSessionFactory() {
+        return Boolean.getBoolean(SHARE_SESSION_FACTORY_PROPERTY);
+    }
+
+    /**
+     * Returns <code>true</code> if entity classes should be taken from indexes written at compile time by
+     * {@link EntityIndexProcessor} instead of scanning the classpath (which takes long on large classpaths). If there
+     * is no index on the classpath the classpath is scanned anyway. Used only when {@link #annotatedClasses()} returns
+     * <code>null</code>.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.useEntityIndex</code> system property
+     * (<code>false</code> if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return <code>true</code> if entity indexes should be used
+     */
+    protected boolean useEntityIndex() {
+        return Boolean.getBoolean(ENTITY_INDEX_PROPERTY);
+    }
+
+    /**
+     * Returns <code>true</code> if bound mapping metadata should be cached on disk (in <code>target/ormtest-cache</code>
+     * by default, see the <code>ormtest.cacheDir</code> system property), so that the next JVM building a session
+     * factory for the same entity classes and {@link #hibernateProperties() Hibernate properties} doesn't bind
+     * annotations again. Cached metadata is keyed by a hash of the bytecode of entity classes, so it is not used
+     * after entities change. Metadata is cached only when entity classes are known without scanning the classpath,
+     * i.e. when {@link #annotatedClasses()} returns classes or an entity index is used (see
+     * {@link #useEntityIndex()}). Used only by the default implementation of {@link #annotationSessionFactoryBean()}.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.cacheMappings</code> system property
+     * (<code>false</code> if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return <code>true</code> if mapping metadata should be cached on disk
+     */
+    protected boolean cacheMappings() {
+        return Boolean.getBoolean(MAPPING_CACHE_PROPERTY);
+    }
+
+    /**
+     * Returns <code>true</code> if, instead of letting Hibernate export the schema whenever a session factory is built
+     * (<code>hibernate.hbm2ddl.auto</code> set to <code>create</code> or <code>create-drop</code>, which is the
+     * default for in-memory databases), the drop and create DDL statements should be generated once for every mapping
+     * and executed directly on every new database. Used only if the session factory is built by the default
+     * implementation of {@link #annotationSessionFactoryBean()}. The schema is not dropped when such session factory
+     * is closed.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.cacheSchemaScripts</code> system property
+     * (<code>false</code> if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return <code>true</code> if schema scripts should be cached and used instead of <code>hbm2ddl</code>
+     */
+    protected boolean cacheSchemaScripts() {
+        return Boolean.getBoolean(SCHEMA_SCRIPTS_PROPERTY);
+    }
+
+    /**
+     * Returns <code>true</code> if, when <code>hibernate.hbm2ddl.auto</code> is <code>validate</code> (the default
+     * for databases which are not in-memory), successful validations should be remembered on disk (in
+     * <code>target/ormtest-cache</code> by default, see the <code>ormtest.cacheDir</code> system property) and skipped
+     * as long as neither entity classes nor the database schema change. Schema changes are detected with a single
+     * pass over the database's columns, which is much cheaper than Hibernate's validation reading metadata of every
+     * table. Used only if the session factory is built by the default implementation of
+     * {@link #annotationSessionFactoryBean()}.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.cacheSchemaValidation</code> system property
+     * (<code>false</code> if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return <code>true</code> if results of schema validation should be cached
+     */
+    protected boolean cacheSchemaValidation() {
+        return Boolean.getBoolean(SCHEMA_VALIDATION_PROPERTY);
+    }
+
+    /**
+     * Returns <code>true</code> if Hibernate statistics should be gathered for every test (they are reset before
+     * every test). Statistics of the current test are available through {@link #getTestStatistics()} and those of
+     * the last finished test through {@link #getLastTestStatistics()}; they are also logged (at debug level) after
+     * every test. Statistics are exact only if session factories are not shared by threads (see
+     * {@link #shareSessionFactory()}).
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.generateStatistics</code> system property
+     * (<code>false</code> if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return <code>true</code> if statistics should be gathered
+     */
+    protected boolean generateStatistics() {
+        return Boolean.getBoolean(STATISTICS_PROPERTY);
+    }
+
+    /**
+     * Returns the number of lazy fetches of a single association (collection role or proxied entity) allowed in a
+     * single test. Repeated lazy fetches of the same association, typically caused by iterating over entities and
+     * touching their lazy associations, are the well-known N+1 selects problem. If the threshold is exceeded, the
+     * fetches (with the places in the code which triggered them) are logged as a warning or, if
+     * {@link #failOnLazyFetchThreshold()} returns <code>true</code>, the test fails.
+     * <p>
+     * Zero disables recording lazy fetches (no listeners are registered then). If it is enabled, fetches of the
+     * current test are available through {@link #getLazyFetches()}. Fetches are recorded only by session factories
+     * built by the default implementation of {@link #annotationSessionFactoryBean()}.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.lazyFetchThreshold</code> system property
+     * (zero if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return maximum number of lazy fetches of an association in a test or zero
+     */
+    protected int lazyFetchThreshold() {
+        return Integer.getInteger(LAZY_FETCH_THRESHOLD_PROPERTY, 0);
+    }
+
+    /**
+     * Returns <code>true</code> if tests exceeding {@link #lazyFetchThreshold()} should fail instead of only being
+     * reported in the log.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.failOnLazyFetchThreshold</code> system
+     * property (<code>false</code> if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return <code>true</code> if tests exceeding the lazy fetch threshold should fail
+     */
+    protected boolean failOnLazyFetchThreshold() {
+        return Boolean.getBoolean(FAIL_ON_LAZY_FETCH_THRESHOLD_PROPERTY);
+    }
+
+    /**
+     * Returns <code>true</code> if the second-level cache and the query cache should be enabled (in the default
+     * implementation of {@link #hibernateProperties()}), so that caching of entities and queries can be tested.
+     * Cached entries are kept by a {@link ThreadIsolatedCacheProvider}, separately for every thread, and removed before
+     * every test. Hits, misses and puts of the current test are available through {@link #getCacheStatistics()}.
+     * Entities are cached only if their classes are marked as cacheable (for example with Hibernate's
+     * <code>&#64;Cache</code> annotation) and queries only if they are marked as cacheable.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.secondLevelCache</code> system property
+     * (<code>false</code> if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return <code>true</code> if the second-level and the query cache should be enabled
+     */
+    protected boolean useSecondLevelCache() {
+        return Boolean.getBoolean(SECOND_LEVEL_CACHE_PROPERTY);
+    }
+
+    /**
+     * Returns the JDBC batch size to be used by session factories (in the default implementation of
+     * {@link #hibernateProperties()}) or zero if statements shouldn't be batched. If it is positive, inserts and
+     * updates are also ordered (so that more of them can be batched) and statements executed individually and in
+     * batches are recorded for every test (see {@link #getBatchStatistics()}), so it can be verified that DAOs
+     * really batch their statements.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.jdbcBatchSize</code> system property
+     * (zero if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return JDBC batch size or zero
+     */
+    protected int jdbcBatchSize() {
+        return Integer.getInteger(JDBC_BATCH_SIZE_PROPERTY, 0);
+    }
+
+    /**
+     * Returns the number of entities managed by the session of a test at which the session is automatically flushed
+     * and cleared, or zero if the size of the session shouldn't be limited. Tests saving or loading many entities
+     * without clearing the session make every flush slower, as all managed entities are checked for changes.
+     * <p>
+     * The session is flushed and cleared after the save, update, persist or merge which made it reach the limit and
+     * before a query if loaded entities made it reach the limit. Entities managed by the session before it was cleared
+     * become detached: changes made to them afterwards are not written to the database and their lazy associations
+     * can't be initialized. Sessions with <code>FlushMode.MANUAL</code> are never flushed or cleared automatically.
+     * <p>
+     * If the limit is positive, the peak number of managed entities and durations of flushes of every test are
+     * logged and available through {@link #getPersistenceContextStatistics()}. The limit is enforced only by session
+     * factories built by the default implementation of {@link #annotationSessionFactoryBean()}; if it is zero, the
+     * listeners enforcing it are not registered at all.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.persistenceContextLimit</code> system
+     * property (zero if the property is not set).
+     * <p>
+     * Can be overridden in subclasses.
+     *
+     * @return maximum number of entities managed by the session of a test or zero
+     */
+    protected int persistenceContextLimit() {
+        return Integer.getInteger(PERSISTENCE_CONTEXT_LIMIT_PROPERTY, 0);
+    }
+
     /**
      * Returns Hibernate properties. Returned properties are used in the
      * default implementation of {@link #annotationSessionFactoryBean()}.
@@ -102,6 +463,12 @@ public class HibernateSpringTxTestRule implements TestRule {
      * <code>validate</code> (otherwise)
      * </dd>
      * </dl>
+     * If {@link #useSecondLevelCache()} returns <code>true</code>, <code>hibernate.cache.use_second_level_cache</code>
+     * and <code>hibernate.cache.use_query_cache</code> are <code>true</code> and
+     * <code>hibernate.cache.provider_class</code> is {@link ThreadIsolatedCacheProvider}.
+     * If {@link #jdbcBatchSize()} returns a positive number, <code>hibernate.jdbc.batch_size</code> is that number,
+     * <code>hibernate.order_inserts</code> and <code>hibernate.order_updates</code> are <code>true</code> and
+     * <code>hibernate.jdbc.factory_class</code> is {@link RecordingBatcherFactory}.
      * <p>
      * Can be overridden in subclasses.
      *
@@ -115,6 +482,18 @@ public class HibernateSpringTxTestRule implements TestRule {
                 url != null && (url.startsWith("jdbc:hsqldb:mem:") || url.startsWith("jdbc:h2:mem:"))
                         ? "create-drop" : "validate");
         properties.setProperty("hibernate.connection.autocommit", "false");
+        if (useSecondLevelCache()) {
+            properties.setProperty(Environment.USE_SECOND_LEVEL_CACHE, "true");
+            properties.setProperty(Environment.USE_QUERY_CACHE, "true");
+            properties.setProperty(Environment.CACHE_PROVIDER, ThreadIsolatedCacheProvider.class.getName());
+        }
+        int jdbcBatchSize = jdbcBatchSize();
+        if (jdbcBatchSize > 0) {
+            properties.setProperty(Environment.STATEMENT_BATCH_SIZE, String.valueOf(jdbcBatchSize));
+            properties.setProperty(Environment.ORDER_INSERTS, "true");
+            properties.setProperty(Environment.ORDER_UPDATES, "true");
+            properties.setProperty(Environment.BATCH_STRATEGY, RecordingBatcherFactory.class.getName());
+        }
         return properties;
     }
 
@@ -125,13 +504,30 @@ public class HibernateSpringTxTestRule implements TestRule {
      * The default implementation of this method
      * returns an <code>AnnotationSessionFactoryBean</code> initialized in the following manner.
      * <ol>
-     * <li>The <code>dataSource</code> property is assigned the value returned by {@link #dataSource()}.</li>
+     * <li>The <code>dataSource</code> property is assigned the value returned by {@link #dataSource()}
+     * (wrapped in a {@link ReusableConnectionDataSource} if {@link #reuseConnections()} returns
+     * <code>true</code>). If {@link #shareSessionFactory()} returns <code>true</code> it is assigned a data source
+     * which routes every thread to the data source returned by {@link #dataSource()} in that thread.</li>
      * <li>The <code>hibernateProperties</code> property is assigned the value returned by
-     * {@link #hibernateProperties()}.</li>
+     * {@link #hibernateProperties()} (without <code>hibernate.hbm2ddl.auto</code> if the schema is created by a
+     * cached script or validated with cached results, see {@link #cacheSchemaScripts()} and
+     * {@link #cacheSchemaValidation()}).</li>
      * <li>If {@link #annotatedClasses()} returns a <code>non-null</code> value than it is assigned to
      * <code>annotatedClasses</code> property.
      * Otherwise the <code>packagesToScan</code> property is assigned an one-element array containing the value
-     * returned by {@link #packageWithAnnotatedClasses()}.</li>
+     * returned by {@link #packageWithAnnotatedClasses()} (unless {@link #useEntityIndex()} returns <code>true</code>
+     * and an entity index is available, in which case indexed classes from that package are assigned to the
+     * <code>annotatedClasses</code> property).</li>
+     * <li>If {@link #cacheMappings()} returns <code>true</code> and entity classes are known without scanning, the
+     * bean starts from mapping metadata cached on disk (if there is any for the current entity classes and
+     * properties) and otherwise caches the metadata it has bound.</li>
+     * <li>If {@link #lazyFetchThreshold()} returns a positive number, listeners recording lazy fetches are added to
+     * the <code>eventListeners</code> property (before Hibernate's default listeners).</li>
+     * <li>If {@link #persistenceContextLimit()} returns a positive number, listeners guarding the size of sessions
+     * are added to the <code>eventListeners</code> property (after Hibernate's default save, update, persist, merge
+     * and post-load listeners and instead of the default flush listeners, to which they delegate).</li>
+     * <li>A listener making entities loaded in tests annotated with {@link ReadOnlyTransaction} read-only is added to
+     * the <code>eventListeners</code> property (after Hibernate's default post-load listener).</li>
      * <li>The
      * {@link AnnotationSessionFactoryBean#afterPropertiesSet afterPropertiesSet()}
      * is invoked.
@@ -142,23 +538,87 @@ public class HibernateSpringTxTestRule implements TestRule {
      * @return an <code>AnnotationSessionFactoryBean</code>
      */
     protected AnnotationSessionFactoryBean annotationSessionFactoryBean() {
-        AnnotationSessionFactoryBean sessionFactoryBean = new AnnotationSessionFactoryBean();
-        sessionFactoryBean.setDataSource(dataSource());
-        sessionFactoryBean.setHibernateProperties(hibernateProperties());
+        Properties hibernateProperties = hibernateProperties();
+        if (createsSchemaFromScript(hibernateProperties) || validatesSchemaWithCache(hibernateProperties)) {
+            // Copied as subclasses may return the same properties every time:
+            Properties withoutHbm2ddl = new Properties();
+            withoutHbm2ddl.putAll(hibernateProperties);
+            withoutHbm2ddl.remove(Environment.HBM2DDL_AUTO);
+            hibernateProperties = withoutHbm2ddl;
+        }
+        String pkg = null;
         Class[] annotatedClasses = annotatedClasses();
-        if (annotatedClasses != null) {
-            sessionFactoryBean.setAnnotatedClasses(annotatedClasses);
-        } else {
-            String pkg = packageWithAnnotatedClasses();
+        if (annotatedClasses == null) {
+            pkg = packageWithAnnotatedClasses();
             if (pkg == null) {
                 pkg = "";
             } else if (pkg.length() > 0 && !pkg.endsWith(".")) {
                 pkg += ".";
             }
+            annotatedClasses = useEntityIndex() ? EntityIndex.find(pkg, entityClassLoader()) : null;
+        }
+        if (annotatedClasses != null && cacheMappings()) {
+            MappingCachingSessionFactoryBean cachingBean = new MappingCachingSessionFactoryBean(
+                    MappingCache.file(annotatedClasses, hibernateProperties), entityClassLoader());
+            try {
+                return initialize(cachingBean, hibernateProperties, annotatedClasses, pkg);
+            } catch (RuntimeException e) {
+                if (!cachingBean.isRestored()) {
+                    throw e;
+                }
+                log.warn("can't build session factory from cached mapping - building it from scratch", e);
+                cachingBean.getCacheFile().delete();
+            }
+        }
+        return initialize(new AnnotationSessionFactoryBean(), hibernateProperties, annotatedClasses, pkg);
+    }
+
+    private AnnotationSessionFactoryBean initialize(AnnotationSessionFactoryBean sessionFactoryBean,
+                                                    Properties hibernateProperties, Class[] annotatedClasses,
+                                                    String pkg) {
+        sessionFactoryBean.setDataSource(BUILDING_SHARED_SESSION_FACTORY.get() != null
+                ? new ThreadRoutingDataSource(new Supplier<DataSource>() {
+                    public DataSource get() {
+                        // This rule only built the factory - other threads run tests of other rules:
+                        HibernateSpringTxTestRule rule = CURRENT_RULE.get();
+                        return (rule != null ? rule : HibernateSpringTxTestRule.this).threadDataSource();
+                    }
+                })
+                : threadDataSource());
+        sessionFactoryBean.setHibernateProperties(hibernateProperties);
+        Map<String, Object> eventListeners = new HashMap<String, Object>();
+        if (lazyFetchThreshold() > 0) {
+            LazyFetchRecorder lazyFetchRecorder = new LazyFetchRecorder();
+            eventListeners.put("load", Arrays.asList(lazyFetchRecorder, new DefaultLoadEventListener()));
+            eventListeners.put("load-collection",
+                    Arrays.asList(lazyFetchRecorder, new DefaultInitializeCollectionEventListener()));
+        }
+        if (persistenceContextLimit() > 0) {
+            PersistenceContextGuard persistenceContextGuard = new PersistenceContextGuard();
+            eventListeners.put("save-update",
+                    Arrays.asList(new DefaultSaveOrUpdateEventListener(), persistenceContextGuard));
+            eventListeners.put("save", Arrays.asList(new DefaultSaveEventListener(), persistenceContextGuard));
+            eventListeners.put("update", Arrays.asList(new DefaultUpdateEventListener(), persistenceContextGuard));
+            eventListeners.put("create", Arrays.asList(new DefaultPersistEventListener(), persistenceContextGuard));
+            eventListeners.put("merge", Arrays.asList(new DefaultMergeEventListener(), persistenceContextGuard));
+            eventListeners.put("post-load",
+                    Arrays.asList(new DefaultPostLoadEventListener(), persistenceContextGuard, new ReadOnlyGuard()));
+            // The guard delegates to default flush listeners:
+            eventListeners.put("flush", persistenceContextGuard);
+            eventListeners.put("auto-flush", persistenceContextGuard);
+        } else {
+            eventListeners.put("post-load", Arrays.asList(new DefaultPostLoadEventListener(), new ReadOnlyGuard()));
+        }
+        sessionFactoryBean.setEventListeners(eventListeners);
+        if (annotatedClasses != null) {
+            sessionFactoryBean.setAnnotatedClasses(annotatedClasses);
+        } else {
             sessionFactoryBean.setPackagesToScan(new String[]{pkg});
         }
         try {
             sessionFactoryBean.afterPropertiesSet();
+        } catch (RuntimeException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -166,6 +626,11 @@ public class HibernateSpringTxTestRule implements TestRule {
         return sessionFactoryBean;
     }
 
+    private ClassLoader entityClassLoader() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return classLoader != null ? classLoader : getClass().getClassLoader();
+    }
+
     /**
      * Returns an array of annotated classes to be used by Hibernate. The returned array is used by the default
      * implementation of {@link #annotationSessionFactoryBean()}.
@@ -207,17 +672,120 @@ public class HibernateSpringTxTestRule implements TestRule {
      * @return session factory that will be used to create a Hibernate session before every JUnit or TestNG test
      */
     protected SessionFactory sessionFactory() {
-        return (SessionFactory) annotationSessionFactoryBean().getObject();
+        AnnotationSessionFactoryBean sessionFactoryBean = annotationSessionFactoryBean();
+        // Kept so that the schema can be created again when the cached factory is reused:
+        LAST_SESSION_FACTORY_BEAN.set(sessionFactoryBean);
+        return (SessionFactory) sessionFactoryBean.getObject();
+    }
+
+    /**
+     * Returns a key identifying the configuration of session factories built by this rule. Session factories built
+     * in background by the {@link WarmPool} are handed only to threads of rules with equal keys.
+     * <p>
+     * The default implementation combines the name of the rule's class with everything the session factory is built
+     * from (annotated classes, Hibernate properties and other options, the kind of database) and whether connections
+     * are reused, so rules which differ in configuration get separate pools. Can be overridden in subclasses whose
+     * session factories depend on other state.
+     *
+     * @return key of this rule's configuration
+     */
+    protected String warmPoolKey() {
+        return getClass().getName() + '|' + sessionFactoryFingerprint(false) + (reuseConnections() ? "|reuse" : "");
+    }
+
+    /**
+     * Returns a key identifying the mapping of this rule's session factory. {@link ParallelSuite} runs test classes
+     * whose rules have equal keys in the same thread, so that they are more likely to reuse each other's session
+     * factory.
+     * <p>
+     * The default implementation combines {@link #annotatedClasses()} and {@link #packageWithAnnotatedClasses()}.
+     * Can be overridden in subclasses.
+     *
+     * @return key of this rule's mapping
+     */
+    protected String configurationKey() {
+        Class[] annotatedClasses = annotatedClasses();
+        return annotatedClasses != null ? Arrays.toString(annotatedClasses) : "package:" + packageWithAnnotatedClasses();
+    }
+
+    /**
+     * Returns the name of the database of the current thread: <code>"test"</code> followed by the thread's hash code
+     * or, for session factories built in background by the {@link WarmPool}, a unique name of the pooled database.
+     * Overrides of {@link #dataSource()} should include it in urls of per-thread databases.
+     *
+     * @return name of the database of the current thread
+     */
+    protected final String databaseName() {
+        String pooledDatabaseName = POOLED_DATABASE_NAME.get();
+        return pooledDatabaseName != null ? pooledDatabaseName : "test" + Thread.currentThread().hashCode();
     }
 
     /**
-     * Begins a new transaction.
+     * Can be overridden in subclasses and should return <code>true</code> if session factories of this rule can be
+     * built in background by the {@link WarmPool} (if it is enabled), i.e. if they use data sources of databases
+     * named after {@link #databaseName()}.
+     * <p>
+     * The default implementation returns <code>true</code> unless {@link #dataSource()}, {@link #sessionFactory()}
+     * or {@link #annotationSessionFactoryBean()} is overridden.
+     *
+     * @return <code>true</code> if session factories of this rule can be pooled
+     */
+    protected boolean useWarmPool() {
+        Class<?> ruleClass = getClass();
+        if (hasCustomFactoryCreation(ruleClass)) {
+            return false;
+        }
+        Boolean custom = customDataSource.get(ruleClass);
+        if (custom == null) {
+            custom = false;
+            for (Class<?> c = ruleClass; c != HibernateSpringTxTestRule.class; c = c.getSuperclass()) {
+                for (Method method : c.getDeclaredMethods()) {
+                    if (method.getParameterTypes().length == 0 && method.getName().equals("dataSource")) {
+                        custom = true;
+                    }
+                }
+            }
+            customDataSource.put(ruleClass, custom);
+        }
+        return !custom;
+    }
+
+    /**
+     * Starts building session factories configured like the one of this rule in background, if the
+     * {@link WarmPool} is enabled (and {@link #useWarmPool()} returns <code>true</code>). Invoked automatically when
+     * a thread needs its first session factory; can be invoked earlier (for example from a
+     * <code>&#64;BeforeClass</code> method of a suite) so that even the first tests of worker threads get ready
+     * session factories.
+     */
+    public void startWarmPool() {
+        if (!useWarmPool()) {
+            return;
+        }
+        WarmPool.fill(warmPoolKey(), new Callable<CachedSessionFactory>() {
+            public CachedSessionFactory call() {
+                POOLED_DATABASE_NAME.set(WarmPool.nextDatabaseName());
+                try {
+                    return buildSessionFactory();
+                } finally {
+                    POOLED_DATABASE_NAME.remove();
+                }
+            }
+        });
+    }
+
+    /**
+     * Begins a new transaction (a read-only one if the current test is annotated with {@link ReadOnlyTransaction}).
      * <p>
      * This method is idempotent - it will create only one transaction even if invoked more than once.
      */
     public void beginTransaction() {
-        if (SESSION.get() != null) {
-            SESSION.get().beginTransaction();
+        Session session = SESSION.get();
+        if (session != null) {
+            boolean active = session.getTransaction().isActive();
+            session.beginTransaction();
+            if (!active && transactionDefinition != null) {
+                prepareReadOnlyTransaction(session);
+            }
         }
     }
 
@@ -229,8 +797,10 @@ public class HibernateSpringTxTestRule implements TestRule {
      */
     public void rollback() {
         if (SESSION.get() != null && SESSION.get().getTransaction().isActive()) {
+            endReadOnlyTransaction(SESSION.get(), false);
             SESSION.get().getTransaction().rollback();
         }
+        SAVEPOINTS.get().clear();
     }
 
     /**
@@ -241,8 +811,88 @@ public class HibernateSpringTxTestRule implements TestRule {
      */
     public void commit() {
         if (SESSION.get() != null && SESSION.get().getTransaction().isActive()) {
+            endReadOnlyTransaction(SESSION.get(), true);
             SESSION.get().getTransaction().commit();
         }
+        SAVEPOINTS.get().clear();
+    }
+
+    /**
+     * Sets a savepoint in the current transaction.
+     * <p>
+     * The current Hibernate session is flushed first so that all changes made so far are part of the state the
+     * savepoint refers to. Changes made after this call can be undone with {@link #rollbackToSavepoint(String)}
+     * while changes made before it (for example an expensive fixture persisted in a <code>&#64;Before</code>
+     * method) are kept. The savepoint is forgotten when the transaction ends.
+     *
+     * @return name of the created savepoint
+     */
+    public String setSavepoint() {
+        String name = "savepoint" + (SAVEPOINTS.get().size() + 1);
+        while (SAVEPOINTS.get().containsKey(name)) {
+            name += "_";
+        }
+        setSavepoint(name);
+        return name;
+    }
+
+    /**
+     * Sets a savepoint with the given name in the current transaction. An existing savepoint with the same name
+     * is replaced.
+     *
+     * @param name name of the savepoint
+     * @see #setSavepoint()
+     */
+    public void setSavepoint(final String name) {
+        Preconditions.checkNotNull(name, "name must not be null");
+        Session session = getSessionInTransaction();
+        if (SAVEPOINTS.get().containsKey(name)) {
+            releaseSavepoint(name);
+        }
+        session.flush();
+        session.doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+                SAVEPOINTS.get().put(name, connection.setSavepoint(name));
+            }
+        });
+    }
+
+    /**
+     * Rolls back all changes made in the current transaction after the given savepoint was set.
+     * <p>
+     * Changes not yet flushed are discarded and the session is cleared, so entities loaded before this call are
+     * detached and have to be loaded again. The savepoint remains valid so it is possible to roll back to it
+     * again; savepoints set after it are forgotten.
+     *
+     * @param name name of the savepoint
+     */
+    public void rollbackToSavepoint(String name) {
+        Session session = getSessionInTransaction();
+        final Savepoint savepoint = getSavepoint(name);
+        session.clear();
+        session.doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+                connection.rollback(savepoint);
+            }
+        });
+        removeSavepoints(name, false);
+    }
+
+    /**
+     * Releases the given savepoint (and all savepoints set after it). Changes made after the savepoint was set
+     * are kept.
+     *
+     * @param name name of the savepoint
+     */
+    public void releaseSavepoint(String name) {
+        Session session = getSessionInTransaction();
+        final Savepoint savepoint = getSavepoint(name);
+        session.doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+                connection.releaseSavepoint(savepoint);
+            }
+        });
+        removeSavepoints(name, true);
     }
 
     /**
@@ -258,6 +908,85 @@ public class HibernateSpringTxTestRule implements TestRule {
         }
     }
 
+    /**
+     * Inserts the given entities in the current transaction through a <code>StatelessSession</code> (using the
+     * connection of the current session), bypassing the persistence context, dirty checking and cascades, which
+     * makes loading big fixtures much faster than saving entities one by one with {@link #getHibernateTemplate()}.
+     * Pending changes of the current session are flushed first. Entities are inserted grouped by their classes
+     * (in the order in which classes first appear in the collection, so referenced entities should precede
+     * referencing ones), so that inserts can be batched if <code>hibernate.jdbc.batch_size</code> is set.
+     * <p>
+     * Inserted entities are not managed by the current session - they should be loaded through
+     * {@link #getHibernateTemplate()} if needed.
+     *
+     * @param entities entities to insert
+     * @throws IllegalStateException if there is no transaction
+     */
+    public void bulkInsert(Collection<?> entities) {
+        Session session = SESSION.get();
+        if (session == null || !session.getTransaction().isActive()) {
+            throw new IllegalStateException("there is no transaction to insert entities in");
+        }
+        session.flush();
+        StatelessSession statelessSession = FACTORY.get().openStatelessSession(
+                ((SessionImplementor) session).getJDBCContext().connection());
+        // Fixtures can be inserted in read-only tests too:
+        boolean readOnly = ReadOnlyGuard.suspend();
+        try {
+            for (Object entity : groupByClass(entities)) {
+                statelessSession.insert(entity);
+            }
+            ((SessionImplementor) statelessSession).getBatcher().executeBatch();
+        } finally {
+            statelessSession.close();
+            ReadOnlyGuard.resume(readOnly);
+        }
+    }
+
+    /**
+     * Inserts (as {@link #bulkInsert(Collection)} does) entities built by the given builder. The builder is invoked
+     * only the first time a fixture with the given name is inserted by the current thread in the current test
+     * class - later the same entity objects are inserted again, so building big entity graphs in Java is not repeated
+     * for every test. Entities of such fixtures should not be modified by tests. Built fixtures are forgotten when
+     * the thread starts running tests of another class.
+     *
+     * @param fixtureName name identifying the fixture
+     * @param builder     builds entities of the fixture
+     * @throws IllegalStateException if there is no transaction
+     */
+    public void bulkInsert(String fixtureName, Callable<? extends Collection<?>> builder) {
+        Map<String, Collection<?>> fixtures = ENTITY_FIXTURES.get();
+        Collection<?> entities = fixtures.get(fixtureName);
+        if (entities == null) {
+            try {
+                entities = builder.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("failed to build entities of fixture " + fixtureName, e);
+            }
+            fixtures.put(fixtureName, entities);
+        }
+        bulkInsert(entities);
+    }
+
+    private static List<Object> groupByClass(Collection<?> entities) {
+        Map<Class<?>, List<Object>> entitiesByClass = new LinkedHashMap<Class<?>, List<Object>>();
+        for (Object entity : entities) {
+            List<Object> entitiesOfClass = entitiesByClass.get(entity.getClass());
+            if (entitiesOfClass == null) {
+                entitiesOfClass = new ArrayList<Object>();
+                entitiesByClass.put(entity.getClass(), entitiesOfClass);
+            }
+            entitiesOfClass.add(entity);
+        }
+        List<Object> grouped = new ArrayList<Object>(entities.size());
+        for (List<Object> entitiesOfClass : entitiesByClass.values()) {
+            grouped.addAll(entitiesOfClass);
+        }
+        return grouped;
+    }
+
     /**
      * Closes underlying Hibernate session.
      * <p>
@@ -277,14 +1006,101 @@ public class HibernateSpringTxTestRule implements TestRule {
         close();
     }
 
+    /**
+     * Returns a Hibernate template using the session and transaction of the current thread (and test). The
+     * template can be created before the session, for example in a field initializer of a test class.
+     */
     public HibernateTemplate getHibernateTemplate() {
         return new ProxyHibernateTemplate(HIBERNATE_TEMPLATE);
     }
 
+    /**
+     * Returns a Hibernate template like {@link #getHibernateTemplate()} which additionally streams query results
+     * (see {@link ProxyHibernateTemplate#scroll(String, Object[], int)}).
+     */
+    public ProxyHibernateTemplate getStreamingTemplate() {
+        return new ProxyHibernateTemplate(HIBERNATE_TEMPLATE);
+    }
+
     public SessionFactory getSessionFactory() {
         return new ProxySessionFactory(FACTORY);
     }
 
+    /**
+     * Returns Hibernate statistics gathered since the current test began.
+     *
+     * @throws IllegalStateException if statistics are not gathered (see {@link #generateStatistics()}) or there is
+     *                               no session factory
+     */
+    public HibernateTestStatistics getTestStatistics() {
+        SessionFactory sessionFactory = FACTORY.get();
+        if (sessionFactory == null || !sessionFactory.getStatistics().isStatisticsEnabled()) {
+            throw new IllegalStateException("statistics are not gathered - see generateStatistics()");
+        }
+        return HibernateTestStatistics.of(sessionFactory.getStatistics());
+    }
+
+    /**
+     * Returns hits, misses and puts of second-level and query cache regions counted since the current test began,
+     * keyed by region names (empty if the cache is not used - see {@link #useSecondLevelCache()}).
+     */
+    public Map<String, CacheRegionStatistics> getCacheStatistics() {
+        return ThreadIsolatedCacheProvider.getStatisticsOfCurrentThread();
+    }
+
+    /**
+     * Returns hits, misses and puts of the given second-level or query cache region counted since the current test
+     * began.
+     *
+     * @param regionName name of the region (for example the name of an entity class or
+     *                   <code>org.hibernate.cache.StandardQueryCache</code>)
+     * @return statistics of the region (all zero if the region hasn't been used)
+     */
+    public CacheRegionStatistics getCacheStatistics(String regionName) {
+        CacheRegionStatistics statistics = getCacheStatistics().get(regionName);
+        return statistics != null ? statistics : new CacheRegionStatistics(regionName, 0, 0, 0);
+    }
+
+    /**
+     * Returns numbers of insert, update and delete statements executed individually and in batches since the current
+     * test began. Statements are executed when the session is flushed, so {@link #flush()} should usually be invoked
+     * first.
+     *
+     * @throws IllegalStateException if statements are not recorded (see {@link #jdbcBatchSize()})
+     */
+    public BatchStatistics getBatchStatistics() {
+        SessionFactory sessionFactory = FACTORY.get();
+        if (sessionFactory == null || !(((SessionFactoryImplementor) sessionFactory).getSettings().getBatcherFactory()
+                instanceof RecordingBatcherFactory)) {
+            throw new IllegalStateException("batches are not recorded - see jdbcBatchSize()");
+        }
+        return RecordingBatcherFactory.getStatistics();
+    }
+
+    /**
+     * Returns the peak number of entities managed by the session and durations of flushes since the current test
+     * began or <code>null</code> if the size of the session is not limited (see {@link #persistenceContextLimit()}).
+     */
+    public PersistenceContextStatistics getPersistenceContextStatistics() {
+        return PersistenceContextGuard.getStatistics();
+    }
+
+    /**
+     * Returns lazy fetches recorded since the current test began (empty if lazy fetches are not recorded - see
+     * {@link #lazyFetchThreshold()}).
+     */
+    public List<LazyFetch> getLazyFetches() {
+        return LazyFetchRecorder.getFetches();
+    }
+
+    /**
+     * Returns Hibernate statistics gathered during the last test finished by the current thread or
+     * <code>null</code> if there is no such test (or statistics were not gathered).
+     */
+    public HibernateTestStatistics getLastTestStatistics() {
+        return LAST_TEST_STATISTICS.get();
+    }
+
     private String detectUrl(DataSource ds) {
         try {
             Method method = ds.getClass().getMethod("getUrl");
@@ -302,6 +1118,67 @@ public class HibernateSpringTxTestRule implements TestRule {
         }
     }
 
+    private void prepareReadOnlyTransaction(Session session) {
+        session.setFlushMode(FlushMode.MANUAL);
+        session.doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+                PREVIOUS_ISOLATION_LEVEL.set(
+                        DataSourceUtils.prepareConnectionForTransaction(connection, transactionDefinition));
+            }
+        });
+    }
+
+    /**
+     * Ends the database transaction of a read-only test and resets the read-only flag and the isolation level of its
+     * connection, before Hibernate ends its transaction and releases the connection (possibly to a pool). Drivers may
+     * refuse to change the read-only flag in the middle of a transaction, hence the transaction is ended first.
+     */
+    private void endReadOnlyTransaction(Session session, final boolean commit) {
+        if (transactionDefinition == null) {
+            return;
+        }
+        final Integer previousIsolationLevel = PREVIOUS_ISOLATION_LEVEL.get();
+        PREVIOUS_ISOLATION_LEVEL.remove();
+        session.doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+                if (commit) {
+                    connection.commit();
+                } else {
+                    connection.rollback();
+                }
+                DataSourceUtils.resetConnectionAfterTransaction(connection, previousIsolationLevel);
+            }
+        });
+    }
+
+    private Session getSessionInTransaction() {
+        if (SESSION.get() == null || !SESSION.get().getTransaction().isActive()) {
+            throw new IllegalStateException("there is no transaction to manage savepoints of");
+        }
+        return SESSION.get();
+    }
+
+    private Savepoint getSavepoint(String name) {
+        Savepoint savepoint = SAVEPOINTS.get().get(Preconditions.checkNotNull(name, "name must not be null"));
+        Preconditions.checkArgument(savepoint != null, "unknown savepoint: %s", name);
+        return savepoint;
+    }
+
+    private void removeSavepoints(String name, boolean inclusive) {
+        boolean found = false;
+        for (Iterator<String> i = SAVEPOINTS.get().keySet().iterator(); i.hasNext(); ) {
+            String current = i.next();
+            if (current.equals(name)) {
+                found = true;
+                if (inclusive) {
+                    i.remove();
+                }
+            } else if (found) {
+                i.remove();
+            }
+        }
+    }
+
     private void createSession() {
         if (SESSION.get() == null) {
             ensureSessionFactoryInitialized();
@@ -315,8 +1192,15 @@ public class HibernateSpringTxTestRule implements TestRule {
 
     private void detectAndHandleTestClassChangeForCurrentThread(Class<?> currentTest) {
         if (LAST_TEST_CLASS.get() != null && LAST_TEST_CLASS.get() != currentTest) {
+            // The factory stays in the cache of the current thread and is reused (with a fresh schema) if the new
+            // class needs an equally configured one:
             FACTORY.remove();
             HIBERNATE_TEMPLATE.remove();
+            // Entities built by the previous class would otherwise stay reachable for the whole run:
+            ENTITY_FIXTURES.remove();
+            SessionFactoryLifecycle.releaseAll();
+            // The rule of the new class may use another data source:
+            SessionFactoryLifecycle.releaseSharedDataSources();
         }
         LAST_TEST_CLASS.set(currentTest);
     }
@@ -326,13 +1210,221 @@ public class HibernateSpringTxTestRule implements TestRule {
             TransactionSynchronizationManager.unbindResource(FACTORY.get());
             SESSION.get().close();
             SESSION.remove();
+            SAVEPOINTS.get().clear();
         }
     }
 
     private void ensureSessionFactoryInitialized() {
         if (FACTORY.get() == null) {
-            FACTORY.set(sessionFactory());
-            HIBERNATE_TEMPLATE.set(new HibernateTemplate(FACTORY.get()));
+            CachedSessionFactory factory = shareSessionFactory() ? getSharedSessionFactory() : getThreadSessionFactory();
+            FACTORY.set(factory.getSessionFactory());
+            HIBERNATE_TEMPLATE.set(factory.getHibernateTemplate());
+        }
+    }
+
+    private CachedSessionFactory getSharedSessionFactory() {
+        CachedSessionFactory factory;
+        try {
+            factory = SessionFactoryLifecycle.getShared(sessionFactoryFingerprint(false), new Callable<CachedSessionFactory>() {
+                public CachedSessionFactory call() {
+                    BUILDING_SHARED_SESSION_FACTORY.set(Boolean.TRUE);
+                    try {
+                        return buildSessionFactory();
+                    } finally {
+                        BUILDING_SHARED_SESSION_FACTORY.remove();
+                    }
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException("failed to build shared session factory", e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw new RuntimeException("failed to build shared session factory", e.getCause());
+        }
+        // Hibernate created the schema only in the database of the thread which built the factory:
+        if (factory.createsSchema()) {
+            factory.recreateSchema();
+        }
+        return factory;
+    }
+
+    private CachedSessionFactory getThreadSessionFactory() {
+        String fingerprint = sessionFactoryFingerprint(true);
+        CachedSessionFactory factory = SessionFactoryLifecycle.acquire(fingerprint);
+        if (factory != null) {
+            // Start with a fresh schema as if the factory was built again (another factory of this thread
+            // could even have changed the schema in the meantime):
+            if (factory.createsSchema()) {
+                factory.recreateSchema();
+            }
+        } else {
+            SessionFactoryLifecycle.makeRoomForOneMore(sessionFactoryCacheSize);
+            if (WarmPool.isEnabled() && useWarmPool()) {
+                factory = WarmPool.take(warmPoolKey(), CachedSessionFactory.class);
+                // Replaces the taken factory (or starts filling the pool):
+                startWarmPool();
+            }
+            if (factory == null) {
+                factory = buildSessionFactory();
+            }
+            SessionFactoryLifecycle.register(fingerprint, factory);
+        }
+        return factory;
+    }
+
+    private DataSource threadDataSource() {
+        // The guard wraps only connections of read-only tests, so it must be outside the reused connection:
+        DataSource ds = reuseConnections() ? new ReusableConnectionDataSource(dataSource()) : dataSource();
+        return ReadOnlyGuard.guard(ds);
+    }
+
+    private CachedSessionFactory buildSessionFactory() {
+        long usedHeap = SessionFactoryLifecycle.usedHeap();
+        CachedSessionFactory factory = buildSessionFactoryAndSchema();
+        factory.setRetainedHeap(SessionFactoryLifecycle.retainedSince(usedHeap));
+        if (BUILDING_SHARED_SESSION_FACTORY.get() == null) {
+            factory.setUrl(detectUrl(dataSource()));
+        }
+        return factory;
+    }
+
+    private CachedSessionFactory buildSessionFactoryAndSchema() {
+        try {
+            SessionFactory sessionFactory = sessionFactory();
+            LocalSessionFactoryBean sessionFactoryBean = LAST_SESSION_FACTORY_BEAN.get();
+            if (sessionFactoryBean != null && createsSchemaFromScript(hibernateProperties())) {
+                SchemaScript schemaScript = SchemaScript.get(sessionFactoryFingerprint(false),
+                        sessionFactoryBean.getConfiguration(), ((SessionFactoryImplementor) sessionFactory).getDialect());
+                schemaScript.apply(sessionFactoryBean.getDataSource());
+                return new CachedSessionFactory(sessionFactory, sessionFactoryBean, schemaScript);
+            }
+            if (sessionFactoryBean != null && validatesSchemaWithCache(hibernateProperties())) {
+                try {
+                    SchemaValidation.validate(sessionFactoryBean.getConfiguration(),
+                            ((SessionFactoryImplementor) sessionFactory).getDialect(), sessionFactory,
+                            sessionFactoryBean.getDataSource(), detectUrl(dataSource()), hibernateProperties());
+                } catch (RuntimeException e) {
+                    sessionFactory.close();
+                    throw e;
+                }
+            }
+            return new CachedSessionFactory(sessionFactory, sessionFactoryBean);
+        } finally {
+            LAST_SESSION_FACTORY_BEAN.remove();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the schema of session factories built with the given properties is created by
+     * a cached {@link SchemaScript} instead of <code>hbm2ddl</code>.
+     */
+    private boolean createsSchemaFromScript(Properties hibernateProperties) {
+        String hbm2ddl = hibernateProperties.getProperty(Environment.HBM2DDL_AUTO);
+        return cacheSchemaScripts() && !hasCustomFactoryCreation(getClass())
+                && ("create".equals(hbm2ddl) || "create-drop".equals(hbm2ddl));
+    }
+
+    /**
+     * Returns <code>true</code> if the schema of session factories built with the given properties is validated by
+     * {@link SchemaValidation} (with cached results) instead of <code>hbm2ddl</code>.
+     */
+    private boolean validatesSchemaWithCache(Properties hibernateProperties) {
+        return cacheSchemaValidation() && !hasCustomFactoryCreation(getClass())
+                && "validate".equals(hibernateProperties.getProperty(Environment.HBM2DDL_AUTO));
+    }
+
+    /**
+     * Returns a fingerprint of everything the session factory of this rule depends on: annotated classes (or the
+     * package to scan), Hibernate properties, registered event listeners and the database url (or, if
+     * <code>includeUrl</code> is <code>false</code>, only the kind of the database, as the dialect may be detected
+     * from it). Rules whose classes build session factories in their own way (override {@link #sessionFactory()} or
+     * {@link #annotationSessionFactoryBean()}) or whose database urls are unknown never share factories with rules
+     * of other classes.
+     */
+    private String sessionFactoryFingerprint(boolean includeUrl) {
+        StringBuilder sb = new StringBuilder();
+        String url = detectUrl(dataSource());
+        if (hasCustomFactoryCreation(getClass()) || url == null) {
+            sb.append(getClass().getName());
+        }
+        Class[] annotatedClasses = annotatedClasses();
+        sb.append('|').append(annotatedClasses != null ? Arrays.toString(annotatedClasses) : null);
+        sb.append('|').append(packageWithAnnotatedClasses());
+        sb.append('|').append(new TreeMap<Object, Object>(hibernateProperties()));
+        sb.append("|lazyFetches=").append(lazyFetchThreshold() > 0);
+        sb.append("|persistenceContextLimit=").append(persistenceContextLimit() > 0);
+        sb.append('|').append(includeUrl ? url : databaseKind(url));
+        return Hashing.sha1().hashString(sb, Charsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns the JDBC subprotocol of the given url (for example <code>jdbc:h2</code>) or <code>null</code> if the
+     * url is <code>null</code>.
+     */
+    private static String databaseKind(String url) {
+        if (url == null) {
+            return null;
+        }
+        String[] parts = url.split(":", 3);
+        return parts.length < 3 ? url : parts[0] + ':' + parts[1];
+    }
+
+    private static boolean hasCustomFactoryCreation(Class<?> ruleClass) {
+        Boolean custom = customFactoryCreation.get(ruleClass);
+        if (custom == null) {
+            custom = false;
+            for (Class<?> c = ruleClass; c != HibernateSpringTxTestRule.class; c = c.getSuperclass()) {
+                for (Method method : c.getDeclaredMethods()) {
+                    if (method.getParameterTypes().length == 0 && (method.getName().equals("sessionFactory")
+                            || method.getName().equals("annotationSessionFactoryBean"))) {
+                        custom = true;
+                    }
+                }
+            }
+            customFactoryCreation.put(ruleClass, custom);
+        }
+        return custom;
+    }
+
+    private void resetStatistics() {
+        LAST_TEST_STATISTICS.remove();
+        Statistics statistics = FACTORY.get().getStatistics();
+        if (generateStatistics()) {
+            statistics.setStatisticsEnabled(true);
+        }
+        if (statistics.isStatisticsEnabled()) {
+            statistics.clear();
+        }
+    }
+
+    private void checkLazyFetches(Description description) {
+        int threshold = lazyFetchThreshold();
+        if (threshold <= 0) {
+            return;
+        }
+        String repeatedFetches = LazyFetchRecorder.describeRepeatedFetches(LazyFetchRecorder.getFetches(), threshold);
+        if (repeatedFetches != null) {
+            if (failOnLazyFetchThreshold()) {
+                throw new AssertionError(repeatedFetches);
+            }
+            log.warn(description.getDisplayName() + ": " + repeatedFetches);
+        }
+    }
+
+    private void reportPersistenceContext(Description description) {
+        PersistenceContextStatistics statistics = PersistenceContextGuard.stop();
+        if (statistics != null) {
+            log.info(description.getDisplayName() + ": " + statistics);
+        }
+    }
+
+    private void snapshotStatistics(Description description) {
+        SessionFactory sessionFactory = FACTORY.get();
+        if (sessionFactory != null && sessionFactory.getStatistics().isStatisticsEnabled()) {
+            HibernateTestStatistics statistics = HibernateTestStatistics.of(sessionFactory.getStatistics());
+            LAST_TEST_STATISTICS.set(statistics);
+            if (log.isDebugEnabled()) {
+                log.debug(description.getDisplayName() + ": " + statistics);
+            }
         }
     }
 
@@ -340,13 +1432,39 @@ public class HibernateSpringTxTestRule implements TestRule {
         return new Statement() {
             public void evaluate() throws Throwable {
                 try {
+                    CURRENT_RULE.set(HibernateSpringTxTestRule.this);
                     detectAndHandleTestClassChangeForCurrentThread(description.getTestClass());
+                    if (!TestDurations.isConfigurationReported(description.getClassName())) {
+                        TestDurations.reportConfiguration(description.getClassName(), configurationKey());
+                    }
+                    ThreadIsolatedCacheProvider.clearCurrentThread();
+                    RecordingBatcherFactory.reset();
                     createSession();
+                    resetStatistics();
+                    if (lazyFetchThreshold() > 0) {
+                        LazyFetchRecorder.start();
+                    }
+                    if (persistenceContextLimit() > 0) {
+                        PersistenceContextGuard.start(persistenceContextLimit());
+                    }
+                    ReadOnlyTransaction readOnlyTransaction = ReadOnlyGuard.find(description);
+                    transactionDefinition = readOnlyTransaction != null
+                            ? ReadOnlyGuard.transactionDefinition(readOnlyTransaction) : null;
+                    // Activated first, so that the connection of the transaction is guarded:
+                    if (readOnlyTransaction != null) {
+                        ReadOnlyGuard.activate();
+                    }
                     beginTransaction();
                     statement.evaluate();
+                    checkLazyFetches(description);
                 } finally {
+                    ReadOnlyGuard.deactivate();
                     rollback();
                     closeAndRemoveSession();
+                    LazyFetchRecorder.stop();
+                    reportPersistenceContext(description);
+                    snapshotStatistics(description);
+                    CURRENT_RULE.remove();
                 }
             }
         };
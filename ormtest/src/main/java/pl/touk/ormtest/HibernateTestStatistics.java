@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.hibernate.stat.Statistics;
+
+/**
+ * Snapshot of Hibernate statistics gathered during a single test by {@link HibernateSpringTxTestRule} (see
+ * {@link HibernateSpringTxTestRule#generateStatistics()} and {@link HibernateSpringTxTestRule#getTestStatistics()}),
+ * with assertions which can be used to catch performance regressions of DAOs, for example:
+ * <pre>
+ * dao.findOrdersWithItems();
+ * txContext.getTestStatistics().assertQueriesAtMost(1).assertCollectionFetchesAtMost(0);
+ * </pre>
+ * Assertions throw {@link AssertionError}s describing all statistics of the test.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public final class HibernateTestStatistics {
+
+    private final long queryExecutionCount;
+    private final long queryExecutionMaxTime;
+    private final String queryExecutionMaxTimeQueryString;
+    private final long prepareStatementCount;
+    private final long entityLoadCount;
+    private final long entityFetchCount;
+    private final long collectionLoadCount;
+    private final long collectionFetchCount;
+    private final long flushCount;
+    private final long secondLevelCacheHitCount;
+    private final long secondLevelCacheMissCount;
+
+    private HibernateTestStatistics(Statistics statistics) {
+        queryExecutionCount = statistics.getQueryExecutionCount();
+        queryExecutionMaxTime = statistics.getQueryExecutionMaxTime();
+        queryExecutionMaxTimeQueryString = statistics.getQueryExecutionMaxTimeQueryString();
+        prepareStatementCount = statistics.getPrepareStatementCount();
+        entityLoadCount = statistics.getEntityLoadCount();
+        entityFetchCount = statistics.getEntityFetchCount();
+        collectionLoadCount = statistics.getCollectionLoadCount();
+        collectionFetchCount = statistics.getCollectionFetchCount();
+        flushCount = statistics.getFlushCount();
+        secondLevelCacheHitCount = statistics.getSecondLevelCacheHitCount();
+        secondLevelCacheMissCount = statistics.getSecondLevelCacheMissCount();
+    }
+
+    static HibernateTestStatistics of(Statistics statistics) {
+        return new HibernateTestStatistics(statistics);
+    }
+
+    /**
+     * Returns the number of executed HQL and criteria queries.
+     */
+    public long getQueryExecutionCount() {
+        return queryExecutionCount;
+    }
+
+    /**
+     * Returns the time (in milliseconds) of the slowest query.
+     */
+    public long getQueryExecutionMaxTime() {
+        return queryExecutionMaxTime;
+    }
+
+    public String getQueryExecutionMaxTimeQueryString() {
+        return queryExecutionMaxTimeQueryString;
+    }
+
+    /**
+     * Returns the number of prepared JDBC statements (all sql sent to the database, including loads of single
+     * entities and collections).
+     */
+    public long getPrepareStatementCount() {
+        return prepareStatementCount;
+    }
+
+    public long getEntityLoadCount() {
+        return entityLoadCount;
+    }
+
+    /**
+     * Returns the number of entities fetched by separate sql statements (for example lazy associations).
+     */
+    public long getEntityFetchCount() {
+        return entityFetchCount;
+    }
+
+    public long getCollectionLoadCount() {
+        return collectionLoadCount;
+    }
+
+    /**
+     * Returns the number of collections fetched by separate sql statements (typically a sign of N+1 selects).
+     */
+    public long getCollectionFetchCount() {
+        return collectionFetchCount;
+    }
+
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    public long getSecondLevelCacheHitCount() {
+        return secondLevelCacheHitCount;
+    }
+
+    public long getSecondLevelCacheMissCount() {
+        return secondLevelCacheMissCount;
+    }
+
+    public HibernateTestStatistics assertQueriesAtMost(long max) {
+        return check("queries", queryExecutionCount, max);
+    }
+
+    public HibernateTestStatistics assertStatementsAtMost(long max) {
+        return check("prepared statements", prepareStatementCount, max);
+    }
+
+    public HibernateTestStatistics assertEntityFetchesAtMost(long max) {
+        return check("entity fetches", entityFetchCount, max);
+    }
+
+    public HibernateTestStatistics assertCollectionFetchesAtMost(long max) {
+        return check("collection fetches", collectionFetchCount, max);
+    }
+
+    public HibernateTestStatistics assertFlushesAtMost(long max) {
+        return check("flushes", flushCount, max);
+    }
+
+    public HibernateTestStatistics assertSecondLevelCacheMissesAtMost(long max) {
+        return check("second-level cache misses", secondLevelCacheMissCount, max);
+    }
+
+    /**
+     * Asserts that no query took longer than the given number of milliseconds.
+     */
+    public HibernateTestStatistics assertQueryTimeAtMost(long maxMillis) {
+        if (queryExecutionMaxTime > maxMillis) {
+            throw new AssertionError("slowest query took " + queryExecutionMaxTime + " ms (expected at most "
+                    + maxMillis + " ms): " + queryExecutionMaxTimeQueryString + "\n" + this);
+        }
+        return this;
+    }
+
+    private HibernateTestStatistics check(String what, long actual, long max) {
+        if (actual > max) {
+            throw new AssertionError("expected at most " + max + " " + what + " but there were " + actual + "\n" + this);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "queries: " + queryExecutionCount +
+                " (slowest: " + queryExecutionMaxTime + " ms" +
+                (queryExecutionMaxTimeQueryString != null ? " - " + queryExecutionMaxTimeQueryString : "") + ")" +
+                ", prepared statements: " + prepareStatementCount +
+                ", entities loaded: " + entityLoadCount +
+                ", entities fetched: " + entityFetchCount +
+                ", collections loaded: " + collectionLoadCount +
+                ", collections fetched: " + collectionFetchCount +
+                ", flushes: " + flushCount +
+                ", second-level cache hits: " + secondLevelCacheHitCount +
+                ", second-level cache misses: " + secondLevelCacheMissCount;
+    }
+}
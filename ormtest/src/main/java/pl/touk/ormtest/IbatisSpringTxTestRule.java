@@ -15,9 +15,6 @@ import org.springframework.orm.ibatis.SqlMapClientTemplate;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 /**
  * Class for JUnit testing of Spring-based iBATIS DAOs.
@@ -104,8 +101,6 @@ public class IbatisSpringTxTestRule extends SpringTxTestRule {
     private final static Object guard = new Object();
     private static volatile SqlMapClient sqlMapClient = null;
 
-    private final static ConcurrentMap<Thread, SqlMapClientTemplate> sqlMapClientTemplates = new ConcurrentHashMap<Thread, SqlMapClientTemplate>();
-
     private final PathMatchingResourcePatternResolver resourcePatternResolver = new PathMatchingResourcePatternResolver();
 
     public static void setSqlMapConfig(Object... sqlMapConfigs) {
@@ -350,7 +345,7 @@ public class IbatisSpringTxTestRule extends SpringTxTestRule {
 
     public SqlMapClientTemplate getSqlMapClientTemplate() {
         ensureTemplateInitialized();
-        return sqlMapClientTemplates.get(Thread.currentThread());
+        return context().getResource(SqlMapClientTemplate.class);
     }
 
     protected void ensureTemplateInitialized() {
@@ -361,13 +356,20 @@ public class IbatisSpringTxTestRule extends SpringTxTestRule {
                 }
             }
         }
-        if (sqlMapClientTemplates.get(Thread.currentThread()) == null) {
-            SqlMapClientTemplate template = new SqlMapClientTemplate(dataSource(), sqlMapClient);
-            sqlMapClientTemplates.put(Thread.currentThread(), template);
-            txManagers.put(Thread.currentThread(), new DataSourceTransactionManager(template.getDataSource()));
+        ThreadContext context = context();
+        if (context.getResource(SqlMapClientTemplate.class) == null) {
+            SqlMapClientTemplate template = new SqlMapClientTemplate(threadDataSource(), sqlMapClient);
+            context.putResource(SqlMapClientTemplate.class, template);
+            context.setTxManager(new DataSourceTransactionManager(template.getDataSource()));
         }
     }
 
+    @Override
+    protected String warmPoolKey() {
+        // Pooled contexts must have templates built from the same sql map configuration:
+        return super.warmPoolKey() + Arrays.deepToString(sqlMapConfig);
+    }
+
     public static void resetThreadsForCurrentTestClass() {
         resetThreadsForCurrentTestClass(true);
     }
@@ -379,13 +381,6 @@ public class IbatisSpringTxTestRule extends SpringTxTestRule {
         if (hardReset) {
             sqlMapConfig = sqlMapConfigDefault;
         }
-        Set<Thread> threads = getThreads(findInvokingTestClass());
-        if (threads != null && threads.size() > 0) {
-            for (Thread t : threads) {
-                sqlMapClientTemplates.remove(t);
-                txManagers.remove(t);
-                txStatuses.remove(t);
-            }
-        }
+        resetThreads(findInvokingTestClass());
     }
 }
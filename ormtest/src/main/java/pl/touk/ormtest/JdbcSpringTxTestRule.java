@@ -7,10 +7,6 @@ package pl.touk.ormtest;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-
 /**
  * Class for JUnit testing of Spring-based Jdbc DAOs.
  * This class uses H2 in-memory database.
@@ -63,8 +59,8 @@ import java.util.concurrent.ConcurrentMap;
  * }
  * </code></pre>
  *
- * In above example, if the two tests are executed in parallel then each of them will be executed on different,
- * completely independent in-memory H2 databases.
+ * In above example, if the two tests are executed in parallel (for example by {@link ParallelSuite}) then each of
+ * them will be executed on different, completely independent in-memory H2 databases.
  *
  * Of course an <i>ExampleEntity</i> plain old java bean (POJO) with <i>id</i> and <i>name</i>
  * properties would be needed for the above example to work.
@@ -73,29 +69,21 @@ import java.util.concurrent.ConcurrentMap;
  */
 public class JdbcSpringTxTestRule extends SpringTxTestRule {
 
-    private final static ConcurrentMap<Thread, JdbcTemplate> jdbcTemplates = new ConcurrentHashMap<Thread, JdbcTemplate>();
-
     public JdbcTemplate getJdbcTemplate() {
         ensureTemplateInitialized();
-        return jdbcTemplates.get(Thread.currentThread());
+        return context().getResource(JdbcTemplate.class);
     }
 
     protected void ensureTemplateInitialized() {
-        if (jdbcTemplates.get(Thread.currentThread()) == null) {
-            JdbcTemplate template = new JdbcTemplate(dataSource());
-            jdbcTemplates.put(Thread.currentThread(), template);
-            txManagers.put(Thread.currentThread(), new DataSourceTransactionManager(template.getDataSource()));
+        ThreadContext context = context();
+        if (context.getResource(JdbcTemplate.class) == null) {
+            JdbcTemplate template = new JdbcTemplate(threadDataSource());
+            context.putResource(JdbcTemplate.class, template);
+            context.setTxManager(new DataSourceTransactionManager(template.getDataSource()));
         }
     }
 
     public static void resetThreadsForCurrentTestClass() {
-        Set<Thread> threads = getThreads(findInvokingTestClass());
-        if (threads != null && threads.size() > 0) {
-            for (Thread t: threads) {
-                jdbcTemplates.remove(t);
-                txManagers.remove(t);
-                txStatuses.remove(t);
-            }
-        }
+        resetThreads(findInvokingTestClass());
     }
 }
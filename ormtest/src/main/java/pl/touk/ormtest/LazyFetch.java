@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+/**
+ * A lazy association (an entity proxy or a collection) initialized during a test, recorded by
+ * {@link HibernateSpringTxTestRule} (see {@link HibernateSpringTxTestRule#lazyFetchThreshold()}).
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public final class LazyFetch {
+
+    private final String role;
+    private final String owner;
+    private final StackTraceElement callSite;
+
+    LazyFetch(String role, String owner, StackTraceElement callSite) {
+        this.role = role;
+        this.owner = owner;
+        this.callSite = callSite;
+    }
+
+    /**
+     * Returns the role of the fetched collection (for example <code>com.example.Order.items</code>) or the name of
+     * the entity whose proxy was initialized.
+     */
+    public String getRole() {
+        return role;
+    }
+
+    /**
+     * Returns the entity owning the fetched collection or the initialized entity, as entity name and id.
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Returns the first stack frame outside of Hibernate, Spring, OrmTest and JDK classes which caused the fetch or
+     * <code>null</code> if there is no such frame.
+     */
+    public StackTraceElement getCallSite() {
+        return callSite;
+    }
+
+    @Override
+    public String toString() {
+        return role + " of " + owner + " at " + callSite;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.hibernate.HibernateException;
+import org.hibernate.collection.PersistentCollection;
+import org.hibernate.event.InitializeCollectionEvent;
+import org.hibernate.event.InitializeCollectionEventListener;
+import org.hibernate.event.LoadEvent;
+import org.hibernate.event.LoadEventListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hibernate event listener recording lazy fetches (initializations of entity proxies and collections) of threads
+ * which have started recording. Registered (before Hibernate's default listeners) in session factories built by
+ * the default implementation of {@link HibernateSpringTxTestRule#annotationSessionFactoryBean()} if
+ * {@link HibernateSpringTxTestRule#lazyFetchThreshold()} is positive; when the current thread doesn't record, the
+ * listener does nothing.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class LazyFetchRecorder implements LoadEventListener, InitializeCollectionEventListener {
+
+    private static final ThreadLocal<List<LazyFetch>> fetches = new ThreadLocal<List<LazyFetch>>();
+
+    private static final String[] FRAMEWORK_PACKAGES = {
+            "org.hibernate.", "org.springframework.", "java.", "javax.", "sun.", "com.sun.", "net.sf.cglib.",
+            "javassist.", "org.junit.", "junit.",
+            // OrmTest classes through which tests use Hibernate:
+            "pl.touk.ormtest.HibernateSpringTxTestRule", "pl.touk.ormtest.Proxy", "pl.touk.ormtest.LazyFetchRecorder"
+    };
+
+    /**
+     * Starts recording lazy fetches of the current thread (discarding fetches recorded so far).
+     */
+    static void start() {
+        fetches.set(new ArrayList<LazyFetch>());
+    }
+
+    /**
+     * Stops recording lazy fetches of the current thread.
+     *
+     * @return fetches recorded since {@link #start()}
+     */
+    static List<LazyFetch> stop() {
+        List<LazyFetch> recorded = getFetches();
+        fetches.remove();
+        return recorded;
+    }
+
+    /**
+     * Returns fetches recorded by the current thread so far (empty if the thread doesn't record).
+     */
+    static List<LazyFetch> getFetches() {
+        List<LazyFetch> recorded = fetches.get();
+        return recorded != null ? new ArrayList<LazyFetch>(recorded) : Collections.<LazyFetch>emptyList();
+    }
+
+    /**
+     * Returns a description of roles fetched more than <code>threshold</code> times (with their call sites) or
+     * <code>null</code> if there are no such roles.
+     */
+    static String describeRepeatedFetches(List<LazyFetch> fetches, int threshold) {
+        Map<String, List<LazyFetch>> fetchesByRole = new LinkedHashMap<String, List<LazyFetch>>();
+        for (LazyFetch fetch : fetches) {
+            List<LazyFetch> fetchesOfRole = fetchesByRole.get(fetch.getRole());
+            if (fetchesOfRole == null) {
+                fetchesOfRole = new ArrayList<LazyFetch>();
+                fetchesByRole.put(fetch.getRole(), fetchesOfRole);
+            }
+            fetchesOfRole.add(fetch);
+        }
+        StringBuilder description = new StringBuilder();
+        for (Map.Entry<String, List<LazyFetch>> entry : fetchesByRole.entrySet()) {
+            if (entry.getValue().size() > threshold) {
+                Set<StackTraceElement> callSites = new LinkedHashSet<StackTraceElement>();
+                for (LazyFetch fetch : entry.getValue()) {
+                    callSites.add(fetch.getCallSite());
+                }
+                description.append("\n").append(entry.getKey()).append(" fetched lazily ")
+                        .append(entry.getValue().size()).append(" times (threshold is ").append(threshold)
+                        .append(") at ").append(callSites);
+            }
+        }
+        return description.length() > 0 ? "possible N+1 selects:" + description : null;
+    }
+
+    public void onLoad(LoadEvent event, LoadType loadType) throws HibernateException {
+        if (fetches.get() != null && loadType == LoadEventListener.IMMEDIATE_LOAD) {
+            // Immediate loads are issued by proxies being initialized:
+            record(event.getEntityClassName(), event.getEntityClassName() + "#" + event.getEntityId());
+        }
+    }
+
+    public void onInitializeCollection(InitializeCollectionEvent event) throws HibernateException {
+        PersistentCollection collection = event.getCollection();
+        if (fetches.get() != null && !collection.wasInitialized()) {
+            Object owner = collection.getOwner();
+            record(collection.getRole(),
+                    (owner != null ? owner.getClass().getName() : "?") + "#" + collection.getKey());
+        }
+    }
+
+    private static void record(String role, String owner) {
+        fetches.get().add(new LazyFetch(role, owner, callSite(new Throwable().getStackTrace())));
+    }
+
+    private static StackTraceElement callSite(StackTraceElement[] stackTrace) {
+        for (StackTraceElement element : stackTrace) {
+            if (!isFrameworkClass(element.getClassName())) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isFrameworkClass(String className) {
+        for (String frameworkPackage : FRAMEWORK_PACKAGES) {
+            if (className.startsWith(frameworkPackage)) {
+                return true;
+            }
+        }
+        // Proxies generated for entities:
+        return className.contains("$$");
+    }
+}
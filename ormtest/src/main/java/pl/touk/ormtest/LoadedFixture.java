@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+/**
+ * The fixture loaded (and committed) into the database of a thread, together with snapshots of the database taken
+ * right after loading the fixture and before the first fixture was loaded into it. Kept in the thread's
+ * {@link ThreadContext}.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class LoadedFixture {
+
+    private final Fixture fixture;
+    private final DatabaseSnapshot snapshot;
+    private final DatabaseSnapshot cleanSnapshot;
+    private volatile boolean dirty;
+
+    LoadedFixture(Fixture fixture, DatabaseSnapshot snapshot, DatabaseSnapshot cleanSnapshot) {
+        this.fixture = fixture;
+        this.snapshot = snapshot;
+        this.cleanSnapshot = cleanSnapshot;
+    }
+
+    Fixture getFixture() {
+        return fixture;
+    }
+
+    /**
+     * Returns the snapshot of the database with the fixture loaded or <code>null</code> if snapshots are not
+     * supported by the database.
+     */
+    DatabaseSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns the snapshot of the database from before the first fixture was loaded into it or <code>null</code> if
+     * snapshots are not supported by the database.
+     */
+    DatabaseSnapshot getCleanSnapshot() {
+        return cleanSnapshot;
+    }
+
+    /**
+     * Returns <code>true</code> if changes were committed to the database after the fixture had been loaded.
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void markDirty() {
+        dirty = true;
+    }
+}
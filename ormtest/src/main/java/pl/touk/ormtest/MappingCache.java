@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ClassLoaderObjectInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.cfg.Environment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Files in the {@link CacheDirectory} holding serialized Hibernate mapping metadata (bound
+ * <code>Configuration</code>s), keyed by a hash of the bytecode of entity classes and of Hibernate properties. As
+ * the key changes whenever an entity class is recompiled, stale metadata is never read.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class MappingCache {
+
+    private static final Log log = LogFactory.getLog(MappingCache.class);
+
+    private static final String DIRECTORY = "mappings";
+
+    private static final AtomicInteger tempFileCounter = new AtomicInteger();
+
+    private MappingCache() {
+    }
+
+    /**
+     * Returns the cache file for the given entity classes and Hibernate properties (the file may not exist).
+     */
+    static File file(Class[] entityClasses, Properties properties) {
+        return new File(CacheDirectory.directory(DIRECTORY), key(entityClasses, properties) + ".ser");
+    }
+
+    /**
+     * Returns a hash of the Hibernate version, the given properties and the bytecode of the given classes, their
+     * superclasses and the (non-JDK) types of their fields, so that changes to embeddables and mapped superclasses
+     * are noticed too.
+     */
+    static String key(Class[] entityClasses, Properties properties) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putUnencodedChars(Environment.VERSION);
+        for (Map.Entry<Object, Object> property : new TreeMap<Object, Object>(properties).entrySet()) {
+            hasher.putUnencodedChars(String.valueOf(property.getKey())).putByte((byte) 0);
+            hasher.putUnencodedChars(String.valueOf(property.getValue())).putByte((byte) 0);
+        }
+        Class[] sorted = entityClasses.clone();
+        Arrays.sort(sorted, new Comparator<Class>() {
+            public int compare(Class c1, Class c2) {
+                return c1.getName().compareTo(c2.getName());
+            }
+        });
+        Set<Class<?>> hashed = new LinkedHashSet<Class<?>>();
+        for (Class entityClass : sorted) {
+            for (Class<?> c = entityClass; isApplicationClass(c); c = c.getSuperclass()) {
+                hashBytecode(hasher, c, hashed);
+                for (Field field : c.getDeclaredFields()) {
+                    hashBytecode(hasher, field.getType(), hashed);
+                }
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Reads an object from the given file.
+     *
+     * @return the object or <code>null</code> if the file doesn't exist or can't be read (in which case it is deleted)
+     */
+    static Object read(File file, ClassLoader classLoader) {
+        if (!file.isFile()) {
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ClassLoaderObjectInputStream(classLoader, new BufferedInputStream(new FileInputStream(file)));
+            return in.readObject();
+        } catch (Exception e) {
+            log.warn("can't read cached mapping " + file + " - deleting it", e);
+            file.delete();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the given object to the given file. The object is written to a temporary file first so that other
+     * threads or JVMs never read a partially written file. Failures are only logged.
+     */
+    static void write(File file, Serializable object) {
+        File temp = new File(file.getParentFile(), file.getName() + "." + tempFileCounter.incrementAndGet() + ".tmp");
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeObject(object);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file) && !file.isFile()) {
+                log.warn("can't rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            log.warn("can't cache mapping in " + file, e);
+        } finally {
+            IOUtils.closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    private static boolean isApplicationClass(Class<?> c) {
+        return c != null && !c.isPrimitive() && !c.isArray() && c.getClassLoader() != null
+                && !c.getName().startsWith("java.") && !c.getName().startsWith("javax.");
+    }
+
+    private static void hashBytecode(Hasher hasher, Class<?> c, Set<Class<?>> hashed) {
+        if (!isApplicationClass(c) || !hashed.add(c)) {
+            return;
+        }
+        hasher.putUnencodedChars(c.getName()).putByte((byte) 0);
+        InputStream in = c.getClassLoader().getResourceAsStream(c.getName().replace('.', '/') + ".class");
+        if (in == null) {
+            // Generated class without bytecode on the classpath - only its name is known:
+            return;
+        }
+        try {
+            hasher.putBytes(IOUtils.toByteArray(in));
+        } catch (IOException e) {
+            throw new RuntimeException("can't read bytecode of " + c.getName(), e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
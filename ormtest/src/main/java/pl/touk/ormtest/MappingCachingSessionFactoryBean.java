@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Configuration;
+import org.springframework.orm.hibernate3.annotation.AnnotationSessionFactoryBean;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * {@link AnnotationSessionFactoryBean} which starts from mapping metadata cached by a previous run (see
+ * {@link MappingCache}) instead of binding annotations again, and caches the metadata it has bound otherwise.
+ * <p>
+ * Event listeners are added to the configuration only after it has been cached, as they needn't be serializable
+ * (and are assigned again to restored configurations anyway).
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+class MappingCachingSessionFactoryBean extends AnnotationSessionFactoryBean {
+
+    private static final Log log = LogFactory.getLog(MappingCachingSessionFactoryBean.class);
+
+    private final File cacheFile;
+    private final ClassLoader entityClassLoader;
+    private boolean restored;
+    private Map eventListeners;
+
+    /**
+     * @param cacheFile         file returned by {@link MappingCache#file}
+     * @param entityClassLoader class loader of entity classes
+     */
+    MappingCachingSessionFactoryBean(File cacheFile, ClassLoader entityClassLoader) {
+        this.cacheFile = cacheFile;
+        this.entityClassLoader = entityClassLoader;
+    }
+
+    /**
+     * Returns <code>true</code> if the configuration has been read from the cache.
+     */
+    boolean isRestored() {
+        return restored;
+    }
+
+    File getCacheFile() {
+        return cacheFile;
+    }
+
+    @Override
+    public void setEventListeners(Map eventListeners) {
+        // Not passed to the superclass - see postProcessConfiguration:
+        this.eventListeners = eventListeners;
+    }
+
+    @Override
+    protected Configuration newConfiguration() throws HibernateException {
+        Configuration newConfiguration = super.newConfiguration();
+        Object cached = MappingCache.read(cacheFile, entityClassLoader);
+        if (cached != null && cached.getClass() == newConfiguration.getClass()) {
+            log.info("mapping cache hit: " + cacheFile.getName());
+            restored = true;
+            return (Configuration) cached;
+        }
+        log.info("mapping cache miss: " + cacheFile.getName());
+        return newConfiguration;
+    }
+
+    @Override
+    protected void postProcessMappings(Configuration config) throws HibernateException {
+        // Classes of a restored configuration have already been bound:
+        if (!restored) {
+            super.postProcessMappings(config);
+        }
+    }
+
+    @Override
+    protected void postProcessConfiguration(Configuration config) throws HibernateException {
+        super.postProcessConfiguration(config);
+        if (!restored) {
+            MappingCache.write(cacheFile, config);
+        }
+        if (eventListeners != null) {
+            for (Object entry : eventListeners.entrySet()) {
+                String type = (String) ((Map.Entry) entry).getKey();
+                Object listener = ((Map.Entry) entry).getValue();
+                if (listener instanceof Collection) {
+                    config.setListeners(type, ((Collection) listener).toArray());
+                } else {
+                    config.setListener(type, listener);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Rule;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.Runner;
+import org.junit.runner.manipulation.Sortable;
+import org.junit.runner.manipulation.Sorter;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runner.notification.StoppedByUserException;
+import org.junit.runners.ParentRunner;
+import org.junit.runners.Suite;
+import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.RunnerBuilder;
+import org.junit.runners.model.RunnerScheduler;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A drop-in replacement for JUnit's {@link Suite} runner which runs test classes of the suite, and test methods of
+ * every class, in parallel. Thanks to {@link SpringTxTestRule} and {@link HibernateSpringTxTestRule} every thread
+ * works on its own, completely independent in-memory database so tests don't interfere with each other.
+ * <pre><code>
+ * &#64;RunWith(ParallelSuite.class)
+ * &#64;Suite.SuiteClasses({FirstTest.class, SecondTest.class})
+ * public class AllTests {
+ * }
+ * </code></pre>
+ * Test methods are executed by a fixed number of worker threads (the number of available processors by default,
+ * configurable through the <code>ormtest.parallelThreads</code> system property). <code>&#64;BeforeClass</code> and
+ * <code>&#64;AfterClass</code> methods are executed by separate threads, so the reset methods of the rules
+ * (<code>resetThreadsForCurrentTestClass()</code>) invoked in <code>&#64;AfterClass</code> methods still find the
+ * worker threads that executed tests of their classes; contexts of workers busy with other classes' tests are
+ * dropped as soon as those tests finish.
+ * <p>
+ * Classes (or nested suites) annotated with {@link RunSerially} and classes with
+ * {@link MysqlIbatisSpringTxTestRule} rules (which share a single database) are run after all the other classes,
+ * one at a time, with their test methods run one after another.
+ * <p>
+ * Durations of test classes and methods are saved in the <code>durations.properties</code> file of the ormtest cache
+ * directory (<code>target/ormtest-cache</code> by default, configurable through the <code>ormtest.cacheDir</code>
+ * system property) and used by the next run to start the longest classes and methods first. The file also keeps
+ * configuration keys reported by the rules (for example sql map configuration or Hibernate annotated classes): classes
+ * sharing a configuration are run one after another, with their methods, by a single thread, so that the
+ * configuration is built only once. A group expected to take longer than its share of the run (the expected duration
+ * of all classes divided by the number of threads) is split into parts of at most that duration, run by separate
+ * threads; groups of classes with unknown durations are split into parts of at most as many classes as every thread
+ * would get.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public class ParallelSuite extends Suite {
+
+    private static final Log log = LogFactory.getLog(ParallelSuite.class);
+
+    static final String THREADS_PROPERTY = "ormtest.parallelThreads";
+
+    private final int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+
+    // Run test methods:
+    private volatile ExecutorService workers;
+    // Run classes (i.e. their @BeforeClass and @AfterClass methods) and wait for their methods run by the workers:
+    private volatile ExecutorService coordinators;
+
+    // Notifier of the current run (used by the scheduler to run children):
+    private volatile RunNotifier notifier;
+
+    // Durations and configurations recorded by previous runs; updated by this run:
+    private final TestDurations durations = TestDurations.load();
+    // Configuration keys of children which share their configuration with other children (such children are run
+    // one after another by a single thread so that they can reuse what was built for each other):
+    private final Map<Runner, String> groups = new IdentityHashMap<Runner, String>();
+
+    // Accessed only by the thread running the suite:
+    private final List<Runner> parallelChildren = new ArrayList<Runner>();
+    private final List<Runner> serialChildren = new ArrayList<Runner>();
+
+    public ParallelSuite(Class<?> klass, RunnerBuilder builder) throws InitializationError {
+        super(klass, builder);
+        Map<String, Integer> groupSizes = new HashMap<String, Integer>();
+        Map<Runner, String> configurations = new IdentityHashMap<Runner, String>();
+        for (Runner child : getChildren()) {
+            String configuration = isSerial(child.getDescription()) ? null : getConfiguration(child.getDescription());
+            if (configuration != null) {
+                configurations.put(child, configuration);
+                Integer size = groupSizes.get(configuration);
+                groupSizes.put(configuration, size == null ? 1 : size + 1);
+            }
+        }
+        for (Runner child : getChildren()) {
+            String configuration = configurations.get(child);
+            if (configuration != null && groupSizes.get(configuration) > 1) {
+                groups.put(child, configuration);
+            } else if (!isSerial(child.getDescription())) {
+                scheduleMethodsOnWorkers(child);
+            }
+            if (child instanceof Sortable) {
+                ((Sortable) child).sort(new Sorter(new LongestFirst()));
+            }
+        }
+        setScheduler(new RunnerScheduler() {
+            public void schedule(Runnable childStatement) {
+                // Invokes runChild which only collects children:
+                childStatement.run();
+            }
+
+            public void finished() {
+                runParallelChildren();
+                for (Runner child : serialChildren) {
+                    runAndMeasure(child);
+                }
+                serialChildren.clear();
+            }
+        });
+    }
+
+    @Override
+    public void run(RunNotifier notifier) {
+        this.notifier = notifier instanceof SynchronizedRunNotifier ? notifier : new SynchronizedRunNotifier(notifier);
+        log.debug("running " + getDescription().getDisplayName() + " in " + threads + " threads");
+        workers = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ormtest-worker-%d").build());
+        coordinators = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ormtest-class-%d").build());
+        RunListener methodDurations = new MethodDurationListener();
+        this.notifier.addListener(methodDurations);
+        try {
+            super.run(this.notifier);
+        } finally {
+            this.notifier.removeListener(methodDurations);
+            workers.shutdownNow();
+            coordinators.shutdownNow();
+            durations.save();
+        }
+    }
+
+    @Override
+    protected void runChild(Runner runner, RunNotifier notifier) {
+        if (isSerial(runner.getDescription())) {
+            serialChildren.add(runner);
+        } else {
+            parallelChildren.add(runner);
+        }
+    }
+
+    /**
+     * Runs parallel children longest first. Children sharing a configuration form units run by one thread each, no
+     * longer than a share of the whole run (see {@link #split(List, long[], long)}).
+     */
+    private void runParallelChildren() {
+        Map<String, List<Runner>> unitsByKey = new LinkedHashMap<String, List<Runner>>();
+        for (int i = 0; i < parallelChildren.size(); i++) {
+            Runner child = parallelChildren.get(i);
+            String group = groups.get(child);
+            String key = group != null ? "configuration:" + group : "child:" + i;
+            List<Runner> unit = unitsByKey.get(key);
+            if (unit == null) {
+                unit = new ArrayList<Runner>();
+                unitsByKey.put(key, unit);
+            }
+            unit.add(child);
+        }
+        long knownDuration = 0;
+        for (Runner child : parallelChildren) {
+            knownDuration += Math.max(0, durations.getDuration(child.getDescription().getClassName()));
+        }
+        long maxDuration = Math.max(1, knownDuration / threads);
+        int maxChildren = Math.max(1, (parallelChildren.size() + threads - 1) / threads);
+        parallelChildren.clear();
+        List<List<Runner>> units = new ArrayList<List<Runner>>();
+        for (List<Runner> unit : unitsByKey.values()) {
+            long[] weights = new long[unit.size()];
+            if (getExpectedDuration(unit) >= 0) {
+                for (int i = 0; i < weights.length; i++) {
+                    weights[i] = durations.getDuration(unit.get(i).getDescription().getClassName());
+                }
+                units.addAll(split(unit, weights, maxDuration));
+            } else {
+                // Durations unknown - every class counts as one:
+                Arrays.fill(weights, 1);
+                units.addAll(split(unit, weights, maxChildren));
+            }
+        }
+        Collections.sort(units, new Comparator<List<Runner>>() {
+            public int compare(List<Runner> unit1, List<Runner> unit2) {
+                return compareLongestFirst(getExpectedDuration(unit1), getExpectedDuration(unit2));
+            }
+        });
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final List<Runner> unit : units) {
+            futures.add(coordinators.submit(new Runnable() {
+                public void run() {
+                    for (Runner child : unit) {
+                        runAndMeasure(child);
+                    }
+                }
+            }));
+        }
+        waitFor(futures);
+    }
+
+    /**
+     * Splits the given unit into consecutive parts whose total weight doesn't exceed the given maximum (unless a
+     * single element is heavier), so that a large group of classes sharing a configuration doesn't keep a single
+     * thread busy long after the others have finished.
+     *
+     * @param unit      elements to split
+     * @param weights   weights (for example expected durations) of the elements
+     * @param maxWeight maximum weight of a part
+     * @return parts of the unit (a single part if the unit is light enough)
+     */
+    static <T> List<List<T>> split(List<T> unit, long[] weights, long maxWeight) {
+        List<List<T>> parts = new ArrayList<List<T>>();
+        List<T> part = new ArrayList<T>();
+        long partWeight = 0;
+        for (int i = 0; i < unit.size(); i++) {
+            if (!part.isEmpty() && partWeight + weights[i] > maxWeight) {
+                parts.add(part);
+                part = new ArrayList<T>();
+                partWeight = 0;
+            }
+            part.add(unit.get(i));
+            partWeight += weights[i];
+        }
+        if (!part.isEmpty()) {
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    private void runAndMeasure(Runner child) {
+        long start = System.currentTimeMillis();
+        child.run(notifier);
+        durations.recordDuration(child.getDescription().getClassName(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Returns the expected duration of the given unit or <code>-1</code> if the duration of any of its children is
+     * unknown.
+     */
+    private long getExpectedDuration(List<Runner> unit) {
+        long sum = 0;
+        for (Runner child : unit) {
+            long duration = durations.getDuration(child.getDescription().getClassName());
+            if (duration < 0) {
+                return -1;
+            }
+            sum += duration;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the configuration key shared by all test classes of the given description or <code>null</code> if
+     * they don't share a known configuration.
+     */
+    private String getConfiguration(Description description) {
+        Set<String> configurations = new HashSet<String>();
+        if (!collectConfigurations(description, configurations) || configurations.size() != 1) {
+            return null;
+        }
+        return configurations.iterator().next();
+    }
+
+    private boolean collectConfigurations(Description description, Set<String> configurations) {
+        boolean hasMethods = false;
+        for (Description child : description.getChildren()) {
+            if (child.isSuite()) {
+                if (!collectConfigurations(child, configurations)) {
+                    return false;
+                }
+            } else {
+                hasMethods = true;
+            }
+        }
+        if (hasMethods) {
+            String configuration = durations.getConfiguration(description.getClassName());
+            if (configuration == null) {
+                return false;
+            }
+            configurations.add(configuration);
+        }
+        return true;
+    }
+
+    // Unknown durations go first as they may be long:
+    private static int compareLongestFirst(long duration1, long duration2) {
+        long d1 = duration1 < 0 ? Long.MAX_VALUE : duration1;
+        long d2 = duration2 < 0 ? Long.MAX_VALUE : duration2;
+        return d1 > d2 ? -1 : (d1 == d2 ? 0 : 1);
+    }
+
+    private class LongestFirst implements Comparator<Description> {
+        public int compare(Description description1, Description description2) {
+            return compareLongestFirst(durations.getDuration(nameOf(description1)),
+                    durations.getDuration(nameOf(description2)));
+        }
+
+        private String nameOf(Description description) {
+            return description.getMethodName() != null
+                    ? description.getClassName() + "#" + description.getMethodName()
+                    : description.getClassName();
+        }
+    }
+
+    private class MethodDurationListener extends RunListener {
+        private final Map<Description, Long> starts = new ConcurrentHashMap<Description, Long>();
+
+        @Override
+        public void testStarted(Description description) {
+            starts.put(description, System.currentTimeMillis());
+        }
+
+        @Override
+        public void testFinished(Description description) {
+            Long start = starts.remove(description);
+            if (start != null && description.getMethodName() != null) {
+                durations.recordDuration(description.getClassName() + "#" + description.getMethodName(),
+                        System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    private void scheduleMethodsOnWorkers(Runner runner) {
+        if (runner instanceof ParallelSuite) {
+            // Schedules its own children:
+            return;
+        }
+        if (runner instanceof Suite) {
+            for (Runner child : getChildrenOf((Suite) runner)) {
+                scheduleMethodsOnWorkers(child);
+            }
+        } else if (runner instanceof ParentRunner) {
+            ((ParentRunner<?>) runner).setScheduler(new RunnerScheduler() {
+                private final List<Future<?>> methods = new ArrayList<Future<?>>();
+
+                public void schedule(Runnable childStatement) {
+                    synchronized (methods) {
+                        methods.add(workers.submit(childStatement));
+                    }
+                }
+
+                public void finished() {
+                    synchronized (methods) {
+                        waitFor(methods);
+                        methods.clear();
+                    }
+                }
+            });
+        }
+    }
+
+    private List<Runner> getChildrenOf(Suite suite) {
+        // Suite.getChildren() is protected:
+        try {
+            Method method = ParentRunner.class.getDeclaredMethod("getChildren");
+            method.setAccessible(true);
+            @SuppressWarnings("unchecked")
+            List<Runner> children = (List<Runner>) method.invoke(suite);
+            return children;
+        } catch (Exception e) {
+            throw new RuntimeException("can't get children of suite " + suite.getDescription(), e);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the test class (or any class of the suite) described by the given description
+     * must be run serially.
+     */
+    static boolean isSerial(Description description) {
+        Class<?> testClass = description.getTestClass();
+        if (testClass != null && (testClass.isAnnotationPresent(RunSerially.class) || hasMysqlRule(testClass))) {
+            return true;
+        }
+        for (Description child : description.getChildren()) {
+            if (child.isSuite() && isSerial(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasMysqlRule(Class<?> testClass) {
+        for (Class<?> c = testClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Rule.class)
+                        && MysqlIbatisSpringTxTestRule.class.isAssignableFrom(field.getType())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void waitFor(List<Future<?>> futures) {
+        RuntimeException exception = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while waiting for tests", e);
+            } catch (ExecutionException e) {
+                // Test failures are reported through the notifier so this is an unexpected error of the runner:
+                if (exception == null) {
+                    exception = new RuntimeException("unexpected error while running tests", e.getCause());
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * Serializes notifications fired by many threads, as run listeners (for example those of build tools) are
+     * usually not thread safe.
+     */
+    static final class SynchronizedRunNotifier extends RunNotifier {
+        private final RunNotifier delegate;
+
+        SynchronizedRunNotifier(RunNotifier delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized void addListener(RunListener listener) {
+            delegate.addListener(listener);
+        }
+
+        @Override
+        public synchronized void addFirstListener(RunListener listener) {
+            delegate.addFirstListener(listener);
+        }
+
+        @Override
+        public synchronized void removeListener(RunListener listener) {
+            delegate.removeListener(listener);
+        }
+
+        @Override
+        public synchronized void fireTestRunStarted(Description description) {
+            delegate.fireTestRunStarted(description);
+        }
+
+        @Override
+        public synchronized void fireTestRunFinished(Result result) {
+            delegate.fireTestRunFinished(result);
+        }
+
+        @Override
+        public synchronized void fireTestStarted(Description description) throws StoppedByUserException {
+            delegate.fireTestStarted(description);
+        }
+
+        @Override
+        public synchronized void fireTestFailure(Failure failure) {
+            delegate.fireTestFailure(failure);
+        }
+
+        @Override
+        public synchronized void fireTestAssumptionFailed(Failure failure) {
+            delegate.fireTestAssumptionFailed(failure);
+        }
+
+        @Override
+        public synchronized void fireTestIgnored(Description description) {
+            delegate.fireTestIgnored(description);
+        }
+
+        @Override
+        public synchronized void fireTestFinished(Description description) {
+            delegate.fireTestFinished(description);
+        }
+
+        @Override
+        public synchronized void pleaseStop() {
+            delegate.pleaseStop();
+        }
+    }
+}
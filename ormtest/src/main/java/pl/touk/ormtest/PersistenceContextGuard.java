@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.event.AutoFlushEvent;
+import org.hibernate.event.AutoFlushEventListener;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.FlushEvent;
+import org.hibernate.event.FlushEventListener;
+import org.hibernate.event.MergeEvent;
+import org.hibernate.event.MergeEventListener;
+import org.hibernate.event.PersistEvent;
+import org.hibernate.event.PersistEventListener;
+import org.hibernate.event.PostLoadEvent;
+import org.hibernate.event.PostLoadEventListener;
+import org.hibernate.event.SaveOrUpdateEvent;
+import org.hibernate.event.SaveOrUpdateEventListener;
+import org.hibernate.event.def.DefaultAutoFlushEventListener;
+import org.hibernate.event.def.DefaultFlushEventListener;
+
+import java.util.Map;
+
+/**
+ * Hibernate event listener guarding the size of persistence contexts of threads which have started guarding. When
+ * a session of such a thread manages at least as many entities as the limit, it is flushed and cleared after the
+ * save, update, persist or merge which made it reach the limit or before the next query. The size of the
+ * persistence context is checked only between operations (never during cascades, flushes or loads), so the limit can
+ * be exceeded temporarily.
+ * <p>
+ * Registered in session factories built by the default implementation of
+ * {@link HibernateSpringTxTestRule#annotationSessionFactoryBean()} if
+ * {@link HibernateSpringTxTestRule#persistenceContextLimit()} is positive: after Hibernate's default save, update,
+ * persist, merge and post-load listeners and instead of the default flush and auto-flush listeners (to which it
+ * delegates, measuring flush durations). When the current thread doesn't guard, the listener only delegates.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class PersistenceContextGuard implements SaveOrUpdateEventListener, PersistEventListener, MergeEventListener,
+        PostLoadEventListener, FlushEventListener, AutoFlushEventListener {
+
+    private static final ThreadLocal<Counters> counters = new ThreadLocal<Counters>();
+
+    private final FlushEventListener flushListener = new DefaultFlushEventListener();
+    private final AutoFlushEventListener autoFlushListener = new DefaultAutoFlushEventListener();
+
+    /**
+     * Starts guarding persistence contexts of the current thread (discarding statistics gathered so far).
+     *
+     * @param limit number of managed entities at which sessions are flushed and cleared
+     */
+    static void start(int limit) {
+        counters.set(new Counters(limit));
+    }
+
+    /**
+     * Stops guarding persistence contexts of the current thread.
+     *
+     * @return statistics gathered since {@link #start(int)} or <code>null</code> if the thread didn't guard
+     */
+    static PersistenceContextStatistics stop() {
+        PersistenceContextStatistics statistics = getStatistics();
+        counters.remove();
+        return statistics;
+    }
+
+    /**
+     * Returns statistics gathered by the current thread so far or <code>null</code> if the thread doesn't guard.
+     */
+    static PersistenceContextStatistics getStatistics() {
+        Counters current = counters.get();
+        return current != null ? current.toStatistics() : null;
+    }
+
+    public void onSaveOrUpdate(SaveOrUpdateEvent event) throws HibernateException {
+        guard(event.getSession());
+    }
+
+    public void onPersist(PersistEvent event) throws HibernateException {
+        guard(event.getSession());
+    }
+
+    public void onPersist(PersistEvent event, Map createdAlready) throws HibernateException {
+        // Cascaded persist - the persistence context is checked after the whole operation.
+    }
+
+    public void onMerge(MergeEvent event) throws HibernateException {
+        guard(event.getSession());
+    }
+
+    public void onMerge(MergeEvent event, Map copiedAlready) throws HibernateException {
+        // Cascaded merge - the persistence context is checked after the whole operation.
+    }
+
+    public void onPostLoad(PostLoadEvent event) {
+        Counters current = counters.get();
+        if (current != null) {
+            current.recordSize(event.getSession().getPersistenceContext().getEntityEntries().size());
+        }
+    }
+
+    public void onFlush(FlushEvent event) throws HibernateException {
+        Counters current = counters.get();
+        if (current == null) {
+            flushListener.onFlush(event);
+            return;
+        }
+        long start = System.nanoTime();
+        flushListener.onFlush(event);
+        current.recordFlush(System.nanoTime() - start);
+    }
+
+    public void onAutoFlush(AutoFlushEvent event) throws HibernateException {
+        Counters current = counters.get();
+        if (current == null) {
+            autoFlushListener.onAutoFlush(event);
+            return;
+        }
+        // Executed before queries, so this is the place where loaded entities are cleared:
+        guard(event.getSession());
+        long start = System.nanoTime();
+        autoFlushListener.onAutoFlush(event);
+        if (event.isFlushRequired()) {
+            current.recordFlush(System.nanoTime() - start);
+        }
+    }
+
+    private static void guard(EventSource session) {
+        Counters current = counters.get();
+        if (current == null) {
+            return;
+        }
+        PersistenceContext persistenceContext = session.getPersistenceContext();
+        int size = persistenceContext.getEntityEntries().size();
+        current.recordSize(size);
+        if (size >= current.limit
+                && persistenceContext.getCascadeLevel() == 0
+                && !persistenceContext.isFlushing()
+                && persistenceContext.isLoadFinished()
+                // Changes of sessions which are not flushed automatically must not be written:
+                && session.getFlushMode() != FlushMode.MANUAL) {
+            session.flush();
+            session.clear();
+            current.automaticClearCount++;
+        }
+    }
+
+    private static final class Counters {
+        private final int limit;
+        private int peakManagedEntities;
+        private int automaticClearCount;
+        private int flushCount;
+        private long totalFlushNanos;
+        private long longestFlushNanos;
+
+        Counters(int limit) {
+            this.limit = limit;
+        }
+
+        void recordSize(int size) {
+            peakManagedEntities = Math.max(peakManagedEntities, size);
+        }
+
+        void recordFlush(long nanos) {
+            flushCount++;
+            totalFlushNanos += nanos;
+            longestFlushNanos = Math.max(longestFlushNanos, nanos);
+        }
+
+        PersistenceContextStatistics toStatistics() {
+            return new PersistenceContextStatistics(limit, peakManagedEntities, automaticClearCount, flushCount,
+                    totalFlushNanos, longestFlushNanos);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes of the persistence context (the first-level cache) of the Hibernate session of a single test and durations
+ * of its flushes, gathered when the persistence context is guarded (see
+ * {@link HibernateSpringTxTestRule#persistenceContextLimit()}).
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public final class PersistenceContextStatistics {
+
+    private final int limit;
+    private final int peakManagedEntities;
+    private final int automaticClearCount;
+    private final int flushCount;
+    private final long totalFlushNanos;
+    private final long longestFlushNanos;
+
+    PersistenceContextStatistics(int limit, int peakManagedEntities, int automaticClearCount, int flushCount,
+                                 long totalFlushNanos, long longestFlushNanos) {
+        this.limit = limit;
+        this.peakManagedEntities = peakManagedEntities;
+        this.automaticClearCount = automaticClearCount;
+        this.flushCount = flushCount;
+        this.totalFlushNanos = totalFlushNanos;
+        this.longestFlushNanos = longestFlushNanos;
+    }
+
+    /**
+     * Returns the number of managed entities at which the session was flushed and cleared automatically.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the largest number of entities managed by the session at once.
+     */
+    public int getPeakManagedEntities() {
+        return peakManagedEntities;
+    }
+
+    /**
+     * Returns the number of times the session was flushed and cleared because it reached the limit.
+     */
+    public int getAutomaticClearCount() {
+        return automaticClearCount;
+    }
+
+    /**
+     * Returns the number of flushes (explicit, automatic and before queries) which actually flushed the session.
+     */
+    public int getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Returns the total time (in milliseconds) of all flushes.
+     */
+    public long getTotalFlushTime() {
+        return TimeUnit.NANOSECONDS.toMillis(totalFlushNanos);
+    }
+
+    /**
+     * Returns the time (in milliseconds) of the slowest flush.
+     */
+    public long getLongestFlushTime() {
+        return TimeUnit.NANOSECONDS.toMillis(longestFlushNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "persistence context statistics: peak managed entities=" + peakManagedEntities
+                + ", limit=" + limit
+                + ", automatic clears=" + automaticClearCount
+                + ", flushes=" + flushCount
+                + ", total flush time=" + getTotalFlushTime() + "ms"
+                + ", longest flush time=" + getLongestFlushTime() + "ms";
+    }
+}
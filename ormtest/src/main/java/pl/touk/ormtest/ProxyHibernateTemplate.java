@@ -3,8 +3,13 @@ package pl.touk.ormtest;
 import org.hibernate.Filter;
 import org.hibernate.HibernateException;
 import org.hibernate.Interceptor;
+import org.hibernate.FlushMode;
 import org.hibernate.LockMode;
+import org.hibernate.Query;
 import org.hibernate.ReplicationMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.DetachedCriteria;
 import org.springframework.beans.BeansException;
@@ -15,17 +20,97 @@ import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.orm.hibernate3.HibernateTemplate;
 
 import java.io.Serializable;
+import java.sql.SQLException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
-class ProxyHibernateTemplate extends HibernateTemplate {
+/**
+ * Hibernate template returned by {@link HibernateSpringTxTestRule#getStreamingTemplate()}, delegating to the template
+ * of the current thread (and thus using its session and transaction). Besides methods of {@link HibernateTemplate}
+ * it offers {@link #scroll(String, Object[], int)} and {@link #scroll(String, Object[], int, int, ScrollCallback)},
+ * which stream query results instead of loading them into a list, so that DAOs processing large results can be
+ * tested without a lot of heap.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public class ProxyHibernateTemplate extends HibernateTemplate {
     private final ThreadLocal<HibernateTemplate> target;
 
-    public ProxyHibernateTemplate(ThreadLocal<HibernateTemplate> hibernateTemplate) {
+    ProxyHibernateTemplate(ThreadLocal<HibernateTemplate> hibernateTemplate) {
         target = hibernateTemplate;
     }
 
+    /**
+     * Executes the given HQL query in the session of the current thread and returns its results as forward-only
+     * <code>ScrollableResults</code>. Rows are fetched from the database in chunks of the given size, but entities
+     * stay in the session unless they are evicted or the session is cleared, which
+     * {@link #scroll(String, Object[], int, int, ScrollCallback)} does periodically.
+     * <p>
+     * Returned results must be closed by the caller.
+     *
+     * @param queryString HQL query
+     * @param values      values of positional parameters of the query (may be <code>null</code>)
+     * @param fetchSize   JDBC fetch size (zero to use the default of the driver)
+     * @return open results of the query
+     */
+    public ScrollableResults scroll(final String queryString, final Object[] values, final int fetchSize)
+            throws DataAccessException {
+        return (ScrollableResults) getTarget().executeWithNativeSession(new HibernateCallback() {
+            public Object doInHibernate(Session session) throws HibernateException, SQLException {
+                Query query = session.createQuery(queryString);
+                if (values != null) {
+                    for (int i = 0; i < values.length; i++) {
+                        query.setParameter(i, values[i]);
+                    }
+                }
+                if (fetchSize > 0) {
+                    query.setFetchSize(fetchSize);
+                }
+                return query.scroll(ScrollMode.FORWARD_ONLY);
+            }
+        });
+    }
+
+    /**
+     * Executes the given HQL query in the session of the current thread and passes its rows one by one to the given
+     * callback, without loading all of them into memory. Every <code>clearInterval</code> rows the session is
+     * flushed (unless its flush mode is <code>MANUAL</code>) and cleared, so processed entities can be garbage
+     * collected - the callback must not keep using them afterwards.
+     *
+     * @param queryString   HQL query
+     * @param values        values of positional parameters of the query (may be <code>null</code>)
+     * @param fetchSize     JDBC fetch size (zero to use the default of the driver)
+     * @param clearInterval number of rows after which the session is cleared (zero to never clear it)
+     * @param callback      callback processing rows
+     * @return number of processed rows
+     */
+    public int scroll(String queryString, Object[] values, int fetchSize, final int clearInterval,
+                      final ScrollCallback callback) throws DataAccessException {
+        final ScrollableResults results = scroll(queryString, values, fetchSize);
+        return (Integer) getTarget().executeWithNativeSession(new HibernateCallback() {
+            public Object doInHibernate(Session session) throws HibernateException, SQLException {
+                int count = 0;
+                try {
+                    while (results.next()) {
+                        Object[] row = results.get();
+                        callback.processRow(row.length == 1 ? row[0] : row);
+                        count++;
+                        if (clearInterval > 0 && count % clearInterval == 0) {
+                            if (session.getFlushMode() != FlushMode.MANUAL) {
+                                session.flush();
+                            }
+                            session.clear();
+                        }
+                    }
+                } finally {
+                    results.close();
+                }
+                return count;
+            }
+        });
+    }
+
     @Override
     public void saveOrUpdate(Object entity) throws DataAccessException {
         getTarget().saveOrUpdate(entity);
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.collect.ImmutableSet;
+import org.hibernate.event.PostLoadEvent;
+import org.hibernate.event.PostLoadEventListener;
+import org.junit.runner.Description;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Guards tests marked with {@link ReadOnlyTransaction} against writes. Connections obtained from data sources wrapped
+ * with {@link #guard(DataSource)} while the current thread is in read-only mode (see {@link #activate()}) refuse to
+ * prepare or execute data-modifying and schema-changing sql, regardless of whether the database honours read-only
+ * transactions. Connections obtained in other tests are not wrapped at all. The guard is also a Hibernate post-load
+ * listener (registered in session factories built by the default implementation of
+ * {@link HibernateSpringTxTestRule#annotationSessionFactoryBean()}) which makes entities loaded in read-only mode
+ * read-only.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class ReadOnlyGuard implements PostLoadEventListener {
+
+    private static final ThreadLocal<Boolean> active = new ThreadLocal<Boolean>();
+
+    private static final Set<String> WRITE_KEYWORDS = ImmutableSet.of(
+            "insert", "update", "delete", "merge", "replace", "truncate", "create", "drop", "alter");
+
+    /**
+     * Returns the {@link ReadOnlyTransaction} annotation of the described test method or, if there is none, of its
+     * class (<code>null</code> if neither is annotated).
+     */
+    static ReadOnlyTransaction find(Description description) {
+        ReadOnlyTransaction annotation = description.getAnnotation(ReadOnlyTransaction.class);
+        if (annotation == null && description.getTestClass() != null) {
+            annotation = description.getTestClass().getAnnotation(ReadOnlyTransaction.class);
+        }
+        return annotation;
+    }
+
+    /**
+     * Returns the definition of a read-only transaction with the isolation level of the given annotation.
+     */
+    static TransactionDefinition transactionDefinition(ReadOnlyTransaction annotation) {
+        DefaultTransactionDefinition definition = new DefaultTransactionDefinition();
+        definition.setReadOnly(true);
+        definition.setIsolationLevel(annotation.isolation().value());
+        return definition;
+    }
+
+    /**
+     * Puts the current thread in read-only mode.
+     */
+    static void activate() {
+        active.set(Boolean.TRUE);
+    }
+
+    static void deactivate() {
+        active.remove();
+    }
+
+    static boolean isActive() {
+        return active.get() != null;
+    }
+
+    /**
+     * Lets the current thread write (for example to load a fixture) until {@link #resume(boolean)} is invoked.
+     *
+     * @return <code>true</code> if the thread was in read-only mode
+     */
+    static boolean suspend() {
+        boolean wasActive = isActive();
+        active.remove();
+        return wasActive;
+    }
+
+    static void resume(boolean wasActive) {
+        if (wasActive) {
+            activate();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the first keyword of the given sql (after comments) modifies data or schema.
+     */
+    static boolean isWrite(String sql) {
+        int i = 0;
+        while (i < sql.length()) {
+            if (Character.isWhitespace(sql.charAt(i)) || sql.charAt(i) == '(') {
+                i++;
+            } else if (sql.startsWith("--", i)) {
+                int end = sql.indexOf('\n', i);
+                i = end != -1 ? end + 1 : sql.length();
+            } else if (sql.startsWith("/*", i)) {
+                int end = sql.indexOf("*/", i);
+                i = end != -1 ? end + 2 : sql.length();
+            } else {
+                break;
+            }
+        }
+        int end = i;
+        while (end < sql.length() && Character.isLetter(sql.charAt(end))) {
+            end++;
+        }
+        return WRITE_KEYWORDS.contains(sql.substring(i, end).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Wraps the given data source so that connections obtained from it in read-only mode refuse to write (unless the
+     * mode is suspended). Connections obtained in other modes are returned as they are.
+     */
+    static DataSource guard(DataSource dataSource) {
+        return (DataSource) Proxy.newProxyInstance(ReadOnlyGuard.class.getClassLoader(),
+                new Class[]{DataSource.class}, new DataSourceInvocationHandler(dataSource));
+    }
+
+    /**
+     * Returns the data source wrapped by {@link #guard(DataSource)} or the given data source if it is not guarded.
+     */
+    static DataSource unguard(DataSource dataSource) {
+        if (dataSource != null && Proxy.isProxyClass(dataSource.getClass())
+                && Proxy.getInvocationHandler(dataSource) instanceof DataSourceInvocationHandler) {
+            return ((DataSourceInvocationHandler) Proxy.getInvocationHandler(dataSource)).target;
+        }
+        return dataSource;
+    }
+
+    public void onPostLoad(PostLoadEvent event) {
+        if (isActive()) {
+            event.getSession().getPersistenceContext().setReadOnly(event.getEntity(), true);
+        }
+    }
+
+    private static void check(String sql) throws SQLException {
+        if (sql != null && isActive() && isWrite(sql)) {
+            throw new SQLException("writing in a read-only transaction (see @ReadOnlyTransaction): " + sql);
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class DataSourceInvocationHandler implements InvocationHandler {
+        private final DataSource target;
+
+        DataSourceInvocationHandler(DataSource target) {
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "read-only guarded " + target;
+            }
+            Object result = ReadOnlyGuard.invoke(target, method, args);
+            if (name.equals("getConnection") && isActive()) {
+                return Proxy.newProxyInstance(ReadOnlyGuard.class.getClassLoader(), new Class[]{Connection.class},
+                        new ConnectionInvocationHandler((Connection) result));
+            }
+            return result;
+        }
+    }
+
+    private static final class ConnectionInvocationHandler implements InvocationHandler {
+        private final Connection target;
+
+        ConnectionInvocationHandler(Connection target) {
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "read-only guarded " + target;
+            } else if (name.equals("prepareStatement")) {
+                check((String) args[0]);
+            }
+            Object result = ReadOnlyGuard.invoke(target, method, args);
+            if (name.equals("createStatement")) {
+                return Proxy.newProxyInstance(ReadOnlyGuard.class.getClassLoader(), new Class[]{Statement.class},
+                        new StatementInvocationHandler((Statement) result));
+            }
+            return result;
+        }
+    }
+
+    private static final class StatementInvocationHandler implements InvocationHandler {
+        private final Statement target;
+
+        StatementInvocationHandler(Statement target) {
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.startsWith("execute") || name.equals("addBatch")) {
+                if (args != null && args.length > 0 && args[0] instanceof String) {
+                    check((String) args[0]);
+                }
+            }
+            return ReadOnlyGuard.invoke(target, method, args);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.springframework.transaction.annotation.Isolation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a test method (or all test methods of a class) which only reads from the database. The rules
+ * ({@link SpringTxTestRule} subclasses and {@link HibernateSpringTxTestRule}) begin read-only transactions with the
+ * given isolation level for such tests and make them fail if they try to insert, update or delete anything (or
+ * change the schema). {@link HibernateSpringTxTestRule} also sets <code>FlushMode.MANUAL</code> on the session and
+ * makes loaded entities read-only, so Hibernate neither keeps their snapshots nor checks them for changes.
+ * <p>
+ * Fixtures can still be loaded in such tests with {@link SpringTxTestRule#loadFixture} and
+ * {@link HibernateSpringTxTestRule#bulkInsert}.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface ReadOnlyTransaction {
+
+    /**
+     * Isolation level of the transaction (the default of the database if not given).
+     */
+    Isolation isolation() default Isolation.DEFAULT;
+}
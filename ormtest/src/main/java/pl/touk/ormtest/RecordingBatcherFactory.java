@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Interceptor;
+import org.hibernate.jdbc.Batcher;
+import org.hibernate.jdbc.BatcherFactory;
+import org.hibernate.jdbc.BatchingBatcher;
+import org.hibernate.jdbc.ConnectionManager;
+import org.hibernate.jdbc.Expectation;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hibernate batcher factory (<code>hibernate.jdbc.factory_class</code>) creating batchers which record, for the
+ * current thread, which insert, update and delete statements are executed individually and which in batches (see
+ * {@link BatchStatistics}). Used by {@link HibernateSpringTxTestRule} if {@link HibernateSpringTxTestRule#jdbcBatchSize()}
+ * returns a positive number.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public class RecordingBatcherFactory implements BatcherFactory {
+
+    private static final ThreadLocal<List<String>> individualStatements = new ThreadLocal<List<String>>() {
+        @Override
+        protected List<String> initialValue() {
+            return new ArrayList<String>();
+        }
+    };
+    private static final ThreadLocal<List<Integer>> batchSizes = new ThreadLocal<List<Integer>>() {
+        @Override
+        protected List<Integer> initialValue() {
+            return new ArrayList<Integer>();
+        }
+    };
+
+    public Batcher createBatcher(ConnectionManager connectionManager, Interceptor interceptor) {
+        return new RecordingBatcher(connectionManager, interceptor);
+    }
+
+    /**
+     * Forgets statements recorded by the current thread.
+     */
+    static void reset() {
+        individualStatements.remove();
+        batchSizes.remove();
+    }
+
+    /**
+     * Returns statistics of statements recorded by the current thread since the last {@link #reset()}.
+     */
+    static BatchStatistics getStatistics() {
+        return new BatchStatistics(individualStatements.get(), batchSizes.get());
+    }
+
+    static void recordIndividualStatement(String sql) {
+        String statement = sql.trim().toLowerCase();
+        if (statement.startsWith("insert") || statement.startsWith("update") || statement.startsWith("delete")) {
+            individualStatements.get().add(sql);
+        }
+    }
+
+    static void recordBatch(int size) {
+        batchSizes.get().add(size);
+    }
+
+    private static final class RecordingBatcher extends BatchingBatcher {
+        // Number of statements added to the current batch:
+        private int pending;
+
+        RecordingBatcher(ConnectionManager connectionManager, Interceptor interceptor) {
+            super(connectionManager, interceptor);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException, HibernateException {
+            recordIndividualStatement(sql);
+            return super.prepareStatement(sql);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, boolean getGeneratedKeys)
+                throws SQLException, HibernateException {
+            recordIndividualStatement(sql);
+            return super.prepareStatement(sql, getGeneratedKeys);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, String[] columnNames)
+                throws SQLException, HibernateException {
+            recordIndividualStatement(sql);
+            return super.prepareStatement(sql, columnNames);
+        }
+
+        @Override
+        public void addToBatch(Expectation expectation) throws SQLException, HibernateException {
+            // Counted before the batch is possibly executed by BatchingBatcher:
+            pending++;
+            super.addToBatch(expectation);
+        }
+
+        @Override
+        public void abortBatch(SQLException sqle) {
+            pending = 0;
+            super.abortBatch(sqle);
+        }
+
+        @Override
+        protected void doExecuteBatch(PreparedStatement ps) throws SQLException, HibernateException {
+            if (pending > 0) {
+                recordBatch(pending);
+                pending = 0;
+            }
+            super.doExecuteBatch(ps);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A data source that keeps one physical connection to the target data source alive and hands it out again and
+ * again. The rules create one such data source per thread (see {@link SpringTxTestRule#reuseConnections()} and
+ * {@link HibernateSpringTxTestRule#reuseConnections()}), so beginning and rolling back a transaction for every test
+ * doesn't open and close a physical connection anymore.
+ * <p>
+ * Closing a connection returned by {@link #getConnection()} doesn't close the physical connection. Instead any
+ * uncommitted work is rolled back and auto-commit mode, transaction isolation and read-only flag are restored to
+ * the values the physical connection had when it was opened. If a connection is requested while the kept-alive
+ * one is still in use, a new physical connection is opened (and closed normally).
+ * <p>
+ * Numbers of physical connects and logical borrows are counted per data source and in total (see
+ * {@link #getTotalPhysicalConnections()} and {@link #getTotalLogicalConnections()}).
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public class ReusableConnectionDataSource implements DataSource, Closeable {
+
+    private static final Log log = LogFactory.getLog(ReusableConnectionDataSource.class);
+
+    private static final AtomicLong totalPhysicalConnections = new AtomicLong();
+    private static final AtomicLong totalLogicalConnections = new AtomicLong();
+
+    private final DataSource target;
+    private final AtomicLong physicalConnections = new AtomicLong();
+    private final AtomicLong logicalConnections = new AtomicLong();
+
+    // All fields below are guarded by this:
+    private Connection connection;
+    private boolean borrowed;
+    private boolean initialAutoCommit;
+    private int initialTransactionIsolation;
+    private boolean initialReadOnly;
+
+    public ReusableConnectionDataSource(DataSource target) {
+        this.target = checkNotNull(target, "target must not be null");
+    }
+
+    public DataSource getTarget() {
+        return target;
+    }
+
+    public Connection getConnection() throws SQLException {
+        logicalConnections.incrementAndGet();
+        totalLogicalConnections.incrementAndGet();
+        synchronized (this) {
+            if (!borrowed) {
+                if (connection == null || connection.isClosed()) {
+                    connection = openPhysicalConnection();
+                    initialAutoCommit = connection.getAutoCommit();
+                    initialTransactionIsolation = connection.getTransactionIsolation();
+                    initialReadOnly = connection.isReadOnly();
+                }
+                borrowed = true;
+                return createConnectionProxy(connection);
+            }
+        }
+        log.debug("kept-alive connection is in use - opening an additional one");
+        return openPhysicalConnection();
+    }
+
+    /**
+     * Returns a new physical connection - connections for other credentials are never reused.
+     */
+    public Connection getConnection(String username, String password) throws SQLException {
+        logicalConnections.incrementAndGet();
+        totalLogicalConnections.incrementAndGet();
+        physicalConnections.incrementAndGet();
+        totalPhysicalConnections.incrementAndGet();
+        return target.getConnection(username, password);
+    }
+
+    /**
+     * Closes the kept-alive physical connection (if any). The data source can still be used afterwards - a new
+     * physical connection will be opened when needed.
+     */
+    public synchronized void close() {
+        if (connection != null) {
+            closeQuietly(connection);
+            connection = null;
+            borrowed = false;
+        }
+    }
+
+    public long getPhysicalConnections() {
+        return physicalConnections.get();
+    }
+
+    public long getLogicalConnections() {
+        return logicalConnections.get();
+    }
+
+    /**
+     * Returns the number of physical connections opened by all <code>ReusableConnectionDataSource</code>s.
+     */
+    public static long getTotalPhysicalConnections() {
+        return totalPhysicalConnections.get();
+    }
+
+    /**
+     * Returns the number of connections handed out by all <code>ReusableConnectionDataSource</code>s.
+     */
+    public static long getTotalLogicalConnections() {
+        return totalLogicalConnections.get();
+    }
+
+    public static void resetTotals() {
+        totalPhysicalConnections.set(0);
+        totalLogicalConnections.set(0);
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+        return target.getLogWriter();
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        target.setLogWriter(out);
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+        target.setLoginTimeout(seconds);
+    }
+
+    public int getLoginTimeout() throws SQLException {
+        return target.getLoginTimeout();
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return (T) this;
+        }
+        return target.unwrap(iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || target.isWrapperFor(iface);
+    }
+
+    // Part of JDBC 4.1 - not annotated with @Override so that this class compiles with Java 6 too:
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("getParentLogger");
+    }
+
+    private Connection openPhysicalConnection() throws SQLException {
+        physicalConnections.incrementAndGet();
+        totalPhysicalConnections.incrementAndGet();
+        return target.getConnection();
+    }
+
+    private synchronized void release(Connection physicalConnection) {
+        if (physicalConnection != connection) {
+            // The data source has been closed in the meantime:
+            closeQuietly(physicalConnection);
+            return;
+        }
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+            }
+            if (connection.getAutoCommit() != initialAutoCommit) {
+                connection.setAutoCommit(initialAutoCommit);
+            }
+            if (connection.getTransactionIsolation() != initialTransactionIsolation) {
+                connection.setTransactionIsolation(initialTransactionIsolation);
+            }
+            if (connection.isReadOnly() != initialReadOnly) {
+                connection.setReadOnly(initialReadOnly);
+            }
+            connection.clearWarnings();
+        } catch (SQLException e) {
+            log.warn("failed to reset connection state - the connection will not be reused", e);
+            closeQuietly(connection);
+            connection = null;
+        }
+        borrowed = false;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.debug("exception while closing connection", e);
+        }
+    }
+
+    private Connection createConnectionProxy(Connection physicalConnection) {
+        return (Connection) Proxy.newProxyInstance(
+                ReusableConnectionDataSource.class.getClassLoader(),
+                new Class[]{Connection.class},
+                new ReusedConnectionInvocationHandler(physicalConnection));
+    }
+
+    private class ReusedConnectionInvocationHandler implements InvocationHandler {
+        private final Connection physicalConnection;
+        private boolean closed;
+
+        ReusedConnectionInvocationHandler(Connection physicalConnection) {
+            this.physicalConnection = physicalConnection;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "reused " + physicalConnection;
+            } else if (name.equals("isClosed")) {
+                return closed;
+            } else if (name.equals("close")) {
+                if (!closed) {
+                    closed = true;
+                    release(physicalConnection);
+                }
+                return null;
+            } else if (closed) {
+                throw new SQLException("connection has already been closed");
+            }
+            try {
+                return method.invoke(physicalConnection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+    }
+}
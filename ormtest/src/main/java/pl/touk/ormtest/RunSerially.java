@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a test class (or a suite) which must not be run in parallel with other test classes, nor may its test
+ * methods be run in parallel, by {@link ParallelSuite}. Typically needed by classes which change static
+ * configuration of the rules (for example {@link IbatisSpringTxTestRule#setSqlMapConfig(Object...)}) or share a
+ * single database between threads. Classes with {@link MysqlIbatisSpringTxTestRule} rules are treated as serial
+ * without this annotation.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface RunSerially {
+}
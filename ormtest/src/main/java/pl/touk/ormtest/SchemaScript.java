@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.dialect.Dialect;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Drop and create DDL statements of a Hibernate mapping, generated once for every mapping and dialect and applied
+ * directly to databases instead of running Hibernate's schema export every time a session factory is built.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class SchemaScript {
+
+    private static final Log log = LogFactory.getLog(SchemaScript.class);
+
+    private static final Cache<String, SchemaScript> scripts = CacheBuilder.newBuilder().build();
+
+    private final String[] dropStatements;
+    private final String[] createStatements;
+
+    SchemaScript(String[] dropStatements, String[] createStatements) {
+        this.dropStatements = dropStatements.clone();
+        this.createStatements = createStatements.clone();
+    }
+
+    /**
+     * Returns the script cached for the given mapping fingerprint and dialect, generating it from the given
+     * configuration (which must have its mappings built) if there is none.
+     */
+    static SchemaScript get(String mappingFingerprint, final Configuration configuration, final Dialect dialect) {
+        try {
+            return scripts.get(mappingFingerprint + "|" + dialect.getClass().getName(), new Callable<SchemaScript>() {
+                public SchemaScript call() {
+                    return new SchemaScript(
+                            configuration.generateDropSchemaScript(dialect),
+                            configuration.generateSchemaCreationScript(dialect));
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException("failed to generate schema script", e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw new RuntimeException("failed to generate schema script", e.getCause());
+        }
+    }
+
+    static long size() {
+        return scripts.size();
+    }
+
+    static void clear() {
+        scripts.invalidateAll();
+    }
+
+    /**
+     * Drops (like Hibernate's schema export, ignoring failures as the schema may not exist yet) and creates the
+     * schema in the database behind the given data source.
+     */
+    void apply(DataSource dataSource) {
+        new JdbcTemplate(dataSource).execute(new ConnectionCallback() {
+            public Object doInConnection(Connection con) throws SQLException {
+                Statement statement = con.createStatement();
+                try {
+                    for (String drop : dropStatements) {
+                        try {
+                            statement.executeUpdate(drop);
+                        } catch (SQLException e) {
+                            log.debug("unsuccessful: " + drop + ": " + e.getMessage());
+                        }
+                    }
+                    for (String create : createStatements) {
+                        statement.executeUpdate(create);
+                    }
+                } finally {
+                    statement.close();
+                }
+                if (!con.getAutoCommit()) {
+                    con.commit();
+                }
+                return null;
+            }
+        });
+    }
+
+    String[] getDropStatements() {
+        return dropStatements.clone();
+    }
+
+    String[] getCreateStatements() {
+        return createStatements.clone();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.EntityMode;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.tool.hbm2ddl.DatabaseMetadata;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Validation of database schemas against Hibernate mappings (what <code>hibernate.hbm2ddl.auto=validate</code>
+ * does) remembered in the {@link CacheDirectory}, so that a schema is validated again only when entity classes or
+ * the schema change. Schema changes are detected with a single pass over the columns of the database instead of
+ * reading metadata of every table.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class SchemaValidation {
+
+    private static final Log log = LogFactory.getLog(SchemaValidation.class);
+
+    private static final String DIRECTORY = "validated-schemas";
+
+    private SchemaValidation() {
+    }
+
+    /**
+     * Validates the schema of the database behind the given data source against the mapping of the given session
+     * factory, unless the same mapping has already been successfully validated against the same schema.
+     *
+     * @param url        url of the database (<code>null</code> if unknown)
+     * @param properties Hibernate properties of the session factory
+     * @throws org.hibernate.HibernateException if the schema is not valid
+     */
+    static void validate(final Configuration configuration, final Dialect dialect, SessionFactory sessionFactory,
+                         DataSource dataSource, String url, Properties properties) {
+        final String mappingFingerprint = mappingFingerprint(sessionFactory, properties) + "|" + url;
+        new JdbcTemplate(dataSource).execute(new ConnectionCallback() {
+            public Object doInConnection(Connection con) throws SQLException {
+                File marker = marker(mappingFingerprint, schemaFingerprint(con));
+                if (marker.exists()) {
+                    log.info("schema already validated: " + marker.getName());
+                    return null;
+                }
+                configuration.validateSchema(dialect, new DatabaseMetadata(con, dialect));
+                try {
+                    marker.createNewFile();
+                } catch (IOException e) {
+                    log.warn("can't remember validation of schema in " + marker, e);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns a fingerprint of all columns (with their types, sizes and nullability) visible through the given
+     * connection.
+     */
+    static String schemaFingerprint(Connection con) throws SQLException {
+        Hasher hasher = Hashing.sha1().newHasher();
+        ResultSet columns = con.getMetaData().getColumns(con.getCatalog(), null, "%", "%");
+        try {
+            while (columns.next()) {
+                for (String column : new String[]{"TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME", "TYPE_NAME",
+                        "COLUMN_SIZE", "DECIMAL_DIGITS", "NULLABLE"}) {
+                    hasher.putUnencodedChars(String.valueOf(columns.getString(column))).putByte((byte) 0);
+                }
+            }
+        } finally {
+            columns.close();
+        }
+        return hasher.hash().toString();
+    }
+
+    private static String mappingFingerprint(SessionFactory sessionFactory, Properties properties) {
+        List<Class> entityClasses = new ArrayList<Class>();
+        for (Object metadata : sessionFactory.getAllClassMetadata().values()) {
+            Class mappedClass = ((ClassMetadata) metadata).getMappedClass(EntityMode.POJO);
+            if (mappedClass != null) {
+                entityClasses.add(mappedClass);
+            }
+        }
+        return MappingCache.key(entityClasses.toArray(new Class[entityClasses.size()]), properties);
+    }
+
+    private static File marker(String mappingFingerprint, String schemaFingerprint) {
+        return new File(CacheDirectory.directory(DIRECTORY), Hashing.sha1().newHasher()
+                .putUnencodedChars(mappingFingerprint).putByte((byte) 0).putUnencodedChars(schemaFingerprint)
+                .hash().toString());
+    }
+}
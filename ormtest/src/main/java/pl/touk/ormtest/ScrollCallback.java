@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+/**
+ * Callback processing rows of a query result one by one, used by
+ * {@link ProxyHibernateTemplate#scroll(String, Object[], int, int, ScrollCallback)}.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public interface ScrollCallback {
+
+    /**
+     * Processes a single row.
+     *
+     * @param row the only element of the row (usually an entity) or an <code>Object[]</code> if the query returns
+     *            more than one element per row
+     */
+    void processRow(Object row);
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Session factories of a single thread keyed by fingerprints of their configuration, so that a thread moving
+ * between test classes with equal configuration doesn't have to build a new session factory. The least recently
+ * used factories are closed when the cache is full. Not thread safe - every thread has its own cache.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class SessionFactoryCache {
+
+    private static final Log log = LogFactory.getLog(SessionFactoryCache.class);
+
+    // In access order so that the first entry is the least recently used one:
+    private final LinkedHashMap<String, CachedSessionFactory> factories =
+            new LinkedHashMap<String, CachedSessionFactory>(16, 0.75f, true);
+
+    CachedSessionFactory get(String fingerprint) {
+        return factories.get(fingerprint);
+    }
+
+    void put(String fingerprint, CachedSessionFactory factory) {
+        factories.put(fingerprint, factory);
+    }
+
+    CachedSessionFactory remove(String fingerprint) {
+        return factories.remove(fingerprint);
+    }
+
+    /**
+     * Returns a copy of the cache's contents from the least to the most recently used factory.
+     */
+    Map<String, CachedSessionFactory> toMap() {
+        return new LinkedHashMap<String, CachedSessionFactory>(factories);
+    }
+
+    /**
+     * Closes the least recently used factories so that at most <code>maxSize - 1</code> factories remain. Invoked
+     * before building a new factory, as closing a factory may drop its schema (<code>create-drop</code>) which the
+     * new factory could share.
+     *
+     * @return closed factories
+     */
+    List<CachedSessionFactory> makeRoomForOneMore(int maxSize) {
+        List<CachedSessionFactory> closed = new ArrayList<CachedSessionFactory>();
+        for (Iterator<Map.Entry<String, CachedSessionFactory>> i = factories.entrySet().iterator();
+             i.hasNext() && factories.size() >= maxSize; ) {
+            Map.Entry<String, CachedSessionFactory> eldest = i.next();
+            log.debug("closing least recently used session factory " + eldest.getKey());
+            i.remove();
+            eldest.getValue().close();
+            closed.add(eldest.getValue());
+        }
+        return closed;
+    }
+
+    int size() {
+        return factories.size();
+    }
+
+    /**
+     * Closes and removes all factories.
+     *
+     * @return closed factories
+     */
+    List<CachedSessionFactory> clear() {
+        List<CachedSessionFactory> closed = new ArrayList<CachedSessionFactory>(factories.values());
+        for (CachedSessionFactory factory : closed) {
+            factory.close();
+        }
+        factories.clear();
+        return closed;
+    }
+}
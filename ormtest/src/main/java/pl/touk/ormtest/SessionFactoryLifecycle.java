@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Keeps track of session factories built by {@link HibernateSpringTxTestRule} for single threads (see
+ * {@link HibernateSpringTxTestRule#setSessionFactoryCacheSize(int)}) and closes them when they are no longer needed:
+ * <ul>
+ * <li>factories of threads which have ended are closed the next time any thread builds a factory,</li>
+ * <li>if the number of live factories reaches {@link #getMaxSessionFactories()}, the least recently used factories
+ * not used by their threads at the moment are closed; factories of other live threads are only marked, and closed
+ * by their own threads (instead of being used again) the next time those threads need a factory.</li>
+ * </ul>
+ * Threads are referenced weakly, so a finished thread is not kept in memory until its factories are closed.
+ * When the last factory using an in-memory HSQLDB or H2 database is closed, the database is shut down so that its
+ * memory is freed.
+ * <p>
+ * If {@link #setMeasureHeap(boolean) enabled}, the heap retained by every factory is approximated (by measuring
+ * used heap, after garbage collection, before and after the factory is built) and included in {@link #report()}.
+ * Session factories shared by all threads (see {@link HibernateSpringTxTestRule#shareSessionFactory()}) are not
+ * limited, but they are closed (together with per-thread factories) by {@link #closeAll()}.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public final class SessionFactoryLifecycle {
+
+    private static final Log log = LogFactory.getLog(SessionFactoryLifecycle.class);
+
+    static final String MAX_SESSION_FACTORIES_PROPERTY = "ormtest.maxSessionFactories";
+    static final String MEASURE_HEAP_PROPERTY = "ormtest.measureSessionFactoryHeap";
+
+    private static volatile int maxSessionFactories = Integer.getInteger(MAX_SESSION_FACTORIES_PROPERTY, 0);
+    private static volatile boolean measureHeap = Boolean.getBoolean(MEASURE_HEAP_PROPERTY);
+
+    // Session factories shared by all threads (keyed by fingerprints which don't include database urls):
+    private static final Cache<String, CachedSessionFactory> sharedFactories = CacheBuilder.newBuilder().build();
+
+    private static final Object lock = new Object();
+    // All fields below are guarded by lock:
+    private static final List<ThreadFactories> threads = new ArrayList<ThreadFactories>();
+    private static long useCounter;
+
+    private SessionFactoryLifecycle() {
+    }
+
+    /**
+     * Sets the maximum number of live session factories (of all threads). Zero (the default, which can also be
+     * changed through the <code>ormtest.maxSessionFactories</code> system property) means no limit. The limit is
+     * exceeded only if all live factories are in use.
+     *
+     * @param max maximum number of live session factories (must not be negative)
+     */
+    public static void setMaxSessionFactories(int max) {
+        Preconditions.checkArgument(max >= 0, "max must not be negative but is %s", max);
+        maxSessionFactories = max;
+    }
+
+    public static int getMaxSessionFactories() {
+        return maxSessionFactories;
+    }
+
+    /**
+     * Enables approximating the heap retained by every session factory built from now on. Measuring forces garbage
+     * collection before and after building every factory so it is disabled by default. It can also be enabled
+     * through the <code>ormtest.measureSessionFactoryHeap</code> system property.
+     */
+    public static void setMeasureHeap(boolean measureHeap) {
+        SessionFactoryLifecycle.measureHeap = measureHeap;
+    }
+
+    public static boolean isMeasureHeap() {
+        return measureHeap;
+    }
+
+    /**
+     * Returns the number of live session factories of all threads.
+     */
+    public static int getLiveSessionFactories() {
+        synchronized (lock) {
+            int live = 0;
+            for (ThreadFactories owner : threads) {
+                live += owner.cache.size();
+            }
+            return live;
+        }
+    }
+
+    /**
+     * Returns a description of all live session factories: their threads, databases, whether they are in use and
+     * (if measured) the approximate heap they retain.
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        long total = 0;
+        int live = 0;
+        synchronized (lock) {
+            for (ThreadFactories owner : threads) {
+                for (Map.Entry<String, CachedSessionFactory> entry : owner.cache.toMap().entrySet()) {
+                    CachedSessionFactory factory = entry.getValue();
+                    live++;
+                    report.append(owner.threadName).append(": ").append(entry.getKey())
+                            .append(", url: ").append(factory.getUrl())
+                            .append(factory.isInUse() ? ", in use" : ", idle")
+                            .append(factory.isCloseRequested() ? " (to be closed)" : "");
+                    if (factory.getRetainedHeap() >= 0) {
+                        total += factory.getRetainedHeap();
+                        report.append(", ~").append(factory.getRetainedHeap() / 1024).append(" KB");
+                    }
+                    report.append('\n');
+                }
+            }
+        }
+        report.append(live).append(" live session factories");
+        if (measureHeap) {
+            report.append(", ~").append(total / 1024).append(" KB retained");
+        }
+        return report.toString();
+    }
+
+    /**
+     * Closes all session factories of all threads which are not in use and shuts down their in-memory databases.
+     * Closes session factories shared by all threads and objects kept in the {@link WarmPool} too (see
+     * {@link WarmPool#drain()}). Can be invoked for example from an <code>&#64;AfterClass</code> method of a suite,
+     * when no tests are running.
+     */
+    public static void closeAll() {
+        WarmPool.drain();
+        for (Map.Entry<String, CachedSessionFactory> entry : sharedFactories.asMap().entrySet()) {
+            log.debug("closing shared session factory " + entry.getKey());
+            sharedFactories.invalidate(entry.getKey());
+            entry.getValue().close();
+        }
+        synchronized (lock) {
+            List<CachedSessionFactory> closed = new ArrayList<CachedSessionFactory>();
+            for (Iterator<ThreadFactories> i = threads.iterator(); i.hasNext(); ) {
+                ThreadFactories owner = i.next();
+                for (Map.Entry<String, CachedSessionFactory> entry : owner.cache.toMap().entrySet()) {
+                    if (!entry.getValue().isInUse()) {
+                        owner.cache.remove(entry.getKey());
+                        entry.getValue().close();
+                        closed.add(entry.getValue());
+                    }
+                }
+                if (owner.isDead()) {
+                    i.remove();
+                }
+            }
+            shutdownUnusedDatabases(closed);
+        }
+    }
+
+    /**
+     * Returns the session factory shared by all threads with the given fingerprint, building it with the given
+     * builder if there is none (only once, even if several threads need the factory at the same time).
+     *
+     * @throws ExecutionException if the builder has thrown a checked exception
+     */
+    static CachedSessionFactory getShared(String fingerprint, Callable<CachedSessionFactory> builder)
+            throws ExecutionException {
+        return sharedFactories.get(fingerprint, builder);
+    }
+
+    /**
+     * Makes shared session factories forget the data source of the current thread, so that the data source is
+     * obtained again (for example from the rule of another test class) the next time the thread uses them.
+     */
+    static void releaseSharedDataSources() {
+        for (CachedSessionFactory factory : sharedFactories.asMap().values()) {
+            if (factory.getSessionFactoryBean() != null
+                    && factory.getSessionFactoryBean().getDataSource() instanceof ThreadRoutingDataSource) {
+                ((ThreadRoutingDataSource) factory.getSessionFactoryBean().getDataSource()).release();
+            }
+        }
+    }
+
+    /**
+     * Returns the factory with the given fingerprint built by the current thread (marking it as in use) or
+     * <code>null</code> if there is none or another thread has requested closing it (in which case it is closed by
+     * the following {@link #makeRoomForOneMore(int)}).
+     */
+    static CachedSessionFactory acquire(String fingerprint) {
+        synchronized (lock) {
+            ThreadFactories owner = find(Thread.currentThread());
+            CachedSessionFactory factory = owner != null ? owner.cache.get(fingerprint) : null;
+            if (factory == null || factory.isCloseRequested()) {
+                return null;
+            }
+            markUsed(factory);
+            return factory;
+        }
+    }
+
+    /**
+     * Marks all factories of the current thread as not in use (so that they can be closed to respect
+     * {@link #getMaxSessionFactories()}).
+     */
+    static void releaseAll() {
+        synchronized (lock) {
+            ThreadFactories owner = find(Thread.currentThread());
+            if (owner != null) {
+                for (CachedSessionFactory factory : owner.cache.toMap().values()) {
+                    factory.setInUse(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes factories which are no longer needed before the current thread builds a new one: factories of ended
+     * threads, factories of the current thread which other threads requested to close, the least recently used
+     * factories of the current thread (so that it keeps at most <code>maxPerThread - 1</code> factories) and the
+     * least recently used idle factories (so that at most <code>{@link #getMaxSessionFactories()} - 1</code>
+     * factories are alive or requested to be closed). Factories of other live threads are not closed here, as the
+     * threads may be about to use them, but only requested to be closed.
+     */
+    static void makeRoomForOneMore(int maxPerThread) {
+        synchronized (lock) {
+            List<CachedSessionFactory> closed = new ArrayList<CachedSessionFactory>();
+            for (Iterator<ThreadFactories> i = threads.iterator(); i.hasNext(); ) {
+                ThreadFactories owner = i.next();
+                if (owner.isDead()) {
+                    log.debug("closing session factories of ended thread " + owner.threadName);
+                    closed.addAll(owner.cache.clear());
+                    i.remove();
+                }
+            }
+            ThreadFactories current = find(Thread.currentThread());
+            if (current != null) {
+                for (Map.Entry<String, CachedSessionFactory> entry : current.cache.toMap().entrySet()) {
+                    if (entry.getValue().isCloseRequested()) {
+                        log.debug("closing session factory " + entry.getKey() + " as requested by another thread");
+                        current.cache.remove(entry.getKey());
+                        entry.getValue().close();
+                        closed.add(entry.getValue());
+                    }
+                }
+                closed.addAll(current.cache.makeRoomForOneMore(maxPerThread));
+            }
+            int max = maxSessionFactories;
+            while (max > 0 && countNotRequestedToClose() >= max) {
+                if (!closeLeastRecentlyUsedIdle(closed)) {
+                    log.warn("all " + countNotRequestedToClose() + " live session factories are in use - " +
+                            "exceeding the limit of " + max);
+                    break;
+                }
+            }
+            shutdownUnusedDatabases(closed);
+        }
+    }
+
+    /**
+     * Adds a factory built (or taken from the {@link WarmPool}) by the current thread, marking it as in use.
+     */
+    static void register(String fingerprint, CachedSessionFactory factory) {
+        synchronized (lock) {
+            ThreadFactories owner = find(Thread.currentThread());
+            if (owner == null) {
+                owner = new ThreadFactories(Thread.currentThread());
+                threads.add(owner);
+            }
+            owner.cache.put(fingerprint, factory);
+            markUsed(factory);
+        }
+    }
+
+    /**
+     * Returns the used heap (after garbage collection) if heap is measured, <code>-1</code> otherwise.
+     */
+    static long usedHeap() {
+        if (!measureHeap) {
+            return -1;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Returns the heap retained since {@link #usedHeap()} returned the given value (or <code>-1</code> if heap is
+     * not measured).
+     */
+    static long retainedSince(long usedHeap) {
+        return usedHeap < 0 ? -1 : Math.max(0, usedHeap() - usedHeap);
+    }
+
+    private static void markUsed(CachedSessionFactory factory) {
+        factory.setInUse(true);
+        factory.setLastUsed(++useCounter);
+    }
+
+    private static ThreadFactories find(Thread thread) {
+        for (ThreadFactories owner : threads) {
+            if (owner.thread.get() == thread) {
+                return owner;
+            }
+        }
+        return null;
+    }
+
+    private static int countNotRequestedToClose() {
+        int count = 0;
+        for (ThreadFactories owner : threads) {
+            for (CachedSessionFactory factory : owner.cache.toMap().values()) {
+                if (!factory.isCloseRequested()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the least recently used idle factory (not requested to be closed yet) if it belongs to the current or
+     * to an ended thread, or requests its thread to close it otherwise.
+     *
+     * @param closed list to which the factory is added if it is closed
+     * @return <code>false</code> if all factories are in use or requested to be closed
+     */
+    private static boolean closeLeastRecentlyUsedIdle(List<CachedSessionFactory> closed) {
+        ThreadFactories lruOwner = null;
+        String lruFingerprint = null;
+        CachedSessionFactory lru = null;
+        for (ThreadFactories owner : threads) {
+            for (Map.Entry<String, CachedSessionFactory> entry : owner.cache.toMap().entrySet()) {
+                CachedSessionFactory factory = entry.getValue();
+                if (!factory.isInUse() && !factory.isCloseRequested()
+                        && (lru == null || factory.getLastUsed() < lru.getLastUsed())) {
+                    lruOwner = owner;
+                    lruFingerprint = entry.getKey();
+                    lru = factory;
+                }
+            }
+        }
+        if (lru == null) {
+            return false;
+        }
+        if (lruOwner.thread.get() == Thread.currentThread() || lruOwner.isDead()) {
+            lruOwner.cache.remove(lruFingerprint);
+            lru.close();
+            closed.add(lru);
+        } else {
+            log.debug("requesting thread " + lruOwner.threadName + " to close session factory " + lruFingerprint);
+            lru.setCloseRequested(true);
+        }
+        return true;
+    }
+
+    /**
+     * Closes a factory which has never been registered (for example one built by the {@link WarmPool} but not
+     * handed to any thread) and shuts down its in-memory database unless it is used by a live factory.
+     */
+    static void closeUnused(CachedSessionFactory factory) {
+        factory.close();
+        synchronized (lock) {
+            shutdownUnusedDatabases(Collections.singletonList(factory));
+        }
+    }
+
+    /**
+     * Shuts down in-memory databases of the given (closed) factories which are not used by any live factory.
+     */
+    private static void shutdownUnusedDatabases(List<CachedSessionFactory> closed) {
+        Set<String> shutDown = new HashSet<String>();
+        for (CachedSessionFactory factory : closed) {
+            if (factory.hasInMemoryDatabase() && !isDatabaseUsed(factory.getUrl()) && shutDown.add(factory.getUrl())) {
+                log.debug("shutting down database " + factory.getUrl());
+                factory.shutdownDatabase();
+            }
+        }
+    }
+
+    private static boolean isDatabaseUsed(String url) {
+        for (ThreadFactories owner : threads) {
+            for (CachedSessionFactory factory : owner.cache.toMap().values()) {
+                if (url.equals(factory.getUrl())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Session factories of a single thread.
+     */
+    private static final class ThreadFactories {
+        // Weak so that finished threads can be garbage collected before their factories are closed:
+        final WeakReference<Thread> thread;
+        final String threadName;
+        final SessionFactoryCache cache = new SessionFactoryCache();
+
+        ThreadFactories(Thread thread) {
+            this.thread = new WeakReference<Thread>(thread);
+            this.threadName = thread.getName();
+        }
+
+        boolean isDead() {
+            Thread t = thread.get();
+            return t == null || !t.isAlive();
+        }
+    }
+}
@@ -4,28 +4,44 @@
  */
 package pl.touk.ormtest;
 
+import com.google.common.base.Preconditions;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.h2.engine.Mode;
 import org.junit.rules.TestRule;
 import org.junit.runner.Description;
-import org.junit.runner.RunWith;
-import org.junit.runners.Suite;
 import org.junit.runners.model.Statement;
-import org.springframework.core.annotation.AnnotationUtils;
-import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
 import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 
 import javax.sql.DataSource;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 /**
  * Base abstract class for JUnit 4.9+ testing of Jdbc and Ibatis Spring-based DAOs.
+ * <p>
+ * Everything the rule creates for a thread (transaction, transaction manager, templates) is kept in a per-thread
+ * context. Contexts don't keep their threads alive and are dropped automatically when their threads die, so
+ * long test runs on frequently recycled worker threads keep a flat heap. The maximum number of live contexts
+ * can be changed through {@link #setMaxThreadContexts(int)} or the <code>ormtest.maxThreadContexts</code>
+ * system property.
+ * <p>
+ * Fixtures should be loaded with {@link #loadFixture(String...)} instead of executing sql scripts in every
+ * <code>&#64;Before</code> method: a fixture is loaded (and committed) only once per thread database and then
+ * restored from an in-memory snapshot only after a test committed changes.
+ * <p>
+ * Contexts can be built in background before threads need them - see {@link WarmPool}.
+ * <p>
+ * Tests annotated with {@link ReadOnlyTransaction} run in read-only transactions and fail if they write.
  *
  * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
  */
@@ -33,78 +49,73 @@ abstract public class SpringTxTestRule implements TestRule {
 
     private static final Log log = LogFactory.getLog(SpringTxTestRule.class);
 
-    protected final static ConcurrentMap<Thread, TransactionStatus> txStatuses =
-            new ConcurrentHashMap<Thread, TransactionStatus>();
-    protected final static ConcurrentMap<Thread, DataSourceTransactionManager> txManagers =
-            new ConcurrentHashMap<Thread, DataSourceTransactionManager>();
-    protected final static ConcurrentMap<String, Set<Thread>> threadsPerTestClass =
-            new ConcurrentHashMap<String, Set<Thread>>();
+    static final String REUSE_CONNECTIONS_PROPERTY = "ormtest.reuseConnections";
+    static final String TEMPLATE_DATABASE_PROPERTY = "ormtest.templateDatabase";
+    static final String LAZY_TRANSACTION_START_PROPERTY = "ormtest.lazyTransactionStart";
+
+    // Rule classes overriding dataSource():
+    private static final ConcurrentMap<Class<?>, Boolean> customDataSource = new ConcurrentHashMap<Class<?>, Boolean>();
 
     private final String h2ModeOption;
 
+    // Definition of transactions of the current test (null for the default read-write transactions):
+    private TransactionDefinition transactionDefinition;
+
     public SpringTxTestRule() {
         this(null);
     }
 
     public SpringTxTestRule(String h2Mode) {
-        String invokerClassName = findInvokingTestClass().getName();
-        threadsPerTestClass.putIfAbsent(invokerClassName, new HashSet<Thread>());
-        threadsPerTestClass.get(invokerClassName).add(Thread.currentThread());
         this.h2ModeOption = getH2ModeOption(h2Mode);
     }
 
+    /**
+     * Returns the first class on the current call stack which is not a <code>SpringTxTestRule</code>. Only the
+     * frames up to that class are inspected and resolved classes are cached, so this method is cheap enough to
+     * be called from <code>&#64;AfterClass</code> methods of every test class.
+     *
+     * @return the class which invoked a <code>SpringTxTestRule</code> method (or constructor)
+     */
     public static Class findInvokingTestClass() {
-        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-        int indexOfStackTraceElementCorrespondingToCurrentMethod = 1;
-        for (int i = indexOfStackTraceElementCorrespondingToCurrentMethod; i < stackTrace.length; i++) {
-            StackTraceElement el = stackTrace[i];
-            Class classOfElement = getStackTraceElementClass(el);
-            if (!SpringTxTestRule.class.isAssignableFrom(classOfElement)) {
-                return classOfElement;
-            }
-        }
-        throw new RuntimeException("first test class name not found");
+        return CallerLookup.findFirstCallerNotAssignableTo(SpringTxTestRule.class);
     }
 
     protected static Set<Thread> getThreads(Class testClassOrSuiteClass) {
-        Set<Thread> threads = new HashSet<Thread>();
-        for (Class c: getTestClasses(testClassOrSuiteClass)) {
-            if (threadsPerTestClass.get(c.getName()) != null) {
-                threads.addAll(threadsPerTestClass.get(c.getName()));
-            }
-        }
-        return threads;
+        return ThreadContextRegistry.getThreads(testClassOrSuiteClass);
     }
 
-    private static Set<Class> getTestClasses(Class testClassOrSuiteClass) {
-        HashSet<Class> testClasses = new HashSet<Class>();
-        RunWith annotation = AnnotationUtils.findAnnotation(testClassOrSuiteClass, RunWith.class);
-        if (annotation != null && Suite.class.isAssignableFrom(annotation.value())) {
-            Suite.SuiteClasses suiteClasses =
-                    AnnotationUtils.findAnnotation(testClassOrSuiteClass, Suite.SuiteClasses.class);
-            if (suiteClasses != null) {
-                if (suiteClasses.value() != null && suiteClasses.value().length > 0) {
-                    testClasses.addAll(Arrays.asList(suiteClasses.value()));
-                }
-                return testClasses;
-            }
-        }
-        testClasses.add(testClassOrSuiteClass);
-        return testClasses;
+    /**
+     * Drops contexts (transactions, transaction managers and templates) of all threads that executed tests of the
+     * given test class (or of any class of the given suite).
+     */
+    protected static void resetThreads(Class testClassOrSuiteClass) {
+        ThreadContextRegistry.remove(getThreads(testClassOrSuiteClass));
     }
 
-    private static Class getStackTraceElementClass(StackTraceElement el) {
-        try {
-            return Class.forName(el.getClassName());
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Sets the maximum number of per-thread contexts kept at the same time. When the limit is reached the least
+     * recently used contexts that are not in the middle of a transaction are dropped.
+     *
+     * @param maxThreadContexts maximum number of live per-thread contexts (must be positive)
+     */
+    public static void setMaxThreadContexts(int maxThreadContexts) {
+        ThreadContextRegistry.setMaxSize(maxThreadContexts);
+    }
+
+    public static int getMaxThreadContexts() {
+        return ThreadContextRegistry.getMaxSize();
     }
 
     /**
      * Can be overridden in subclasses and should return a data source. The default implementation of this method
      * returns a data source for in-memory H2 database. This method retuns different data sources if it is invoked
-     * in different threads (database name contains hash code of the current thread).
+     * in different threads (database name contains hash code of the current thread or, if the thread's context was
+     * built in background by the {@link WarmPool}, a unique number of the pooled database - see
+     * {@link #databaseName()}).
+     * <p>
+     * Contexts of rules overriding this method are not built in background unless {@link #useWarmPool()} is
+     * overridden too, because a pooled context is isolated only if its data source is named after
+     * {@link #databaseName()} (and not, for example, after the current thread, which is a background builder).
      *
      * @return data source to be used during tests
      */
@@ -113,7 +124,7 @@ abstract public class SpringTxTestRule implements TestRule {
 
         ds.setDriverClassName("org.h2.Driver");
         // If tests are run in parallel, then each thread should have its own database:
-        ds.setUrl("jdbc:h2:mem:db" + Thread.currentThread().hashCode() +
+        ds.setUrl("jdbc:h2:mem:" + databaseName() +
                 ";DB_CLOSE_DELAY=-1;AUTOCOMMIT=OFF" + h2ModeOption);
         ds.setUsername("sa");
         ds.setPassword("");
@@ -123,6 +134,190 @@ abstract public class SpringTxTestRule implements TestRule {
         return ds;
     }
 
+    /**
+     * Can be overridden in subclasses and should return <code>true</code> if a single physical connection to the
+     * data source returned by {@link #dataSource()} should be kept alive for every thread and reused by all its
+     * transactions (see {@link ReusableConnectionDataSource}). Otherwise every transaction opens and closes its
+     * own physical connection.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.reuseConnections</code> system property
+     * (<code>false</code> if the property is not set).
+     *
+     * @return <code>true</code> if connections should be reused
+     */
+    protected boolean reuseConnections() {
+        return Boolean.getBoolean(REUSE_CONNECTIONS_PROPERTY);
+    }
+
+    /**
+     * Returns the name of the database of the current thread's context: a name based on the hash code of the thread
+     * or, for contexts built in background by the {@link WarmPool}, a unique name of the pooled database. Overrides
+     * of {@link #dataSource()} should include it in urls of per-thread databases.
+     *
+     * @return name of the database of the current thread
+     */
+    protected final String databaseName() {
+        return context().getDatabaseName();
+    }
+
+    /**
+     * Can be overridden in subclasses and should return <code>true</code> if thread contexts of this rule can be built
+     * in background by the {@link WarmPool} (if it is enabled), i.e. if {@link #dataSource()} returns data sources of
+     * databases named after {@link #databaseName()}.
+     * <p>
+     * The default implementation returns <code>true</code> unless {@link #dataSource()} is overridden.
+     *
+     * @return <code>true</code> if contexts of this rule can be pooled
+     */
+    protected boolean useWarmPool() {
+        Class<?> ruleClass = getClass();
+        Boolean custom = customDataSource.get(ruleClass);
+        if (custom == null) {
+            custom = false;
+            for (Class<?> c = ruleClass; c != SpringTxTestRule.class; c = c.getSuperclass()) {
+                for (Method method : c.getDeclaredMethods()) {
+                    if (method.getParameterTypes().length == 0 && method.getName().equals("dataSource")) {
+                        custom = true;
+                    }
+                }
+            }
+            customDataSource.put(ruleClass, custom);
+        }
+        return !custom;
+    }
+
+    /**
+     * Can be overridden in subclasses and should return <code>true</code> if fixtures loaded with
+     * {@link #loadFixture} should be built only once per JVM in a template database and copied from there into
+     * databases of all threads (see {@link #loadFixture(org.springframework.core.io.Resource...)}). Adding threads
+     * then adds almost nothing to the fixture setup time. Applies only to H2 databases.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.templateDatabase</code> system property
+     * (<code>false</code> if the property is not set).
+     *
+     * @return <code>true</code> if fixtures should be copied from template databases
+     */
+    protected boolean useTemplateDatabase() {
+        return Boolean.getBoolean(TEMPLATE_DATABASE_PROPERTY);
+    }
+
+    /**
+     * Can be overridden in subclasses and should return <code>true</code> if transactions of tests should start in
+     * the database only when tests actually use it. Transactions are still begun before every test, but their
+     * connections are lazy proxies: the physical connection is fetched (and the transaction started in the
+     * database) when the first statement is created, and a transaction which has never used its connection is
+     * rolled back without touching the database. Templates don't read database metadata until a statement fails
+     * (Spring's default) and the data source itself (see {@link #dataSource()}) is created when the first
+     * physical connection is needed, so for example {@link MysqlIbatisSpringTxTestRule} doesn't start mysql until
+     * a test uses the database. Tests which never issue sql (for example tests of validation logic in
+     * DAO classes) then cost nothing more than tests without the rule.
+     * <p>
+     * The default implementation returns the value of the <code>ormtest.lazyTransactionStart</code> system property
+     * (<code>false</code> if the property is not set).
+     *
+     * @return <code>true</code> if transactions should start in the database lazily
+     */
+    protected boolean lazyTransactionStart() {
+        return Boolean.getBoolean(LAZY_TRANSACTION_START_PROPERTY);
+    }
+
+    /**
+     * Returns the data source to be used by templates and the transaction manager of the current thread: the one
+     * returned by {@link #dataSource()}, guarded against writes in tests annotated with {@link ReadOnlyTransaction}
+     * and wrapped in a {@link ReusableConnectionDataSource} if {@link #reuseConnections()} returns <code>true</code>.
+     * If {@link #lazyTransactionStart()} returns <code>true</code>, the data source is wrapped in a
+     * <code>LazyConnectionDataSourceProxy</code> and created only when the first physical connection is needed.
+     * Should be called at most once per thread context.
+     *
+     * @return data source for the current thread
+     */
+    protected final DataSource threadDataSource() {
+        if (!lazyTransactionStart()) {
+            return targetThreadDataSource();
+        }
+        LazyConnectionDataSourceProxy lazyDs = new LazyConnectionDataSourceProxy() {
+            private DataSource target;
+
+            @Override
+            public synchronized DataSource getTargetDataSource() {
+                if (target == null) {
+                    target = targetThreadDataSource();
+                }
+                return target;
+            }
+        };
+        // Known defaults keep the proxy from fetching a connection to check them. The transaction manager turns
+        // auto-commit off anyway, and the proxy applies that to the physical connection only if it differs:
+        lazyDs.setDefaultAutoCommit(true);
+        return lazyDs;
+    }
+
+    private DataSource targetThreadDataSource() {
+        DataSource ds = dataSource();
+        if (reuseConnections()) {
+            ReusableConnectionDataSource reusableDs = new ReusableConnectionDataSource(ds);
+            // Registered in the context so that the connection is closed when the context is dropped:
+            context().putResource(ReusableConnectionDataSource.class, reusableDs);
+            ds = reusableDs;
+        }
+        // The guard wraps only connections of read-only tests, so it must be outside the reused connection:
+        return ReadOnlyGuard.guard(ds);
+    }
+
+    /**
+     * Returns a key identifying the configuration of thread contexts built by this rule. Contexts built in
+     * background by the {@link WarmPool} are handed only to threads of rules with equal keys and {@link ParallelSuite}
+     * runs test classes with equal keys in the same thread. Subclasses which add configuration affecting the built
+     * templates should override this method.
+     *
+     * @return key of this rule's configuration
+     */
+    protected String warmPoolKey() {
+        return getClass().getName() + h2ModeOption + (lazyTransactionStart() ? "|lazy" : "")
+                + (reuseConnections() ? "|reuse" : "");
+    }
+
+    /**
+     * Starts building thread contexts (databases, templates and transaction managers) configured like the ones of
+     * this rule in background, if the {@link WarmPool} is enabled (and {@link #useWarmPool()} returns
+     * <code>true</code>). Invoked automatically when the rule is applied; can be invoked earlier (for example from a
+     * <code>&#64;BeforeClass</code> method of a suite) so that even the first tests of worker threads get ready
+     * contexts.
+     */
+    public void startWarmPool() {
+        if (!useWarmPool()) {
+            return;
+        }
+        final String key = warmPoolKey();
+        WarmPool.fill(key, new Callable<ThreadContext>() {
+            public ThreadContext call() throws SQLException {
+                ThreadContext context = new ThreadContext(WarmPool.nextDatabaseName());
+                context.configure(key);
+                ThreadContextRegistry.bind(context);
+                try {
+                    ensureTemplateInitialized();
+                    // Creates the in-memory database (and opens the kept-alive connection, if connections are reused):
+                    context.getTxManager().getDataSource().getConnection().close();
+                } finally {
+                    ThreadContextRegistry.unbind();
+                }
+                return context;
+            }
+        });
+    }
+
+    private void adoptPooledContextIfNeeded() {
+        if (WarmPool.isEnabled() && useWarmPool() && ThreadContextRegistry.peek(Thread.currentThread()) == null) {
+            ThreadContext pooled = WarmPool.take(warmPoolKey(), ThreadContext.class);
+            // Replaces the taken context (or starts filling the pool):
+            startWarmPool();
+            if (pooled != null) {
+                log.debug(getThreadPrefix() + "using pooled context with database " + pooled.getDatabaseName());
+                ThreadContextRegistry.adopt(pooled);
+            }
+        }
+    }
+
     private String getH2ModeOption(String h2Mode) {
         String h2ModeOption;
         if (h2Mode != null && h2Mode.length() > 0) {
@@ -142,10 +337,18 @@ abstract public class SpringTxTestRule implements TestRule {
 
     abstract protected void ensureTemplateInitialized();
 
+    /**
+     * Returns the context of the current thread.
+     */
+    static ThreadContext context() {
+        return ThreadContextRegistry.current();
+    }
+
     private void doBeginTransaction() {
         ensureTemplateInitialized();
-        if (txStatuses.get(Thread.currentThread()) == null) {
-            txStatuses.put(Thread.currentThread(), txManagers.get(Thread.currentThread()).getTransaction(null));
+        ThreadContext context = context();
+        if (context.getTxStatus() == null) {
+            context.setTxStatus(context.getTxManager().getTransaction(transactionDefinition));
         } else {
             throw new IllegalStateException("transaction already started");
         }
@@ -155,9 +358,10 @@ abstract public class SpringTxTestRule implements TestRule {
      * Rollbacks the transaction started in {@link #doBeginTransaction()}.
      */
     private void doRollBackTransaction() {
-        if (txStatuses.get(Thread.currentThread()) != null) {
-            txManagers.get(Thread.currentThread()).rollback(txStatuses.get(Thread.currentThread()));
-            txStatuses.remove(Thread.currentThread());
+        ThreadContext context = context();
+        if (context.getTxStatus() != null) {
+            context.getTxManager().rollback(context.getTxStatus());
+            context.setTxStatus(null);
         } else {
             throw new IllegalStateException("there is no transaction to rollback");
         }
@@ -167,22 +371,46 @@ abstract public class SpringTxTestRule implements TestRule {
      * Commits the transaction started in {@link #doBeginTransaction()}.
      */
     private void doCommitTransaction() {
-        if (txStatuses.get(Thread.currentThread()) != null) {
-            txManagers.get(Thread.currentThread()).commit(txStatuses.get(Thread.currentThread()));
-            txStatuses.remove(Thread.currentThread());
+        ThreadContext context = context();
+        if (context.getTxStatus() != null) {
+            context.getTxManager().commit(context.getTxStatus());
+            context.setTxStatus(null);
         } else {
             throw new IllegalStateException("there is no transaction to commit");
         }
     }
 
-    public final Statement apply(final Statement base, Description description) {
+    public final Statement apply(final Statement base, final Description description) {
         return new Statement() {
             public void evaluate() throws Throwable {
                 log.debug(getThreadPrefix() + "method rule begins");
-                beginTransaction();
+                adoptPooledContextIfNeeded();
+                // Another class run earlier by this thread may have built the context with another configuration:
+                String configurationKey = warmPoolKey();
+                if (context().configure(configurationKey)) {
+                    log.debug(getThreadPrefix() + "rebuilding context for configuration " + configurationKey);
+                }
+                registerCurrentThread(description);
+                if (!TestDurations.isConfigurationReported(description.getClassName())) {
+                    TestDurations.reportConfiguration(description.getClassName(), configurationKey);
+                }
+                ReadOnlyTransaction readOnlyTransaction = ReadOnlyGuard.find(description);
+                transactionDefinition = readOnlyTransaction != null
+                        ? ReadOnlyGuard.transactionDefinition(readOnlyTransaction) : null;
+                // Activated first, so that the connection of the transaction is guarded:
+                if (readOnlyTransaction != null) {
+                    ReadOnlyGuard.activate();
+                }
+                try {
+                    beginTransaction();
+                } catch (RuntimeException e) {
+                    ReadOnlyGuard.deactivate();
+                    throw e;
+                }
                 try {
                     base.evaluate();
                 } finally {
+                    ReadOnlyGuard.deactivate();
                     rollBackTransaction();
                 }
                 log.debug(getThreadPrefix() + "method rule ends");
@@ -190,6 +418,17 @@ abstract public class SpringTxTestRule implements TestRule {
         };
     }
 
+    private void registerCurrentThread(Description description) {
+        // The test class is taken from the description, so there is no need to inspect the stack:
+        if (description.getTestClass() != null) {
+            ThreadContextRegistry.registerCurrentThread(description.getTestClass());
+        } else if (description.getClassName() != null) {
+            ThreadContextRegistry.registerCurrentThread(description.getClassName());
+        } else {
+            ThreadContextRegistry.registerCurrentThread(findInvokingTestClass());
+        }
+    }
+
     private void beginTransaction() {
         try {
             doBeginTransaction();
@@ -226,8 +465,176 @@ abstract public class SpringTxTestRule implements TestRule {
     }
 
     public void commitTransactionAndBeginNewOne() {
+        markDatabaseDirty();
+        commitTransaction();
+        beginTransaction();
+    }
+
+    /**
+     * Loads a fixture consisting of the given sql scripts (classpath resources) into the database of the current
+     * thread.
+     *
+     * @param scripts classpath locations of sql scripts
+     * @see #loadFixture(org.springframework.core.io.Resource...)
+     */
+    public void loadFixture(String... scripts) {
+        Preconditions.checkNotNull(scripts, "scripts must not be null");
+        Resource[] resources = new Resource[scripts.length];
+        for (int i = 0; i < scripts.length; i++) {
+            resources[i] = new ClassPathResource(Preconditions.checkNotNull(scripts[i], "scripts[%s] is null", i));
+        }
+        loadFixture(resources);
+    }
+
+    /**
+     * Loads a fixture consisting of the given sql scripts into the database of the current thread. Intended to be
+     * the first thing done in a <code>&#64;Before</code> method.
+     * <p>
+     * The fixture is identified by a fingerprint of the scripts' contents. The scripts are executed and committed
+     * only the first time the fixture is requested in a thread; then, for H2 databases, a snapshot of the database
+     * is taken. Subsequent calls with the same fixture do nothing unless the database has been dirtied, i.e. a test
+     * committed changes (see {@link #commitTransactionAndBeginNewOne()} and {@link #markDatabaseDirty()}). A dirty
+     * database is restored from the snapshot (or, for databases other than H2, the scripts are executed again).
+     * Requesting a different fixture brings an H2 database back to its state from before the first fixture was
+     * loaded (so nothing of the previous fixture is left) and then executes the scripts.
+     * <p>
+     * If {@link #useTemplateDatabase()} returns <code>true</code> and the database is an H2 database, the scripts
+     * are executed only once per JVM, in a template database, and a fixture that is not yet loaded into the
+     * database of the current thread is copied from the template: everything is dropped from the thread's database
+     * and the template's snapshot is replayed.
+     *
+     * @param scripts sql scripts
+     */
+    public void loadFixture(Resource... scripts) {
+        Fixture fixture = new Fixture(scripts);
+        ThreadContext context = context();
+        LoadedFixture loaded = context.getResource(LoadedFixture.class);
+        boolean sameFixture = loaded != null && loaded.getFixture().equals(fixture);
+        if (sameFixture && !loaded.isDirty()) {
+            log.debug(getThreadPrefix() + "fixture " + fixture + " already loaded");
+            return;
+        }
+        if (context.getTxStatus() == null) {
+            throw new IllegalStateException("there is no transaction to load the fixture in");
+        }
+        DataSource ds = context.getTxManager().getDataSource();
+        // Fixtures can be loaded in read-only tests too:
+        boolean readOnly = ReadOnlyGuard.suspend();
+        try {
+            doLoadFixture(fixture, sameFixture ? loaded.getSnapshot() : null, loaded, ds);
+        } finally {
+            ReadOnlyGuard.resume(readOnly);
+        }
+    }
+
+    private void doLoadFixture(Fixture fixture, DatabaseSnapshot snapshot, LoadedFixture loaded, DataSource ds) {
+        ThreadContext context = context();
+        DatabaseSnapshot cleanSnapshot = loaded != null ? loaded.getCleanSnapshot() : DatabaseSnapshot.capture(ds);
+        if (snapshot == null && useTemplateDatabase() && DatabaseSnapshot.isH2(ds)) {
+            snapshot = TemplateDatabases.getSnapshot(fixture, h2ModeOption);
+        }
+        if (snapshot != null) {
+            log.debug(getThreadPrefix() + "restoring fixture " + fixture + " from snapshot");
+            snapshot.restore(ds);
+        } else {
+            if (loaded != null && cleanSnapshot != null) {
+                // Rows of the previously loaded fixture must not leak into the requested one:
+                log.debug(getThreadPrefix() + "removing fixture " + loaded.getFixture());
+                cleanSnapshot.restore(ds);
+            }
+            log.debug(getThreadPrefix() + "loading fixture " + fixture);
+            fixture.execute(ds);
+        }
         commitTransaction();
         beginTransaction();
+        if (snapshot == null) {
+            snapshot = DatabaseSnapshot.capture(ds);
+        }
+        context.putResource(LoadedFixture.class, new LoadedFixture(fixture, snapshot, cleanSnapshot));
+    }
+
+    /**
+     * Marks the database of the current thread as dirty, so that the next call to {@link #loadFixture} restores the
+     * fixture. Should be called by tests which change the database in a way that survives the rollback (for example
+     * by committing through a separate connection). Tests which use {@link #commitTransactionAndBeginNewOne()}
+     * don't have to call it.
+     */
+    public void markDatabaseDirty() {
+        LoadedFixture loaded = context().getResource(LoadedFixture.class);
+        if (loaded != null) {
+            loaded.markDirty();
+        }
+    }
+
+    /**
+     * Sets a savepoint in the current transaction. Changes made after this call can be undone with
+     * {@link #rollbackToSavepoint(String)} while changes made before it (for example an expensive fixture loaded in
+     * a <code>&#64;Before</code> method) are kept. The savepoint is forgotten when the transaction ends.
+     *
+     * @return name of the created savepoint
+     */
+    public String setSavepoint() {
+        String name = context().nextSavepointName();
+        setSavepoint(name);
+        return name;
+    }
+
+    /**
+     * Sets a savepoint with the given name in the current transaction. An existing savepoint with the same name
+     * is replaced.
+     *
+     * @param name name of the savepoint
+     * @see #setSavepoint()
+     */
+    public void setSavepoint(String name) {
+        Preconditions.checkNotNull(name, "name must not be null");
+        ThreadContext context = context();
+        TransactionStatus txStatus = getTxStatusForSavepoint(context);
+        if (context.getSavepoint(name) != null) {
+            releaseSavepoint(name);
+        }
+        context.putSavepoint(name, txStatus.createSavepoint());
+    }
+
+    /**
+     * Rolls back all changes made in the current transaction after the given savepoint was set. The savepoint
+     * remains valid so it is possible to roll back to it again; savepoints set after it are forgotten.
+     *
+     * @param name name of the savepoint
+     */
+    public void rollbackToSavepoint(String name) {
+        ThreadContext context = context();
+        TransactionStatus txStatus = getTxStatusForSavepoint(context);
+        Object savepoint = getSavepoint(context, name);
+        txStatus.rollbackToSavepoint(savepoint);
+        context.removeSavepointsAfter(name);
+    }
+
+    /**
+     * Releases the given savepoint (and all savepoints set after it). Changes made after the savepoint was set
+     * are kept.
+     *
+     * @param name name of the savepoint
+     */
+    public void releaseSavepoint(String name) {
+        ThreadContext context = context();
+        TransactionStatus txStatus = getTxStatusForSavepoint(context);
+        txStatus.releaseSavepoint(getSavepoint(context, name));
+        context.removeSavepointsFrom(name);
+    }
+
+    private TransactionStatus getTxStatusForSavepoint(ThreadContext context) {
+        TransactionStatus txStatus = context.getTxStatus();
+        if (txStatus == null) {
+            throw new IllegalStateException("there is no transaction to manage savepoints of");
+        }
+        return txStatus;
+    }
+
+    private Object getSavepoint(ThreadContext context, String name) {
+        Object savepoint = context.getSavepoint(Preconditions.checkNotNull(name, "name must not be null"));
+        Preconditions.checkArgument(savepoint != null, "unknown savepoint: %s", name);
+        return savepoint;
     }
 
     private String getThreadPrefix() {
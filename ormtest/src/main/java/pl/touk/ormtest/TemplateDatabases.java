@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Template databases shared by all threads. A template database is an in-memory H2 database into which a fixture is
+ * loaded only once per JVM; its snapshot is then used to create the databases of all threads which load the same
+ * fixture, so the fixture scripts are not parsed and executed again for every new thread.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class TemplateDatabases {
+
+    private static final Log log = LogFactory.getLog(TemplateDatabases.class);
+
+    // Keyed by fingerprint of a fixture and H2 mode option. Cache.get(key, loader) guarantees that a template is
+    // built only once even if many threads ask for it at the same time:
+    private static final Cache<String, DatabaseSnapshot> snapshots = CacheBuilder.newBuilder().build();
+
+    private TemplateDatabases() {
+    }
+
+    /**
+     * Returns a snapshot of the template database with the given fixture loaded, building the template database
+     * if it hasn't been built yet.
+     *
+     * @param fixture      fixture to be loaded into the template database
+     * @param h2ModeOption H2 options appended to the url of the template database (for example compatibility mode)
+     * @return snapshot of the template database
+     */
+    static DatabaseSnapshot getSnapshot(final Fixture fixture, final String h2ModeOption) {
+        try {
+            return snapshots.get(fixture.getFingerprint() + h2ModeOption, new Callable<DatabaseSnapshot>() {
+                public DatabaseSnapshot call() {
+                    return build(fixture, h2ModeOption);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException("failed to build template database for fixture " + fixture, e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw new RuntimeException("failed to build template database for fixture " + fixture, e.getCause());
+        }
+    }
+
+    static long size() {
+        return snapshots.size();
+    }
+
+    static void clear() {
+        snapshots.invalidateAll();
+    }
+
+    private static DatabaseSnapshot build(Fixture fixture, String h2ModeOption) {
+        // The database lives only as long as its single connection is open:
+        SingleConnectionDataSource ds = new SingleConnectionDataSource(
+                "org.h2.Driver", "jdbc:h2:mem:template" + fixture.getFingerprint() + h2ModeOption, "sa", "", true);
+        try {
+            log.debug("building template database for fixture " + fixture);
+            fixture.execute(ds);
+            return DatabaseSnapshot.capture(ds);
+        } finally {
+            ds.destroy();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Durations of test classes and test methods measured by {@link ParallelSuite}, together with configuration keys
+ * reported by the rules for test classes, kept in the <code>durations.properties</code> file of the
+ * {@link CacheDirectory} between test runs.
+ * <p>
+ * A configuration key identifies an expensive configuration of a rule (for example sql map configuration or
+ * Hibernate annotated classes): classes with equal keys can reuse things built for each other if they are run by
+ * the same thread.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class TestDurations {
+
+    private static final Log log = LogFactory.getLog(TestDurations.class);
+
+    static final String FILE_NAME = "durations.properties";
+    private static final String DURATION_PREFIX = "duration.";
+    private static final String CONFIGURATION_PREFIX = "configuration.";
+
+    // Guards the file as many suites may save it at the same time:
+    private static final Object fileGuard = new Object();
+
+    // Configuration keys reported by rules during the current run (test class name -> key):
+    private static final ConcurrentMap<String, String> reportedConfigurations = new ConcurrentHashMap<String, String>();
+
+    private final ConcurrentMap<String, Long> durations = new ConcurrentHashMap<String, Long>();
+    private final Map<String, String> configurations = new ConcurrentHashMap<String, String>();
+
+    private TestDurations() {
+    }
+
+    /**
+     * Records the configuration key of the given test class. Invoked by the rules when they are applied.
+     */
+    static void reportConfiguration(String testClassName, String configurationKey) {
+        if (testClassName != null && configurationKey != null) {
+            reportedConfigurations.putIfAbsent(testClassName, configurationKey);
+        }
+    }
+
+    static boolean isConfigurationReported(String testClassName) {
+        return testClassName != null && reportedConfigurations.containsKey(testClassName);
+    }
+
+    /**
+     * Reads durations and configuration keys saved by previous runs.
+     */
+    static TestDurations load() {
+        TestDurations testDurations = new TestDurations();
+        Properties properties = read(file());
+        for (String name : properties.stringPropertyNames()) {
+            String value = properties.getProperty(name);
+            if (name.startsWith(DURATION_PREFIX)) {
+                try {
+                    testDurations.durations.put(name.substring(DURATION_PREFIX.length()), Long.valueOf(value));
+                } catch (NumberFormatException e) {
+                    log.warn("ignoring invalid duration " + name + "=" + value);
+                }
+            } else if (name.startsWith(CONFIGURATION_PREFIX)) {
+                testDurations.configurations.put(name.substring(CONFIGURATION_PREFIX.length()), value);
+            }
+        }
+        return testDurations;
+    }
+
+    /**
+     * Returns the duration (in milliseconds) of a test class (given its name) or a test method (given
+     * <code>className#methodName</code>) or <code>-1</code> if the duration is unknown.
+     */
+    long getDuration(String name) {
+        Long duration = durations.get(name);
+        return duration != null ? duration : -1;
+    }
+
+    void recordDuration(String name, long millis) {
+        durations.put(name, millis);
+    }
+
+    /**
+     * Returns the configuration key of the given test class (reported in the current run or, if not yet reported,
+     * in a previous one) or <code>null</code> if it is unknown.
+     */
+    String getConfiguration(String testClassName) {
+        String configuration = reportedConfigurations.get(testClassName);
+        return configuration != null ? configuration : configurations.get(testClassName);
+    }
+
+    /**
+     * Merges the durations and configuration keys known to this object into the file.
+     */
+    void save() {
+        synchronized (fileGuard) {
+            File file;
+            try {
+                file = CacheDirectory.file(FILE_NAME);
+            } catch (RuntimeException e) {
+                log.warn("can't save test durations", e);
+                return;
+            }
+            Properties properties = read(file);
+            for (Map.Entry<String, Long> entry : durations.entrySet()) {
+                properties.setProperty(DURATION_PREFIX + entry.getKey(), entry.getValue().toString());
+            }
+            for (Map.Entry<String, String> entry : configurations.entrySet()) {
+                properties.setProperty(CONFIGURATION_PREFIX + entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, String> entry : reportedConfigurations.entrySet()) {
+                properties.setProperty(CONFIGURATION_PREFIX + entry.getKey(), entry.getValue());
+            }
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                properties.store(out, "test durations (ms) and configurations recorded by ormtest");
+            } catch (IOException e) {
+                log.warn("can't save test durations to " + file.getAbsolutePath(), e);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+        }
+    }
+
+    private static File file() {
+        return new File(CacheDirectory.get(), FILE_NAME);
+    }
+
+    private static Properties read(File file) {
+        Properties properties = new Properties();
+        if (file.isFile()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                properties.load(in);
+            } catch (IOException e) {
+                log.warn("can't read test durations from " + file.getAbsolutePath(), e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        return properties;
+    }
+}
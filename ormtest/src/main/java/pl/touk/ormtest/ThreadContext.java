@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * State kept by {@link SpringTxTestRule} (and its subclasses) for a single thread: the current transaction,
+ * the transaction manager and any templates created for the thread's database.
+ * <p>
+ * Instances are managed by {@link ThreadContextRegistry} and must never hold a reference to the thread they
+ * belong to - otherwise the registry couldn't drop them when the thread dies.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class ThreadContext {
+
+    private static final Log log = LogFactory.getLog(ThreadContext.class);
+
+    private final String databaseName;
+    // Key of the rule configuration (see SpringTxTestRule.warmPoolKey()) the resources were built for:
+    private volatile String configurationKey;
+    private volatile TransactionStatus txStatus;
+    private volatile DataSourceTransactionManager txManager;
+    private final ConcurrentMap<Class<?>, Object> resources = new ConcurrentHashMap<Class<?>, Object>();
+    private volatile long lastAccess = System.nanoTime();
+    private volatile boolean stale;
+    // Savepoints of the current transaction in order of creation (only accessed by the owning thread):
+    private final Map<String, Object> savepoints = new LinkedHashMap<String, Object>();
+    private int savepointCounter;
+
+    /**
+     * @param databaseName name of the database of this context (used to build urls of default data sources)
+     */
+    ThreadContext(String databaseName) {
+        this.databaseName = databaseName;
+    }
+
+    String getDatabaseName() {
+        return databaseName;
+    }
+
+    String getConfigurationKey() {
+        return configurationKey;
+    }
+
+    /**
+     * Makes the context serve rules with the given configuration key. If resources have been built for a rule with
+     * another key, they are released (see {@link #close()}) so that the thread builds its templates, transaction
+     * manager and data source again - a worker thread may run tests of classes configured differently.
+     *
+     * @return <code>true</code> if resources built for another configuration have been released
+     */
+    boolean configure(String configurationKey) {
+        if (configurationKey.equals(this.configurationKey)) {
+            return false;
+        }
+        boolean reconfigured = this.configurationKey != null;
+        if (reconfigured) {
+            close();
+        }
+        this.configurationKey = configurationKey;
+        return reconfigured;
+    }
+
+    TransactionStatus getTxStatus() {
+        return txStatus;
+    }
+
+    void setTxStatus(TransactionStatus txStatus) {
+        this.txStatus = txStatus;
+        savepoints.clear();
+    }
+
+    String nextSavepointName() {
+        return "savepoint" + (++savepointCounter);
+    }
+
+    Object getSavepoint(String name) {
+        return savepoints.get(name);
+    }
+
+    void putSavepoint(String name, Object savepoint) {
+        savepoints.put(name, savepoint);
+    }
+
+    /**
+     * Forgets the given savepoint and all savepoints created after it.
+     */
+    void removeSavepointsFrom(String name) {
+        boolean found = false;
+        for (Iterator<String> i = savepoints.keySet().iterator(); i.hasNext(); ) {
+            if (i.next().equals(name)) {
+                found = true;
+            }
+            if (found) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets all savepoints created after the given one.
+     */
+    void removeSavepointsAfter(String name) {
+        boolean found = false;
+        for (Iterator<String> i = savepoints.keySet().iterator(); i.hasNext(); ) {
+            String current = i.next();
+            if (found) {
+                i.remove();
+            } else if (current.equals(name)) {
+                found = true;
+            }
+        }
+    }
+
+    DataSourceTransactionManager getTxManager() {
+        return txManager;
+    }
+
+    void setTxManager(DataSourceTransactionManager txManager) {
+        this.txManager = txManager;
+    }
+
+    /**
+     * Returns a thread specific resource (for example a <code>JdbcTemplate</code>) registered under the given type.
+     */
+    <T> T getResource(Class<T> type) {
+        return type.cast(resources.get(type));
+    }
+
+    <T> void putResource(Class<T> type, T resource) {
+        resources.put(type, resource);
+    }
+
+    boolean isInTransaction() {
+        return txStatus != null;
+    }
+
+    /**
+     * Returns <code>true</code> if the context has been reset or evicted by another thread. A stale context is replaced
+     * by its own thread as soon as the thread isn't in the middle of a transaction.
+     */
+    boolean isStale() {
+        return stale;
+    }
+
+    void markStale() {
+        stale = true;
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    void touch() {
+        lastAccess = System.nanoTime();
+    }
+
+    /**
+     * Releases everything held by this context. Invoked by the registry when the owning thread has died, when
+     * the context is evicted or when the threads of a test class are reset. Resources implementing
+     * {@link Closeable} (for example {@link ReusableConnectionDataSource}) are closed.
+     */
+    void close() {
+        txStatus = null;
+        txManager = null;
+        savepoints.clear();
+        for (Object resource : resources.values()) {
+            if (resource instanceof Closeable) {
+                try {
+                    ((Closeable) resource).close();
+                } catch (IOException e) {
+                    log.warn("exception while closing " + resource, e);
+                } catch (RuntimeException e) {
+                    log.warn("exception while closing " + resource, e);
+                }
+            }
+        }
+        resources.clear();
+    }
+}
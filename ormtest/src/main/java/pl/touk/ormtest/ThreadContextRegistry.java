@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.MapMaker;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+import org.springframework.core.annotation.AnnotationUtils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of {@link ThreadContext}s used by {@link SpringTxTestRule} and its subclasses.
+ * <p>
+ * Threads are referenced weakly, so neither a context nor the bookkeeping of threads per test class keeps a
+ * dead thread (or the templates and data sources created for it) in memory. Contexts of dead threads are
+ * additionally dropped eagerly whenever a new context is registered. The number of live contexts is bounded
+ * by {@link #getMaxSize()} (configurable through the <code>ormtest.maxThreadContexts</code> system property or
+ * {@link #setMaxSize(int)}); when the bound is reached the least recently used contexts which are not in the
+ * middle of a transaction are evicted. Contexts of other live threads are only marked as stale (and dropped by their
+ * own threads), so the bound can be exceeded until those threads run tests again.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class ThreadContextRegistry {
+
+    private static final Log log = LogFactory.getLog(ThreadContextRegistry.class);
+
+    static final String MAX_SIZE_PROPERTY = "ormtest.maxThreadContexts";
+    private static final int MAX_SIZE_DEFAULT = 256;
+
+    private static volatile int maxSize = Integer.getInteger(MAX_SIZE_PROPERTY, MAX_SIZE_DEFAULT);
+
+    // Guards eviction so that two threads registering new contexts don't evict more than needed:
+    private static final Object evictionGuard = new Object();
+
+    private static final Cache<Thread, ThreadContext> contexts = CacheBuilder.newBuilder()
+            .weakKeys()
+            .removalListener(new RemovalListener<Thread, ThreadContext>() {
+                public void onRemoval(RemovalNotification<Thread, ThreadContext> notification) {
+                    if (notification.getValue() != null) {
+                        log.debug("dropping thread context (" + notification.getCause() + ")");
+                        notification.getValue().close();
+                    }
+                }
+            })
+            .build();
+
+    // Contexts being built in background (by the warm pool) on behalf of threads that don't exist yet:
+    private static final ThreadLocal<ThreadContext> boundContexts = new ThreadLocal<ThreadContext>();
+
+    private static final ConcurrentMap<String, Set<Thread>> threadsPerTestClass =
+            new ConcurrentHashMap<String, Set<Thread>>();
+
+    private ThreadContextRegistry() {
+    }
+
+    /**
+     * Returns the context of the current thread creating it if needed.
+     */
+    static ThreadContext current() {
+        ThreadContext bound = boundContexts.get();
+        if (bound != null) {
+            return bound;
+        }
+        Thread thread = Thread.currentThread();
+        ThreadContext context = contexts.getIfPresent(thread);
+        if (context != null && context.isStale() && !context.isInTransaction()) {
+            contexts.invalidate(thread);
+            context = null;
+        }
+        if (context == null) {
+            // Only the current thread creates its own context so there is no race here:
+            evictIfNeeded();
+            context = new ThreadContext("db" + thread.hashCode());
+            contexts.put(thread, context);
+        }
+        context.touch();
+        return context;
+    }
+
+    /**
+     * Makes the given context (built in background, for example by the warm pool) the context of the current
+     * thread. Must be invoked before the current thread has a context.
+     */
+    static void adopt(ThreadContext context) {
+        Thread thread = Thread.currentThread();
+        Preconditions.checkState(contexts.getIfPresent(thread) == null, "thread already has a context");
+        evictIfNeeded();
+        context.touch();
+        contexts.put(thread, context);
+    }
+
+    /**
+     * Makes {@link #current()} return the given context in the current thread until {@link #unbind()} is invoked.
+     * Used to build contexts in background threads which never run tests themselves.
+     */
+    static void bind(ThreadContext context) {
+        boundContexts.set(context);
+    }
+
+    static void unbind() {
+        boundContexts.remove();
+    }
+
+    /**
+     * Returns the context of the given thread or <code>null</code> if there is none.
+     */
+    static ThreadContext peek(Thread thread) {
+        return contexts.getIfPresent(thread);
+    }
+
+    /**
+     * Drops contexts of the given threads. Contexts of other live threads (which may be running tests in parallel
+     * with the current thread) are only marked as stale and dropped by their own threads outside of transactions.
+     */
+    static void remove(Collection<Thread> threads) {
+        Thread currentThread = Thread.currentThread();
+        for (Thread thread : threads) {
+            if (thread == currentThread || !thread.isAlive()) {
+                contexts.invalidate(thread);
+            } else {
+                ThreadContext context = contexts.getIfPresent(thread);
+                if (context != null) {
+                    context.markStale();
+                }
+            }
+        }
+    }
+
+    static long size() {
+        contexts.cleanUp();
+        return contexts.size();
+    }
+
+    static int getMaxSize() {
+        return maxSize;
+    }
+
+    static void setMaxSize(int maxSize) {
+        Preconditions.checkArgument(maxSize > 0, "maxSize must be positive but is %s", maxSize);
+        ThreadContextRegistry.maxSize = maxSize;
+    }
+
+    /**
+     * Records that the current thread executes tests of the given test class.
+     */
+    static void registerCurrentThread(Class<?> testClass) {
+        registerCurrentThread(testClass.getName());
+    }
+
+    /**
+     * Records that the current thread executes tests of the test class with the given name.
+     */
+    static void registerCurrentThread(String testClassName) {
+        Set<Thread> threads = threadsPerTestClass.get(testClassName);
+        if (threads == null) {
+            Set<Thread> newThreads = Collections.newSetFromMap(new MapMaker().weakKeys().<Thread, Boolean>makeMap());
+            threads = threadsPerTestClass.putIfAbsent(testClassName, newThreads);
+            if (threads == null) {
+                threads = newThreads;
+            }
+        }
+        threads.add(Thread.currentThread());
+    }
+
+    /**
+     * Returns threads that executed tests of the given test class or, if the given class is a suite, of any of
+     * the suite's classes.
+     */
+    static Set<Thread> getThreads(Class<?> testClassOrSuiteClass) {
+        Set<Thread> threads = new HashSet<Thread>();
+        for (Class<?> c : getTestClasses(testClassOrSuiteClass)) {
+            Set<Thread> threadsOfClass = threadsPerTestClass.get(c.getName());
+            if (threadsOfClass != null) {
+                threads.addAll(threadsOfClass);
+            }
+        }
+        return threads;
+    }
+
+    private static Set<Class<?>> getTestClasses(Class<?> testClassOrSuiteClass) {
+        Set<Class<?>> testClasses = new HashSet<Class<?>>();
+        RunWith annotation = AnnotationUtils.findAnnotation(testClassOrSuiteClass, RunWith.class);
+        if (annotation != null && Suite.class.isAssignableFrom(annotation.value())) {
+            Suite.SuiteClasses suiteClasses =
+                    AnnotationUtils.findAnnotation(testClassOrSuiteClass, Suite.SuiteClasses.class);
+            if (suiteClasses != null) {
+                if (suiteClasses.value() != null && suiteClasses.value().length > 0) {
+                    testClasses.addAll(Arrays.asList(suiteClasses.value()));
+                }
+                return testClasses;
+            }
+        }
+        testClasses.add(testClassOrSuiteClass);
+        return testClasses;
+    }
+
+    private static void evictIfNeeded() {
+        synchronized (evictionGuard) {
+            removeContextsOfDeadThreads();
+            Map<Thread, ThreadContext> map = contexts.asMap();
+            while (countNotStale(map) >= maxSize) {
+                Thread leastRecentlyUsed = null;
+                ThreadContext leastRecentlyUsedContext = null;
+                for (Map.Entry<Thread, ThreadContext> entry : map.entrySet()) {
+                    ThreadContext context = entry.getValue();
+                    if (!context.isInTransaction() && !context.isStale() && (leastRecentlyUsedContext == null
+                            || context.getLastAccess() < leastRecentlyUsedContext.getLastAccess())) {
+                        leastRecentlyUsed = entry.getKey();
+                        leastRecentlyUsedContext = context;
+                    }
+                }
+                if (leastRecentlyUsed == null) {
+                    log.warn("all " + map.size() + " thread contexts are in a transaction or stale - exceeding the "
+                            + "limit of " + maxSize + " (see " + MAX_SIZE_PROPERTY + ")");
+                    return;
+                }
+                if (leastRecentlyUsed == Thread.currentThread() || !leastRecentlyUsed.isAlive()) {
+                    contexts.invalidate(leastRecentlyUsed);
+                } else {
+                    // The thread may be about to use its context, so it is left to the thread to drop it:
+                    leastRecentlyUsedContext.markStale();
+                }
+            }
+        }
+    }
+
+    private static int countNotStale(Map<Thread, ThreadContext> map) {
+        int count = 0;
+        for (ThreadContext context : map.values()) {
+            if (!context.isStale()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void removeContextsOfDeadThreads() {
+        for (Thread thread : contexts.asMap().keySet()) {
+            if (!thread.isAlive()) {
+                contexts.invalidate(thread);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.CacheProvider;
+import org.hibernate.cache.Timestamper;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * In-process Hibernate cache provider (for the second-level and the query cache) whose regions keep separate
+ * entries for every thread, so that tests executed in parallel never see each other's cached entities and queries
+ * (even if they share a session factory - see {@link HibernateSpringTxTestRule#shareSessionFactory()}). Hits, misses
+ * and puts are counted for every region and thread.
+ * <p>
+ * Used by {@link HibernateSpringTxTestRule} if {@link HibernateSpringTxTestRule#useSecondLevelCache()} returns
+ * <code>true</code>; it can also be configured directly through the <code>hibernate.cache.provider_class</code>
+ * property.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public class ThreadIsolatedCacheProvider implements CacheProvider {
+
+    // Regions of all live providers:
+    private static final Set<ThreadIsolatedCache> regions = new CopyOnWriteArraySet<ThreadIsolatedCache>();
+
+    public Cache buildCache(String regionName, Properties properties) throws CacheException {
+        ThreadIsolatedCache cache = new ThreadIsolatedCache(regionName);
+        regions.add(cache);
+        return cache;
+    }
+
+    public long nextTimestamp() {
+        return Timestamper.next();
+    }
+
+    public void start(Properties properties) throws CacheException {
+    }
+
+    public void stop() {
+    }
+
+    public boolean isMinimalPutsEnabledByDefault() {
+        return false;
+    }
+
+    /**
+     * Removes all entries of the current thread from all regions and resets its counters.
+     */
+    static void clearCurrentThread() {
+        for (ThreadIsolatedCache region : regions) {
+            region.clearCurrentThread();
+        }
+    }
+
+    /**
+     * Returns statistics of the current thread for all regions, keyed by region names (regions of different
+     * session factories with equal names are summed up).
+     */
+    static Map<String, CacheRegionStatistics> getStatisticsOfCurrentThread() {
+        Map<String, long[]> counts = new TreeMap<String, long[]>();
+        for (ThreadIsolatedCache region : regions) {
+            ThreadEntries entries = region.peekCurrentThread();
+            if (entries != null) {
+                long[] regionCounts = counts.get(region.getRegionName());
+                if (regionCounts == null) {
+                    regionCounts = new long[3];
+                    counts.put(region.getRegionName(), regionCounts);
+                }
+                regionCounts[0] += entries.hits;
+                regionCounts[1] += entries.misses;
+                regionCounts[2] += entries.puts;
+            }
+        }
+        Map<String, CacheRegionStatistics> statistics = new TreeMap<String, CacheRegionStatistics>();
+        for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+            long[] c = entry.getValue();
+            statistics.put(entry.getKey(), new CacheRegionStatistics(entry.getKey(), c[0], c[1], c[2]));
+        }
+        return statistics;
+    }
+
+    /**
+     * Entries and counters of a region for a single thread. Counters are updated only by their thread.
+     */
+    private static final class ThreadEntries {
+        final Map<Object, Object> entries = new ConcurrentHashMap<Object, Object>();
+        long hits;
+        long misses;
+        long puts;
+    }
+
+    static final class ThreadIsolatedCache implements Cache {
+        private final String regionName;
+        private final Map<Thread, ThreadEntries> threads =
+                Collections.synchronizedMap(new WeakHashMap<Thread, ThreadEntries>());
+
+        ThreadIsolatedCache(String regionName) {
+            this.regionName = regionName;
+        }
+
+        private ThreadEntries currentThread() {
+            ThreadEntries entries = threads.get(Thread.currentThread());
+            if (entries == null) {
+                entries = new ThreadEntries();
+                threads.put(Thread.currentThread(), entries);
+            }
+            return entries;
+        }
+
+        ThreadEntries peekCurrentThread() {
+            return threads.get(Thread.currentThread());
+        }
+
+        void clearCurrentThread() {
+            threads.remove(Thread.currentThread());
+        }
+
+        public Object read(Object key) throws CacheException {
+            return get(key);
+        }
+
+        public Object get(Object key) throws CacheException {
+            ThreadEntries entries = currentThread();
+            Object value = entries.entries.get(key);
+            if (value != null) {
+                entries.hits++;
+            } else {
+                entries.misses++;
+            }
+            return value;
+        }
+
+        public void put(Object key, Object value) throws CacheException {
+            ThreadEntries entries = currentThread();
+            entries.entries.put(key, value);
+            entries.puts++;
+        }
+
+        public void update(Object key, Object value) throws CacheException {
+            put(key, value);
+        }
+
+        public void remove(Object key) throws CacheException {
+            currentThread().entries.remove(key);
+        }
+
+        public void clear() throws CacheException {
+            currentThread().entries.clear();
+        }
+
+        public void destroy() throws CacheException {
+            threads.clear();
+            regions.remove(this);
+        }
+
+        public void lock(Object key) throws CacheException {
+        }
+
+        public void unlock(Object key) throws CacheException {
+        }
+
+        public long nextTimestamp() {
+            return Timestamper.next();
+        }
+
+        public int getTimeout() {
+            return Timestamper.ONE_MS * 60000;
+        }
+
+        public String getRegionName() {
+            return regionName;
+        }
+
+        public long getSizeInMemory() {
+            return -1;
+        }
+
+        public long getElementCountInMemory() {
+            ThreadEntries entries = peekCurrentThread();
+            return entries != null ? entries.entries.size() : 0;
+        }
+
+        public long getElementCountOnDisk() {
+            return 0;
+        }
+
+        public Map toMap() {
+            ThreadEntries entries = peekCurrentThread();
+            return entries != null ? new HashMap<Object, Object>(entries.entries) : new HashMap<Object, Object>();
+        }
+    }
+}
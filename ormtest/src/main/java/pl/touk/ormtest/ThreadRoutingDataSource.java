@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.base.Supplier;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Data source which routes every call to the data source of the calling thread. The data source of a thread is
+ * obtained from the given supplier, in that thread, the first time the thread uses this data source. Lets a single
+ * session factory, shared by all threads, work on per-thread databases. Data sources of threads which are
+ * {@link Closeable} (for example {@link ReusableConnectionDataSource}s) are closed when they are released, when
+ * their threads are found dead (the next time a thread obtains or releases its data source) or when this data source
+ * is closed. Threads are referenced weakly, so finished worker threads don't keep their data sources (and the
+ * databases behind them) alive.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+final class ThreadRoutingDataSource implements DataSource, Closeable {
+
+    private final Supplier<DataSource> targetSupplier;
+    private final ThreadLocal<DataSource> targets = new ThreadLocal<DataSource>();
+    // Data sources of all threads, so that they can be closed with this data source (guarded by itself):
+    private final List<ThreadTarget> allTargets = new ArrayList<ThreadTarget>();
+
+    ThreadRoutingDataSource(Supplier<DataSource> targetSupplier) {
+        this.targetSupplier = checkNotNull(targetSupplier, "targetSupplier must not be null");
+    }
+
+    /**
+     * Returns the data source of the calling thread.
+     */
+    DataSource getTarget() {
+        DataSource target = targets.get();
+        if (target == null) {
+            target = checkNotNull(targetSupplier.get(), "data source supplier returned null");
+            targets.set(target);
+            synchronized (allTargets) {
+                allTargets.add(new ThreadTarget(Thread.currentThread(), target));
+            }
+            closeTargetsOfDeadThreads();
+        }
+        return target;
+    }
+
+    /**
+     * Forgets (and closes) the data source of the calling thread, so that the supplier is asked again the next time
+     * the thread uses this data source.
+     */
+    void release() {
+        DataSource target = targets.get();
+        if (target != null) {
+            targets.remove();
+            synchronized (allTargets) {
+                for (Iterator<ThreadTarget> i = allTargets.iterator(); i.hasNext(); ) {
+                    if (i.next().target == target) {
+                        i.remove();
+                    }
+                }
+            }
+            closeIfCloseable(target);
+        }
+        closeTargetsOfDeadThreads();
+    }
+
+    int size() {
+        synchronized (allTargets) {
+            return allTargets.size();
+        }
+    }
+
+    /**
+     * Closes data sources of all threads.
+     */
+    public void close() {
+        List<DataSource> toClose = new ArrayList<DataSource>();
+        synchronized (allTargets) {
+            for (ThreadTarget threadTarget : allTargets) {
+                toClose.add(threadTarget.target);
+            }
+            allTargets.clear();
+        }
+        for (DataSource target : toClose) {
+            closeIfCloseable(target);
+        }
+    }
+
+    private void closeTargetsOfDeadThreads() {
+        List<DataSource> toClose = new ArrayList<DataSource>();
+        synchronized (allTargets) {
+            for (Iterator<ThreadTarget> i = allTargets.iterator(); i.hasNext(); ) {
+                ThreadTarget threadTarget = i.next();
+                if (threadTarget.isDead()) {
+                    i.remove();
+                    toClose.add(threadTarget.target);
+                }
+            }
+        }
+        for (DataSource target : toClose) {
+            closeIfCloseable(target);
+        }
+    }
+
+    private static void closeIfCloseable(DataSource target) {
+        DataSource unguarded = ReadOnlyGuard.unguard(target);
+        if (unguarded instanceof Closeable) {
+            try {
+                ((Closeable) unguarded).close();
+            } catch (IOException e) {
+                throw new IllegalStateException("can't close " + target, e);
+            }
+        }
+    }
+
+    public Connection getConnection() throws SQLException {
+        return getTarget().getConnection();
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException {
+        return getTarget().getConnection(username, password);
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+        return getTarget().getLogWriter();
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        getTarget().setLogWriter(out);
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+        getTarget().setLoginTimeout(seconds);
+    }
+
+    public int getLoginTimeout() throws SQLException {
+        return getTarget().getLoginTimeout();
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return (T) this;
+        }
+        return getTarget().unwrap(iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || getTarget().isWrapperFor(iface);
+    }
+
+    private static final class ThreadTarget {
+        private final WeakReference<Thread> thread;
+        private final DataSource target;
+
+        ThreadTarget(Thread thread, DataSource target) {
+            this.thread = new WeakReference<Thread>(thread);
+            this.target = target;
+        }
+
+        boolean isDead() {
+            Thread owner = thread.get();
+            return owner == null || !owner.isAlive();
+        }
+    }
+
+    // Part of JDBC 4.1 - not annotated with @Override so that this class compiles with Java 6 too:
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("getParentLogger");
+    }
+}
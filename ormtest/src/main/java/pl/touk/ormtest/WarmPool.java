@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtest;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of per-thread database contexts (for {@link SpringTxTestRule} and its subclasses) and session factories
+ * (for {@link HibernateSpringTxTestRule}) built in background threads, so that the first test executed by a worker
+ * thread doesn't have to wait for its database, templates or session factory to be created.
+ * <p>
+ * The pool is disabled by default. It is enabled by setting its size (the number of ready-to-use objects kept for
+ * every rule configuration) through {@link #setSize(int)} or the <code>ormtest.warmPoolSize</code> system property.
+ * Rules start filling the pool the first time they are applied; to start filling it earlier,
+ * {@link SpringTxTestRule#startWarmPool()} or {@link HibernateSpringTxTestRule#startWarmPool()} can be invoked, for
+ * example from a <code>&#64;BeforeClass</code> method of a suite. An object handed to a thread is replaced with a
+ * new one in background. If building an object fails, the pool backs off (for up to a minute) before it tries again.
+ * Pooled objects which haven't been handed to any thread are closed by {@link #drain()} (invoked by
+ * {@link SessionFactoryLifecycle#closeAll()}).
+ * <p>
+ * {@link #getHits()} and {@link #getMisses()} tell how many threads got a ready object and how many had to build
+ * their own one.
+ *
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public final class WarmPool {
+
+    private static final Log log = LogFactory.getLog(WarmPool.class);
+
+    static final String SIZE_PROPERTY = "ormtest.warmPoolSize";
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    private static volatile int size = Integer.getInteger(SIZE_PROPERTY, 0);
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicInteger databaseCounter = new AtomicInteger();
+
+    private static final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+
+    private static final ExecutorService builders = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ormtest-warm-pool-%d").build());
+
+    private WarmPool() {
+    }
+
+    /**
+     * Sets the number of ready-to-use objects kept for every rule configuration. Zero disables the pool.
+     *
+     * @param size size of the pool (must not be negative)
+     */
+    public static void setSize(int size) {
+        Preconditions.checkArgument(size >= 0, "size must not be negative but is %s", size);
+        WarmPool.size = size;
+    }
+
+    public static int getSize() {
+        return size;
+    }
+
+    public static boolean isEnabled() {
+        return size > 0;
+    }
+
+    /**
+     * Returns the number of times a thread got a ready-to-use object from the pool.
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of times a thread had to build its own object because the pool was empty.
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * Returns a unique name for a database built in background, so that pooled objects never share a database.
+     */
+    static String nextDatabaseName() {
+        return "pool" + databaseCounter.incrementAndGet();
+    }
+
+    /**
+     * Starts building objects for the given key in background (if fewer than {@link #getSize()} objects are ready
+     * or being built). The builder is referenced only until the objects it was scheduled for are built, so it may
+     * capture the rule (and test) invoking this method; the key must therefore cover everything the builder reads.
+     *
+     * @param key     identifies the configuration of the objects (pooled objects are interchangeable only if
+     *                their keys are equal)
+     * @param builder builds an object (invoked in a background thread)
+     */
+    static void fill(String key, Callable<?> builder) {
+        if (!isEnabled()) {
+            return;
+        }
+        Pool pool = pools.get(key);
+        if (pool == null) {
+            Pool newPool = new Pool(key);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+        pool.fill(builder);
+    }
+
+    /**
+     * Takes a ready-to-use object built for the given key. The taken object is replaced by the next
+     * {@link #fill(String, Callable)}.
+     *
+     * @return a pooled object or <code>null</code> if there is none (or the pool is disabled)
+     */
+    static <T> T take(String key, Class<T> type) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Pool pool = pools.get(key);
+        Object pooled = pool != null ? pool.ready.poll() : null;
+        if (pooled != null) {
+            hits.incrementAndGet();
+            pool.scheduled.decrementAndGet();
+            return type.cast(pooled);
+        } else {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Closes all pooled objects which haven't been handed to any thread (thread contexts, session factories and
+     * their in-memory databases) and forgets all pools. Objects being built at the moment are closed as soon as
+     * they are ready.
+     */
+    public static void drain() {
+        for (Iterator<Pool> i = pools.values().iterator(); i.hasNext(); ) {
+            Pool pool = i.next();
+            i.remove();
+            pool.drain();
+        }
+    }
+
+    private static void close(Object pooled) {
+        try {
+            if (pooled instanceof ThreadContext) {
+                ((ThreadContext) pooled).close();
+            } else if (pooled instanceof CachedSessionFactory) {
+                SessionFactoryLifecycle.closeUnused((CachedSessionFactory) pooled);
+            }
+        } catch (RuntimeException e) {
+            log.warn("exception while closing pooled " + pooled, e);
+        }
+    }
+
+    private static final class Pool {
+        private final String key;
+        private final BlockingQueue<Object> ready = new LinkedBlockingQueue<Object>();
+        // Number of objects ready or being built:
+        private final AtomicInteger scheduled = new AtomicInteger();
+        // Number of consecutive failures and the time (System.nanoTime()) before which the pool doesn't build:
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long retryAt;
+        private volatile boolean drained;
+
+        Pool(String key) {
+            this.key = key;
+        }
+
+        void fill(final Callable<?> builder) {
+            if (failures.get() > 0 && System.nanoTime() - retryAt < 0) {
+                // Backing off - threads build their own objects in the meantime:
+                return;
+            }
+            while (true) {
+                int current = scheduled.get();
+                if (current >= size) {
+                    return;
+                }
+                if (scheduled.compareAndSet(current, current + 1)) {
+                    builders.execute(new Runnable() {
+                        public void run() {
+                            build(builder);
+                        }
+                    });
+                }
+            }
+        }
+
+        private void build(Callable<?> builder) {
+            Object built;
+            try {
+                built = builder.call();
+            } catch (Exception e) {
+                int count = failures.incrementAndGet();
+                long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(count - 1, 16));
+                retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+                scheduled.decrementAndGet();
+                log.warn("failed to build a pooled object for " + key + " (retrying in " + backoff + "ms)", e);
+                return;
+            }
+            failures.set(0);
+            ready.add(built);
+            if (drained && ready.remove(built)) {
+                close(built);
+            }
+        }
+
+        void drain() {
+            drained = true;
+            Object pooled;
+            while ((pooled = ready.poll()) != null) {
+                scheduled.decrementAndGet();
+                close(pooled);
+            }
+        }
+    }
+}
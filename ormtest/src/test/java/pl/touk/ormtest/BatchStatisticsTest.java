@@ -0,0 +1,51 @@
+package pl.touk.ormtest;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchStatisticsTest {
+
+    @After
+    public void after() {
+        RecordingBatcherFactory.reset();
+    }
+
+    @Test
+    public void shouldRecordOnlyIndividualDataModifyingStatements() {
+        // when
+        RecordingBatcherFactory.recordIndividualStatement("insert into A values (?)");
+        RecordingBatcherFactory.recordIndividualStatement("select * from A");
+        RecordingBatcherFactory.recordBatch(3);
+
+        // then
+        BatchStatistics statistics = RecordingBatcherFactory.getStatistics();
+        assertThat(statistics.getIndividualStatements()).containsExactly("insert into A values (?)");
+        assertThat(statistics.getBatchSizes()).containsExactly(3);
+    }
+
+    @Test
+    public void shouldSumBatchedStatements() {
+        // given
+        BatchStatistics statistics = new BatchStatistics(Collections.<String>emptyList(), Arrays.asList(10, 10, 4));
+
+        // expect
+        assertThat(statistics.getBatchedStatementCount()).isEqualTo(24);
+        assertThat(statistics.getLargestBatchSize()).isEqualTo(10);
+        statistics.assertAllStatementsBatched().assertLargestBatchAtLeast(10);
+    }
+
+    @Test(expected = AssertionError.class)
+    public void shouldFailIfStatementsWereExecutedIndividually() {
+        // given
+        BatchStatistics statistics = new BatchStatistics(Arrays.asList("insert into A values (?)"),
+                Collections.<Integer>emptyList());
+
+        // expect
+        statistics.assertAllStatementsBatched();
+    }
+}
@@ -0,0 +1,42 @@
+package pl.touk.ormtest;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CallerLookupTest {
+
+    @Test
+    public void shouldSkipFramesOfExcludedClassHierarchy() throws Exception {
+        // when
+        Class<?> caller = new ExcludedSubclass().findCaller();
+
+        // then
+        assertThat(caller).isEqualTo(CallerLookupTest.class);
+    }
+
+    @Test
+    public void shouldFindCallerTheSecondTimeUsingCachedClasses() throws Exception {
+        // given
+        new ExcludedSubclass().findCaller();
+
+        // when
+        Class<?> caller = new ExcludedSubclass().findCaller();
+
+        // then
+        assertThat(caller).isEqualTo(CallerLookupTest.class);
+    }
+
+    private static class Excluded {
+        Class<?> findCaller() {
+            return CallerLookup.findFirstCallerNotAssignableTo(Excluded.class);
+        }
+    }
+
+    private static class ExcludedSubclass extends Excluded {
+        @Override
+        Class<?> findCaller() {
+            return super.findCaller();
+        }
+    }
+}
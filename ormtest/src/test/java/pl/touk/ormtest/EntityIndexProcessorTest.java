@@ -0,0 +1,123 @@
+package pl.touk.ormtest;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EntityIndexProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldIndexEntitiesEmbeddablesAndMappedSuperclasses() throws Exception {
+        // given
+        File sources = sources();
+
+        // when
+        File classes = compile(sources, "example/a/First.java", "example/a/Part.java", "example/b/Base.java",
+                "example/b/NotAnEntity.java");
+
+        // then
+        assertThat(index(classes)).containsExactly("example.a.First", "example.a.Part", "example.b.Base");
+    }
+
+    @Test
+    public void shouldKeepPreviouslyIndexedEntitiesInIncrementalBuilds() throws Exception {
+        // given
+        File sources = sources();
+        File classes = compile(sources, "example/a/First.java");
+
+        // when
+        compile(sources, classes, "example/a/Part.java");
+
+        // then
+        assertThat(index(classes)).containsExactly("example.a.First", "example.a.Part");
+    }
+
+    @Test
+    public void shouldFindIndexedClassesInPackage() throws Exception {
+        // given
+        File classes = compile(sources(), "example/a/First.java", "example/a/Part.java", "example/b/Base.java");
+        ClassLoader classLoader = new URLClassLoader(new URL[]{classes.toURI().toURL()}, getClass().getClassLoader());
+
+        // when
+        Class[] all = EntityIndex.find("", classLoader);
+        Class[] fromPackage = EntityIndex.find("example.b.", classLoader);
+
+        // then
+        assertThat(all).hasSize(3);
+        assertThat(fromPackage).hasSize(1);
+        assertThat(fromPackage[0].getName()).isEqualTo("example.b.Base");
+    }
+
+    @Test
+    public void shouldReturnNullIfThereIsNoIndex() throws Exception {
+        // given
+        ClassLoader classLoader = new URLClassLoader(new URL[]{folder.newFolder("empty").toURI().toURL()}, null);
+
+        // when
+        Class[] classes = EntityIndex.find("", classLoader);
+
+        // then
+        assertThat(classes).isNull();
+    }
+
+    private File sources() throws IOException {
+        File sources = folder.newFolder("src");
+        write(sources, "javax/persistence/Entity.java", "package javax.persistence; public @interface Entity {}");
+        write(sources, "javax/persistence/Embeddable.java", "package javax.persistence; public @interface Embeddable {}");
+        write(sources, "javax/persistence/MappedSuperclass.java",
+                "package javax.persistence; public @interface MappedSuperclass {}");
+        write(sources, "example/a/First.java", "package example.a; @javax.persistence.Entity public class First {}");
+        write(sources, "example/a/Part.java", "package example.a; @javax.persistence.Embeddable public class Part {}");
+        write(sources, "example/b/Base.java",
+                "package example.b; @javax.persistence.MappedSuperclass public class Base {}");
+        write(sources, "example/b/NotAnEntity.java", "package example.b; public class NotAnEntity {}");
+        return sources;
+    }
+
+    private File compile(File sources, String... files) throws IOException {
+        return compile(sources, folder.newFolder("classes"), files);
+    }
+
+    private File compile(File sources, File classes, String... files) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, null,
+                Arrays.asList("-d", classes.getPath(), "-sourcepath", sources.getPath(), "-classpath", classes.getPath()),
+                null,
+                compiler.getStandardFileManager(null, null, null).getJavaFileObjects(files(sources, files)));
+        task.setProcessors(Arrays.asList(new EntityIndexProcessor()));
+        assertThat(task.call()).isTrue();
+        return classes;
+    }
+
+    private static File[] files(File dir, String... names) {
+        File[] files = new File[names.length];
+        for (int i = 0; i < names.length; i++) {
+            files[i] = new File(dir, names[i]);
+        }
+        return files;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> index(File classes) throws IOException {
+        return FileUtils.readLines(new File(classes, EntityIndexProcessor.INDEX), "UTF-8");
+    }
+
+    private static void write(File dir, String name, String contents) throws IOException {
+        FileUtils.writeStringToFile(new File(dir, name), contents, "UTF-8");
+    }
+}
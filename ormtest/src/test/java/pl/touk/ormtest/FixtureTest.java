@@ -0,0 +1,48 @@
+package pl.touk.ormtest;
+
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FixtureTest {
+
+    @Test
+    public void shouldBeEqualToFixtureWithSameScriptContents() {
+        // given
+        Fixture fixture = new Fixture(new ByteArrayResource("DELETE FROM A;".getBytes()));
+
+        // when
+        Fixture other = new Fixture(new ByteArrayResource("DELETE FROM A;".getBytes()));
+
+        // then
+        assertThat(other).isEqualTo(fixture);
+        assertThat(other.getFingerprint()).isEqualTo(fixture.getFingerprint());
+    }
+
+    @Test
+    public void shouldDifferFromFixtureWithDifferentScriptContents() {
+        // given
+        Fixture fixture = new Fixture(new ByteArrayResource("DELETE FROM A;".getBytes()));
+
+        // when
+        Fixture other = new Fixture(new ByteArrayResource("DELETE FROM B;".getBytes()));
+
+        // then
+        assertThat(other).isNotEqualTo(fixture);
+    }
+
+    @Test
+    public void shouldDependOnOrderOfScripts() {
+        // given
+        ByteArrayResource a = new ByteArrayResource("DELETE FROM A;".getBytes());
+        ByteArrayResource b = new ByteArrayResource("DELETE FROM B;".getBytes());
+
+        // when
+        Fixture fixture = new Fixture(a, b);
+        Fixture other = new Fixture(b, a);
+
+        // then
+        assertThat(other).isNotEqualTo(fixture);
+    }
+}
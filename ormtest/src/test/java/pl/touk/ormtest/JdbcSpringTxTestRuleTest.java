@@ -0,0 +1,86 @@
+package pl.touk.ormtest;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JdbcSpringTxTestRuleTest {
+
+    private final JdbcSpringTxTestRule eagerRule = new JdbcSpringTxTestRule();
+    private final JdbcSpringTxTestRule lazyRule = new JdbcSpringTxTestRule() {
+        @Override
+        protected boolean lazyTransactionStart() {
+            return true;
+        }
+    };
+
+    @After
+    public void after() {
+        ThreadContextRegistry.remove(Collections.singleton(Thread.currentThread()));
+    }
+
+    @Test
+    public void shouldRebuildContextForRuleWithAnotherConfigurationInTheSameThread() throws Throwable {
+        // given
+        DataSource eager = runTest(eagerRule);
+
+        // when
+        DataSource lazy = runTest(lazyRule);
+        DataSource eagerAgain = runTest(eagerRule);
+
+        // then
+        assertThat(eager).isNotInstanceOf(LazyConnectionDataSourceProxy.class);
+        assertThat(lazy).isInstanceOf(LazyConnectionDataSourceProxy.class);
+        assertThat(eagerAgain).isNotInstanceOf(LazyConnectionDataSourceProxy.class);
+    }
+
+    @Test
+    public void shouldKeepContextForRuleWithTheSameConfiguration() throws Throwable {
+        // given
+        DataSource first = runTest(eagerRule);
+
+        // when
+        DataSource second = runTest(new JdbcSpringTxTestRule());
+
+        // then
+        assertThat(second).isSameAs(first);
+    }
+
+    @Test
+    public void shouldNotPoolContextsOfRulesOverridingDataSource() {
+        // given
+        JdbcSpringTxTestRule customDataSourceRule = new JdbcSpringTxTestRule() {
+            @Override
+            protected DataSource dataSource() {
+                return super.dataSource();
+            }
+        };
+
+        // then
+        assertThat(eagerRule.useWarmPool()).isTrue();
+        assertThat(lazyRule.useWarmPool()).isTrue();
+        assertThat(customDataSourceRule.useWarmPool()).isFalse();
+    }
+
+    /**
+     * Runs a test with the given rule in the current thread and returns the data source of its template.
+     */
+    private DataSource runTest(final JdbcSpringTxTestRule rule) throws Throwable {
+        final AtomicReference<DataSource> dataSource = new AtomicReference<DataSource>();
+        rule.apply(new Statement() {
+            @Override
+            public void evaluate() {
+                dataSource.set(rule.getJdbcTemplate().getDataSource());
+            }
+        }, Description.createTestDescription(getClass(), "test")).evaluate();
+        return dataSource.get();
+    }
+}
@@ -0,0 +1,77 @@
+package pl.touk.ormtest;
+
+import org.hibernate.collection.PersistentCollection;
+import org.hibernate.event.InitializeCollectionEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LazyFetchRecorderTest {
+
+    private final LazyFetchRecorder recorder = new LazyFetchRecorder();
+
+    @After
+    public void after() {
+        LazyFetchRecorder.stop();
+    }
+
+    @Test
+    public void shouldRecordCollectionInitializationsWithCallSite() {
+        // given
+        LazyFetchRecorder.start();
+
+        // when
+        recorder.onInitializeCollection(event("Order.items", 1));
+
+        // then
+        List<LazyFetch> fetches = LazyFetchRecorder.getFetches();
+        assertThat(fetches).hasSize(1);
+        assertThat(fetches.get(0).getRole()).isEqualTo("Order.items");
+        assertThat(fetches.get(0).getOwner()).endsWith("#1");
+        assertThat(fetches.get(0).getCallSite().getClassName()).isEqualTo(getClass().getName());
+    }
+
+    @Test
+    public void shouldNotRecordIfThreadDoesNotRecord() {
+        // when
+        recorder.onInitializeCollection(event("Order.items", 1));
+
+        // then
+        assertThat(LazyFetchRecorder.getFetches()).isEmpty();
+    }
+
+    @Test
+    public void shouldDescribeRolesFetchedMoreTimesThanThreshold() {
+        // given
+        StackTraceElement callSite = new StackTraceElement("Dao", "find", "Dao.java", 10);
+        List<LazyFetch> fetches = Arrays.asList(
+                new LazyFetch("Order.items", "Order#1", callSite),
+                new LazyFetch("Order.items", "Order#2", callSite),
+                new LazyFetch("Order.items", "Order#3", callSite),
+                new LazyFetch("Order.customer", "Order#1", callSite));
+
+        // when
+        String description = LazyFetchRecorder.describeRepeatedFetches(fetches, 2);
+
+        // then
+        assertThat(description).contains("Order.items fetched lazily 3 times").contains("Dao.java:10")
+                .doesNotContain("Order.customer");
+        assertThat(LazyFetchRecorder.describeRepeatedFetches(fetches, 3)).isNull();
+    }
+
+    private static InitializeCollectionEvent event(String role, int key) {
+        PersistentCollection collection = mock(PersistentCollection.class);
+        when(collection.getRole()).thenReturn(role);
+        when(collection.getKey()).thenReturn(key);
+        when(collection.getOwner()).thenReturn(new Object());
+        InitializeCollectionEvent event = mock(InitializeCollectionEvent.class);
+        when(event.getCollection()).thenReturn(collection);
+        return event;
+    }
+}
@@ -0,0 +1,152 @@
+package pl.touk.ormtest;
+
+import org.apache.commons.io.FileUtils;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.event.def.DefaultSaveOrUpdateEventListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MappingCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldComputeSameKeyRegardlessOfClassOrder() {
+        // when
+        String key = MappingCache.key(new Class[]{Fixture.class, WarmPool.class}, properties("create-drop"));
+        String other = MappingCache.key(new Class[]{WarmPool.class, Fixture.class}, properties("create-drop"));
+
+        // then
+        assertThat(other).isEqualTo(key);
+    }
+
+    @Test
+    public void shouldComputeDifferentKeysForDifferentClassesOrProperties() {
+        // when
+        String key = MappingCache.key(new Class[]{Fixture.class}, properties("create-drop"));
+        String otherClasses = MappingCache.key(new Class[]{WarmPool.class}, properties("create-drop"));
+        String otherProperties = MappingCache.key(new Class[]{Fixture.class}, properties("validate"));
+
+        // then
+        assertThat(otherClasses).isNotEqualTo(key);
+        assertThat(otherProperties).isNotEqualTo(key);
+    }
+
+    @Test
+    public void shouldReadWrittenObject() throws Exception {
+        // given
+        File file = new File(folder.getRoot(), "mapping.ser");
+        MappingCache.write(file, new ArrayList<String>(Arrays.asList("a", "b")));
+
+        // when
+        Object read = MappingCache.read(file, getClass().getClassLoader());
+
+        // then
+        assertThat(read).isEqualTo(Arrays.asList("a", "b"));
+        assertThat(folder.getRoot().list()).containsOnly("mapping.ser");
+    }
+
+    @Test
+    public void shouldDeleteUnreadableFile() throws Exception {
+        // given
+        File file = folder.newFile("mapping.ser");
+        FileUtils.writeStringToFile(file, "not a serialized object");
+
+        // when
+        Object read = MappingCache.read(file, getClass().getClassLoader());
+
+        // then
+        assertThat(read).isNull();
+        assertThat(file).doesNotExist();
+    }
+
+    @Test
+    public void shouldReturnNullIfThereIsNoFile() {
+        // expect
+        assertThat(MappingCache.read(new File(folder.getRoot(), "missing.ser"), getClass().getClassLoader())).isNull();
+    }
+
+    @Test
+    public void shouldBuildSessionFactoryFromRestoredAnnotationConfiguration() throws Exception {
+        // given
+        File file = new File(folder.getRoot(), "mapping.ser");
+        MappingCachingSessionFactoryBean first = sessionFactoryBean(file);
+        first.destroy();
+
+        // when
+        MappingCachingSessionFactoryBean second = sessionFactoryBean(file);
+
+        // then
+        assertThat(first.isRestored()).isFalse();
+        assertThat(second.isRestored()).isTrue();
+        assertThat(second.getConfiguration()).isInstanceOf(AnnotationConfiguration.class);
+        assertThat(second.getConfiguration().getEventListeners().getSaveOrUpdateEventListeners()).hasSize(2);
+        Session session = ((SessionFactory) second.getObject()).openSession();
+        try {
+            session.save(new CachedEntity(1L));
+            session.flush();
+            assertThat(session.createQuery("from CachedEntity").list()).hasSize(1);
+        } finally {
+            session.close();
+            second.destroy();
+        }
+    }
+
+    private static MappingCachingSessionFactoryBean sessionFactoryBean(File file) throws Exception {
+        MappingCachingSessionFactoryBean bean = new MappingCachingSessionFactoryBean(
+                file, MappingCacheTest.class.getClassLoader());
+        bean.setDataSource(new DriverManagerDataSource(
+                "org.h2.Driver", "jdbc:h2:mem:mappingCacheTest;DB_CLOSE_DELAY=-1", "sa", ""));
+        Properties properties = properties("create-drop");
+        properties.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        bean.setHibernateProperties(properties);
+        bean.setAnnotatedClasses(new Class[]{CachedEntity.class});
+        Map<String, Object> eventListeners = new HashMap<String, Object>();
+        // The guard isn't serializable, so it must not be cached:
+        eventListeners.put("save-update",
+                Arrays.asList(new DefaultSaveOrUpdateEventListener(), new PersistenceContextGuard()));
+        bean.setEventListeners(eventListeners);
+        bean.afterPropertiesSet();
+        return bean;
+    }
+
+    private static Properties properties(String hbm2ddl) {
+        Properties properties = new Properties();
+        properties.setProperty("hibernate.hbm2ddl.auto", hbm2ddl);
+        return properties;
+    }
+
+    @Entity
+    public static class CachedEntity {
+
+        @Id
+        private Long id;
+
+        public CachedEntity() {
+        }
+
+        public CachedEntity(Long id) {
+            this.id = id;
+        }
+
+        public Long getId() {
+            return id;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package pl.touk.ormtest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.Result;
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParallelSuiteTest {
+
+    private static final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+    // Every parallel test waits until both parallel tests have started:
+    private static volatile CountDownLatch started;
+
+    public static class ParallelTest {
+        @Test
+        public void first() throws Exception {
+            awaitOtherTest();
+        }
+
+        @Test
+        public void second() throws Exception {
+            awaitOtherTest();
+        }
+
+        private void awaitOtherTest() throws InterruptedException {
+            threads.add(Thread.currentThread().getName());
+            started.countDown();
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+
+    @RunSerially
+    public static class SerialTest {
+        @Test
+        public void test() {
+        }
+    }
+
+    public static class MysqlTest {
+        @Rule
+        public MysqlIbatisSpringTxTestRule txContext = null;
+
+        @Test
+        public void test() {
+        }
+    }
+
+    @RunWith(Suite.class)
+    @Suite.SuiteClasses(MysqlTest.class)
+    public static class SuiteWithMysqlTest {
+    }
+
+    @RunWith(ParallelSuite.class)
+    @Suite.SuiteClasses({ParallelTest.class, SerialTest.class})
+    public static class ExampleSuite {
+    }
+
+    @Test
+    public void shouldRunTestMethodsInParallel() {
+        // given
+        System.setProperty(ParallelSuite.THREADS_PROPERTY, "2");
+        started = new CountDownLatch(2);
+        threads.clear();
+
+        // when
+        Result result;
+        try {
+            result = new JUnitCore().run(ExampleSuite.class);
+        } finally {
+            System.clearProperty(ParallelSuite.THREADS_PROPERTY);
+        }
+
+        // then
+        assertThat(result.getFailures()).isEmpty();
+        assertThat(result.getRunCount()).isEqualTo(3);
+        assertThat(threads).hasSize(2);
+    }
+
+    @Test
+    public void shouldSplitGroupLongerThanItsShareOfTheRun() {
+        // when
+        List<List<String>> parts = ParallelSuite.split(Arrays.asList("a", "b", "c", "d", "e"),
+                new long[]{40, 30, 20, 10, 70}, 50);
+
+        // then
+        assertThat(parts).hasSize(4);
+        assertThat(parts.get(0)).containsExactly("a");
+        assertThat(parts.get(1)).containsExactly("b", "c");
+        assertThat(parts.get(2)).containsExactly("d");
+        assertThat(parts.get(3)).containsExactly("e");
+    }
+
+    @Test
+    public void shouldNotSplitGroupWithinItsShareOfTheRun() {
+        // when
+        List<List<String>> parts = ParallelSuite.split(Arrays.asList("a", "b"), new long[]{1, 1}, 2);
+
+        // then
+        assertThat(parts).hasSize(1);
+        assertThat(parts.get(0)).containsExactly("a", "b");
+    }
+
+    @Test
+    public void shouldDetectSerialClasses() {
+        assertThat(ParallelSuite.isSerial(Request.aClass(SerialTest.class).getRunner().getDescription())).isTrue();
+        assertThat(ParallelSuite.isSerial(Request.aClass(MysqlTest.class).getRunner().getDescription())).isTrue();
+        assertThat(ParallelSuite.isSerial(Request.aClass(SuiteWithMysqlTest.class).getRunner().getDescription())).isTrue();
+        assertThat(ParallelSuite.isSerial(Request.aClass(ParallelTest.class).getRunner().getDescription())).isFalse();
+    }
+}
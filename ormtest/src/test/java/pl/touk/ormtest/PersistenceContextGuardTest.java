@@ -0,0 +1,105 @@
+package pl.touk.ormtest;
+
+import org.hibernate.FlushMode;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.PersistEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PersistenceContextGuardTest {
+
+    private final PersistenceContextGuard guard = new PersistenceContextGuard();
+    private final EventSource session = mock(EventSource.class);
+    private final PersistenceContext persistenceContext = mock(PersistenceContext.class);
+    private final Map<Object, Object> entityEntries = new HashMap<Object, Object>();
+
+    @Before
+    public void before() {
+        when(session.getPersistenceContext()).thenReturn(persistenceContext);
+        when(session.getFlushMode()).thenReturn(FlushMode.AUTO);
+        when(persistenceContext.getEntityEntries()).thenReturn(entityEntries);
+        when(persistenceContext.isLoadFinished()).thenReturn(true);
+    }
+
+    @After
+    public void after() {
+        PersistenceContextGuard.stop();
+    }
+
+    @Test
+    public void shouldFlushAndClearSessionReachingLimit() {
+        // given
+        PersistenceContextGuard.start(2);
+        manage(2);
+
+        // when
+        guard.onPersist(new PersistEvent(new Object(), session));
+
+        // then
+        verify(session).flush();
+        verify(session).clear();
+        PersistenceContextStatistics statistics = PersistenceContextGuard.getStatistics();
+        assertThat(statistics.getAutomaticClearCount()).isEqualTo(1);
+        assertThat(statistics.getPeakManagedEntities()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotClearSessionDuringCascade() {
+        // given
+        PersistenceContextGuard.start(2);
+        manage(3);
+        when(persistenceContext.getCascadeLevel()).thenReturn(1);
+
+        // when
+        guard.onPersist(new PersistEvent(new Object(), session));
+
+        // then
+        verify(session, never()).clear();
+        assertThat(PersistenceContextGuard.getStatistics().getPeakManagedEntities()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldNotClearSessionWithManualFlushMode() {
+        // given
+        PersistenceContextGuard.start(2);
+        manage(2);
+        when(session.getFlushMode()).thenReturn(FlushMode.MANUAL);
+
+        // when
+        guard.onPersist(new PersistEvent(new Object(), session));
+
+        // then
+        verify(session, never()).flush();
+        verify(session, never()).clear();
+    }
+
+    @Test
+    public void shouldDoNothingIfThreadDoesNotGuard() {
+        // given
+        manage(10);
+
+        // when
+        guard.onPersist(new PersistEvent(new Object(), session));
+
+        // then
+        verify(session, never()).clear();
+        assertThat(PersistenceContextGuard.getStatistics()).isNull();
+    }
+
+    private void manage(int entities) {
+        for (int i = 0; i < entities; i++) {
+            entityEntries.put(new Object(), new Object());
+        }
+    }
+}
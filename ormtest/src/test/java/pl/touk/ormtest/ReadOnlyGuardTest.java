@@ -0,0 +1,87 @@
+package pl.touk.ormtest;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class ReadOnlyGuardTest {
+
+    @After
+    public void after() {
+        ReadOnlyGuard.deactivate();
+    }
+
+    @Test
+    public void shouldRecognizeWrites() {
+        assertThat(ReadOnlyGuard.isWrite("insert into A values (1)")).isTrue();
+        assertThat(ReadOnlyGuard.isWrite("  /* comment */ UPDATE A set x = 1")).isTrue();
+        assertThat(ReadOnlyGuard.isWrite("-- comment\ndelete from A")).isTrue();
+        assertThat(ReadOnlyGuard.isWrite("select * from A")).isFalse();
+        assertThat(ReadOnlyGuard.isWrite("SET LOCK_MODE ?")).isFalse();
+    }
+
+    @Test
+    public void shouldRefuseWritesInReadOnlyMode() throws SQLException {
+        // given
+        DataSource dataSource = ReadOnlyGuard.guard(dataSource());
+        Connection writableConnection = dataSource.getConnection();
+        writableConnection.createStatement().execute("create table A (x int)");
+        ReadOnlyGuard.activate();
+        Connection connection = dataSource.getConnection();
+        try {
+            // when
+            try {
+                connection.prepareStatement("insert into A values (1)");
+                fail("write should be refused");
+            } catch (SQLException e) {
+                // then
+                assertThat(e.getMessage()).contains("read-only");
+            }
+            assertThat(connection.createStatement().executeQuery("select count(*) from A").next()).isTrue();
+        } finally {
+            connection.close();
+            writableConnection.close();
+        }
+    }
+
+    @Test
+    public void shouldNotWrapConnectionsObtainedOutsideReadOnlyMode() throws SQLException {
+        // given
+        DataSource dataSource = ReadOnlyGuard.guard(dataSource());
+
+        // when
+        Connection connection = dataSource.getConnection();
+
+        // then
+        try {
+            assertThat(Proxy.isProxyClass(connection.getClass())).isFalse();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void shouldUnguardGuardedDataSource() {
+        // given
+        DataSource dataSource = dataSource();
+
+        // when
+        DataSource guarded = ReadOnlyGuard.guard(dataSource);
+
+        // then
+        assertThat(ReadOnlyGuard.unguard(guarded)).isSameAs(dataSource);
+        assertThat(ReadOnlyGuard.unguard(dataSource)).isSameAs(dataSource);
+    }
+
+    private static DataSource dataSource() {
+        return new DriverManagerDataSource("org.h2.Driver", "jdbc:h2:mem:readonlyguard", "sa", "");
+    }
+}
@@ -0,0 +1,83 @@
+package pl.touk.ormtest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ReusableConnectionDataSourceTest {
+
+    private DataSource target;
+    private Connection physicalConnection;
+    private ReusableConnectionDataSource dataSource;
+
+    @Before
+    public void before() throws Exception {
+        target = mock(DataSource.class);
+        physicalConnection = mock(Connection.class);
+        when(target.getConnection()).thenReturn(physicalConnection);
+        when(physicalConnection.getAutoCommit()).thenReturn(false);
+        dataSource = new ReusableConnectionDataSource(target);
+    }
+
+    @Test
+    public void shouldOpenOnePhysicalConnectionForManyBorrows() throws Exception {
+        // when
+        dataSource.getConnection().close();
+        dataSource.getConnection().close();
+        dataSource.getConnection().close();
+
+        // then
+        verify(target, times(1)).getConnection();
+        verify(physicalConnection, never()).close();
+        assertThat(dataSource.getPhysicalConnections()).isEqualTo(1);
+        assertThat(dataSource.getLogicalConnections()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldRollBackUncommittedWorkWhenConnectionIsClosed() throws Exception {
+        // given
+        Connection connection = dataSource.getConnection();
+
+        // when
+        connection.close();
+
+        // then
+        verify(physicalConnection).rollback();
+        assertThat(connection.isClosed()).isTrue();
+    }
+
+    @Test
+    public void shouldOpenAdditionalConnectionIfKeptAliveOneIsInUse() throws Exception {
+        // given
+        Connection first = dataSource.getConnection();
+
+        // when
+        Connection second = dataSource.getConnection();
+
+        // then
+        assertThat(second).isSameAs(physicalConnection);
+        assertThat(first).isNotSameAs(physicalConnection);
+        assertThat(dataSource.getPhysicalConnections()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldClosePhysicalConnectionWhenDataSourceIsClosed() throws Exception {
+        // given
+        dataSource.getConnection().close();
+
+        // when
+        dataSource.close();
+
+        // then
+        verify(physicalConnection).close();
+    }
+}
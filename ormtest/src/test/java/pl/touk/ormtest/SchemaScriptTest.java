@@ -0,0 +1,62 @@
+package pl.touk.ormtest;
+
+import org.hibernate.cfg.Configuration;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SchemaScriptTest {
+
+    @After
+    public void after() {
+        SchemaScript.clear();
+    }
+
+    @Test
+    public void shouldGenerateScriptOnlyOnceForMappingAndDialect() {
+        // given
+        Dialect dialect = new H2Dialect();
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.generateDropSchemaScript(dialect)).thenReturn(new String[]{"drop table A"});
+        when(configuration.generateSchemaCreationScript(dialect)).thenReturn(new String[]{"create table A (id int)"});
+        SchemaScript script = SchemaScript.get("mapping", configuration, dialect);
+
+        // when
+        SchemaScript other = SchemaScript.get("mapping", configuration, dialect);
+
+        // then
+        assertThat(other).isSameAs(script);
+        assertThat(SchemaScript.size()).isEqualTo(1);
+        verify(configuration, times(1)).generateSchemaCreationScript(dialect);
+        assertThat(script.getCreateStatements()).containsExactly("create table A (id int)");
+    }
+
+    @Test
+    public void shouldIgnoreFailingDropStatementsAndRecreateSchema() {
+        // given
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:schemaScriptTest;DB_CLOSE_DELAY=-1", "sa", "");
+        dataSource.setDriverClassName("org.h2.Driver");
+        SchemaScript script = new SchemaScript(
+                new String[]{"alter table SCRIPTENTITIES drop constraint FK1", "drop table SCRIPTENTITIES"},
+                new String[]{"create table SCRIPTENTITIES (id integer primary key)"});
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+
+        // when
+        script.apply(dataSource);
+        jdbcTemplate.update("insert into SCRIPTENTITIES values (1)");
+        script.apply(dataSource);
+
+        // then
+        assertThat(jdbcTemplate.queryForInt("select count(*) from SCRIPTENTITIES")).isEqualTo(0);
+    }
+}
@@ -0,0 +1,61 @@
+package pl.touk.ormtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SchemaValidationTest {
+
+    private Connection connection;
+
+    @Before
+    public void before() throws Exception {
+        Class.forName("org.h2.Driver");
+        connection = DriverManager.getConnection("jdbc:h2:mem:schemaValidationTest", "sa", "");
+        connection.createStatement().execute("create table VALIDATEDENTITIES (id integer primary key, name varchar(10))");
+    }
+
+    @After
+    public void after() throws Exception {
+        connection.close();
+    }
+
+    @Test
+    public void shouldComputeSameFingerprintForUnchangedSchema() throws Exception {
+        // when
+        String fingerprint = SchemaValidation.schemaFingerprint(connection);
+        String other = SchemaValidation.schemaFingerprint(connection);
+
+        // then
+        assertThat(other).isEqualTo(fingerprint);
+    }
+
+    @Test
+    public void shouldComputeDifferentFingerprintAfterColumnChange() throws Exception {
+        // given
+        String fingerprint = SchemaValidation.schemaFingerprint(connection);
+
+        // when
+        connection.createStatement().execute("alter table VALIDATEDENTITIES alter column name varchar(20)");
+
+        // then
+        assertThat(SchemaValidation.schemaFingerprint(connection)).isNotEqualTo(fingerprint);
+    }
+
+    @Test
+    public void shouldNotChangeFingerprintWhenDataChanges() throws Exception {
+        // given
+        String fingerprint = SchemaValidation.schemaFingerprint(connection);
+
+        // when
+        connection.createStatement().execute("insert into VALIDATEDENTITIES values (1, 'first')");
+
+        // then
+        assertThat(SchemaValidation.schemaFingerprint(connection)).isEqualTo(fingerprint);
+    }
+}
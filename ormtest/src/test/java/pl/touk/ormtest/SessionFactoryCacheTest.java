@@ -0,0 +1,69 @@
+package pl.touk.ormtest;
+
+import org.hibernate.SessionFactory;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class SessionFactoryCacheTest {
+
+    private final SessionFactoryCache cache = new SessionFactoryCache();
+
+    @Test
+    public void shouldCloseLeastRecentlyUsedFactory() {
+        // given
+        SessionFactory first = mock(SessionFactory.class);
+        SessionFactory second = mock(SessionFactory.class);
+        cache.put("first", new CachedSessionFactory(first, null));
+        cache.put("second", new CachedSessionFactory(second, null));
+        cache.get("first");
+
+        // when
+        cache.makeRoomForOneMore(2);
+
+        // then
+        verify(second).close();
+        verify(first, never()).close();
+        assertThat(cache.get("second")).isNull();
+        assertThat(cache.get("first").getSessionFactory()).isSameAs(first);
+    }
+
+    @Test
+    public void shouldNotCloseAnythingIfThereIsRoom() {
+        // given
+        SessionFactory first = mock(SessionFactory.class);
+        cache.put("first", new CachedSessionFactory(first, null));
+
+        // when
+        cache.makeRoomForOneMore(2);
+
+        // then
+        verify(first, never()).close();
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCloseAllFactoriesWhenCleared() {
+        // given
+        SessionFactory first = mock(SessionFactory.class);
+        SessionFactory second = mock(SessionFactory.class);
+        cache.put("first", new CachedSessionFactory(first, null));
+        cache.put("second", new CachedSessionFactory(second, null));
+
+        // when
+        cache.clear();
+
+        // then
+        verify(first).close();
+        verify(second).close();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void shouldNotRecreateSchemaOfFactoryWithUnknownBean() {
+        assertThat(new CachedSessionFactory(mock(SessionFactory.class), null).createsSchema()).isFalse();
+    }
+}
@@ -0,0 +1,132 @@
+package pl.touk.ormtest;
+
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class SessionFactoryLifecycleTest {
+
+    @After
+    public void after() {
+        SessionFactoryLifecycle.releaseAll();
+        SessionFactoryLifecycle.closeAll();
+        SessionFactoryLifecycle.setMaxSessionFactories(0);
+    }
+
+    @Test
+    public void shouldCloseFactoriesOfEndedThreads() throws Exception {
+        // given
+        final SessionFactory sessionFactory = mock(SessionFactory.class);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                SessionFactoryLifecycle.register("other", new CachedSessionFactory(sessionFactory, null));
+            }
+        };
+        thread.start();
+        thread.join();
+
+        // when
+        SessionFactoryLifecycle.makeRoomForOneMore(4);
+
+        // then
+        verify(sessionFactory).close();
+        assertThat(SessionFactoryLifecycle.getLiveSessionFactories()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldCloseLeastRecentlyUsedIdleFactoriesWhenLimitIsReached() {
+        // given
+        SessionFactoryLifecycle.setMaxSessionFactories(2);
+        SessionFactory first = mock(SessionFactory.class);
+        SessionFactory second = mock(SessionFactory.class);
+        SessionFactoryLifecycle.register("first", new CachedSessionFactory(first, null));
+        SessionFactoryLifecycle.register("second", new CachedSessionFactory(second, null));
+        SessionFactoryLifecycle.releaseAll();
+        SessionFactoryLifecycle.acquire("first");
+        SessionFactoryLifecycle.releaseAll();
+
+        // when
+        SessionFactoryLifecycle.makeRoomForOneMore(4);
+
+        // then
+        verify(second).close();
+        verify(first, never()).close();
+        assertThat(SessionFactoryLifecycle.acquire("second")).isNull();
+        assertThat(SessionFactoryLifecycle.acquire("first").getSessionFactory()).isSameAs(first);
+    }
+
+    @Test
+    public void shouldOnlyRequestLiveThreadsToCloseTheirIdleFactories() throws Exception {
+        // given
+        SessionFactoryLifecycle.setMaxSessionFactories(1);
+        final SessionFactory sessionFactory = mock(SessionFactory.class);
+        ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        try {
+            otherThread.submit(new Runnable() {
+                public void run() {
+                    SessionFactoryLifecycle.register("other", new CachedSessionFactory(sessionFactory, null));
+                    SessionFactoryLifecycle.releaseAll();
+                }
+            }).get();
+
+            // when
+            SessionFactoryLifecycle.makeRoomForOneMore(4);
+
+            // then
+            verify(sessionFactory, never()).close();
+            CachedSessionFactory acquired = otherThread.submit(new Callable<CachedSessionFactory>() {
+                public CachedSessionFactory call() {
+                    CachedSessionFactory factory = SessionFactoryLifecycle.acquire("other");
+                    SessionFactoryLifecycle.makeRoomForOneMore(4);
+                    return factory;
+                }
+            }).get();
+            assertThat(acquired).isNull();
+            verify(sessionFactory).close();
+            assertThat(SessionFactoryLifecycle.getLiveSessionFactories()).isEqualTo(0);
+        } finally {
+            otherThread.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldNotCloseFactoriesInUse() {
+        // given
+        SessionFactoryLifecycle.setMaxSessionFactories(1);
+        SessionFactory sessionFactory = mock(SessionFactory.class);
+        SessionFactoryLifecycle.register("first", new CachedSessionFactory(sessionFactory, null));
+
+        // when
+        SessionFactoryLifecycle.makeRoomForOneMore(4);
+
+        // then
+        verify(sessionFactory, never()).close();
+        assertThat(SessionFactoryLifecycle.getLiveSessionFactories()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReportLiveFactories() {
+        // given
+        CachedSessionFactory factory = new CachedSessionFactory(mock(SessionFactory.class), null);
+        factory.setUrl("jdbc:h2:mem:report");
+        factory.setRetainedHeap(4096);
+        SessionFactoryLifecycle.register("fingerprint", factory);
+
+        // when
+        String report = SessionFactoryLifecycle.report();
+
+        // then
+        assertThat(report).contains("fingerprint").contains("jdbc:h2:mem:report").contains("in use")
+                .contains("~4 KB").contains("1 live session factories");
+    }
+}
@@ -0,0 +1,45 @@
+package pl.touk.ormtest;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TemplateDatabasesTest {
+
+    private final Fixture fixture = new Fixture(new ByteArrayResource((
+            "CREATE TABLE TEMPLATEENTITIES (id INTEGER IDENTITY, name VARCHAR);" +
+            "INSERT INTO TEMPLATEENTITIES (name) VALUES ('first');").getBytes()));
+
+    @After
+    public void after() {
+        TemplateDatabases.clear();
+    }
+
+    @Test
+    public void shouldBuildTemplateDatabaseOnlyOnce() {
+        // given
+        DatabaseSnapshot snapshot = TemplateDatabases.getSnapshot(fixture, "");
+
+        // when
+        DatabaseSnapshot other = TemplateDatabases.getSnapshot(fixture, "");
+
+        // then
+        assertThat(other).isSameAs(snapshot);
+        assertThat(TemplateDatabases.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSnapshotSchemaAndData() {
+        // when
+        DatabaseSnapshot snapshot = TemplateDatabases.getSnapshot(fixture, "");
+
+        // then
+        StringBuilder script = new StringBuilder();
+        for (String statement : snapshot.getStatements()) {
+            script.append(statement).append('\n');
+        }
+        assertThat(script.toString()).contains("TEMPLATEENTITIES").contains("'first'");
+    }
+}
@@ -0,0 +1,65 @@
+package pl.touk.ormtest;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestDurationsTest {
+
+    private File cacheDir;
+
+    @Before
+    public void before() {
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "ormtest-durations-" + System.nanoTime());
+        System.setProperty(CacheDirectory.PROPERTY, cacheDir.getPath());
+    }
+
+    @After
+    public void after() {
+        System.clearProperty(CacheDirectory.PROPERTY);
+        FileUtils.deleteQuietly(cacheDir);
+    }
+
+    @Test
+    public void shouldReturnMinusOneForUnknownDuration() {
+        // when
+        TestDurations durations = TestDurations.load();
+
+        // then
+        assertThat(durations.getDuration("pl.touk.UnknownTest")).isEqualTo(-1);
+    }
+
+    @Test
+    public void shouldReadDurationsSavedByPreviousRun() {
+        // given
+        TestDurations durations = TestDurations.load();
+        durations.recordDuration("pl.touk.SomeTest", 1200);
+        durations.recordDuration("pl.touk.SomeTest#someMethod", 300);
+
+        // when
+        durations.save();
+
+        // then
+        TestDurations loaded = TestDurations.load();
+        assertThat(loaded.getDuration("pl.touk.SomeTest")).isEqualTo(1200);
+        assertThat(loaded.getDuration("pl.touk.SomeTest#someMethod")).isEqualTo(300);
+    }
+
+    @Test
+    public void shouldSaveReportedConfigurations() {
+        // given
+        TestDurations.reportConfiguration("pl.touk.ConfiguredTest", "sqlmap-config.xml");
+
+        // when
+        TestDurations.load().save();
+
+        // then
+        assertThat(TestDurations.isConfigurationReported("pl.touk.ConfiguredTest")).isTrue();
+        assertThat(TestDurations.load().getConfiguration("pl.touk.ConfiguredTest")).isEqualTo("sqlmap-config.xml");
+    }
+}
@@ -0,0 +1,151 @@
+package pl.touk.ormtest;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadContextRegistryTest {
+
+    private final int originalMaxSize = ThreadContextRegistry.getMaxSize();
+
+    @After
+    public void after() {
+        ThreadContextRegistry.setMaxSize(originalMaxSize);
+    }
+
+    @Test
+    public void shouldReturnTheSameContextForTheSameThread() throws Exception {
+        // when
+        ThreadContext first = ThreadContextRegistry.current();
+        ThreadContext second = ThreadContextRegistry.current();
+
+        // then
+        assertThat(first).isSameAs(second);
+    }
+
+    @Test
+    public void shouldDropContextOfDeadThreadWhenNewContextIsCreated() throws Exception {
+        // given
+        Thread deadThread = runInNewThread(new Runnable() {
+            public void run() {
+                ThreadContextRegistry.current();
+            }
+        });
+        assertThat(ThreadContextRegistry.peek(deadThread)).isNotNull();
+
+        // when
+        runInNewThread(new Runnable() {
+            public void run() {
+                ThreadContextRegistry.current();
+            }
+        });
+
+        // then
+        assertThat(ThreadContextRegistry.peek(deadThread)).isNull();
+    }
+
+    @Test
+    public void shouldExceedMaxSizeUntilStaleContextIsReplacedByItsThread() throws Exception {
+        // given
+        ThreadContextRegistry.setMaxSize(1);
+        final AtomicReference<Long> sizeSeenByOtherThread = new AtomicReference<Long>();
+        ThreadContextRegistry.current();
+
+        // when
+        runInNewThread(new Runnable() {
+            public void run() {
+                ThreadContextRegistry.current();
+                sizeSeenByOtherThread.set(ThreadContextRegistry.size());
+            }
+        });
+
+        // then
+        assertThat(sizeSeenByOtherThread.get()).isEqualTo(2L);
+        assertThat(ThreadContextRegistry.peek(Thread.currentThread()).isStale()).isTrue();
+        ThreadContextRegistry.current();
+        assertThat(ThreadContextRegistry.size()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldOnlyMarkContextOfOtherLiveThreadStaleWhenMaxSizeIsReached() throws Exception {
+        // given
+        ThreadContextRegistry.setMaxSize(1);
+        final AtomicBoolean closed = new AtomicBoolean();
+        ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        try {
+            final ThreadContext otherContext = otherThread.submit(new Callable<ThreadContext>() {
+                public ThreadContext call() {
+                    ThreadContext context = ThreadContextRegistry.current();
+                    context.putResource(Closeable.class, new Closeable() {
+                        public void close() {
+                            closed.set(true);
+                        }
+                    });
+                    return context;
+                }
+            }).get();
+
+            // when
+            ThreadContextRegistry.current();
+
+            // then
+            assertThat(otherContext.isStale()).isTrue();
+            assertThat(closed.get()).isFalse();
+            ThreadContext replaced = otherThread.submit(new Callable<ThreadContext>() {
+                public ThreadContext call() {
+                    return ThreadContextRegistry.current();
+                }
+            }).get();
+            assertThat(replaced).isNotSameAs(otherContext);
+            assertThat(closed.get()).isTrue();
+        } finally {
+            otherThread.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldNotEvictContextInTransaction() throws Exception {
+        // given
+        ThreadContextRegistry.setMaxSize(1);
+        ThreadContext context = ThreadContextRegistry.current();
+        context.setTxStatus(new SimpleTransactionStatus());
+
+        // when
+        runInNewThread(new Runnable() {
+            public void run() {
+                ThreadContextRegistry.current();
+            }
+        });
+
+        // then
+        assertThat(ThreadContextRegistry.peek(Thread.currentThread())).isSameAs(context);
+        context.setTxStatus(null);
+    }
+
+    @Test
+    public void shouldRegisterThreadsPerTestClass() throws Exception {
+        // when
+        ThreadContextRegistry.registerCurrentThread(ThreadContextRegistryTest.class);
+
+        // then
+        Set<Thread> threads = ThreadContextRegistry.getThreads(ThreadContextRegistryTest.class);
+        assertThat(threads).contains(Thread.currentThread());
+    }
+
+    private Thread runInNewThread(Runnable runnable) throws InterruptedException {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+        return thread;
+    }
+}
@@ -0,0 +1,71 @@
+package pl.touk.ormtest;
+
+import org.hibernate.cache.Cache;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadIsolatedCacheProviderTest {
+
+    private final Cache cache = new ThreadIsolatedCacheProvider().buildCache("region", new Properties());
+
+    @After
+    public void after() {
+        cache.destroy();
+    }
+
+    @Test
+    public void shouldNotShareEntriesBetweenThreads() throws Exception {
+        // given
+        cache.put("key", "value");
+        final AtomicReference<Object> readByOtherThread = new AtomicReference<Object>("not read");
+
+        // when
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                readByOtherThread.set(cache.get("key"));
+            }
+        };
+        thread.start();
+        thread.join();
+
+        // then
+        assertThat(readByOtherThread.get()).isNull();
+        assertThat(cache.get("key")).isEqualTo("value");
+    }
+
+    @Test
+    public void shouldCountHitsMissesAndPutsOfCurrentThread() {
+        // given
+        cache.put("key", "value");
+
+        // when
+        cache.get("key");
+        cache.get("key");
+        cache.get("other");
+
+        // then
+        CacheRegionStatistics statistics = ThreadIsolatedCacheProvider.getStatisticsOfCurrentThread().get("region");
+        assertThat(statistics.getHitCount()).isEqualTo(2);
+        assertThat(statistics.getMissCount()).isEqualTo(1);
+        assertThat(statistics.getPutCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldClearEntriesAndCountersOfCurrentThread() {
+        // given
+        cache.put("key", "value");
+
+        // when
+        ThreadIsolatedCacheProvider.clearCurrentThread();
+
+        // then
+        assertThat(ThreadIsolatedCacheProvider.getStatisticsOfCurrentThread()).isEmpty();
+        assertThat(cache.get("key")).isNull();
+    }
+}
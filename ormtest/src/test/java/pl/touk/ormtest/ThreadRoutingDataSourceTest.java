@@ -0,0 +1,109 @@
+package pl.touk.ormtest;
+
+import com.google.common.base.Supplier;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class ThreadRoutingDataSourceTest {
+
+    private final ThreadRoutingDataSource dataSource = new ThreadRoutingDataSource(new Supplier<DataSource>() {
+        public DataSource get() {
+            return mock(DataSource.class);
+        }
+    });
+
+    @Test
+    public void shouldRouteTheSameThreadToTheSameDataSource() {
+        // when
+        DataSource first = dataSource.getTarget();
+        DataSource second = dataSource.getTarget();
+
+        // then
+        assertThat(second).isSameAs(first);
+    }
+
+    @Test
+    public void shouldRouteDifferentThreadsToDifferentDataSources() throws Exception {
+        // given
+        final AtomicReference<DataSource> otherThreadTarget = new AtomicReference<DataSource>();
+        Thread thread = new Thread() {
+            public void run() {
+                otherThreadTarget.set(dataSource.getTarget());
+            }
+        };
+
+        // when
+        thread.start();
+        thread.join();
+
+        // then
+        assertThat(otherThreadTarget.get()).isNotNull().isNotSameAs(dataSource.getTarget());
+    }
+
+    @Test
+    public void shouldAskSupplierAgainAfterRelease() {
+        // given
+        DataSource first = dataSource.getTarget();
+
+        // when
+        dataSource.release();
+
+        // then
+        assertThat(dataSource.getTarget()).isNotSameAs(first);
+    }
+
+    @Test
+    public void shouldCloseDataSourceOfDeadThreadWhenAnotherThreadObtainsItsOwn() throws Exception {
+        // given
+        final ReusableConnectionDataSource deadThreadTarget = mock(ReusableConnectionDataSource.class);
+        final ThreadRoutingDataSource closeableTargets = new ThreadRoutingDataSource(new Supplier<DataSource>() {
+            public DataSource get() {
+                return Thread.currentThread().getName().equals("dead") ? deadThreadTarget : mock(DataSource.class);
+            }
+        });
+        Thread thread = new Thread("dead") {
+            public void run() {
+                closeableTargets.getTarget();
+            }
+        };
+        thread.start();
+        thread.join();
+
+        // when
+        closeableTargets.getTarget();
+
+        // then
+        verify(deadThreadTarget).close();
+        assertThat(closeableTargets.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCloseDataSourcesOfAllThreads() throws Exception {
+        // given
+        final ReusableConnectionDataSource target = mock(ReusableConnectionDataSource.class);
+        final ThreadRoutingDataSource closeableTargets = new ThreadRoutingDataSource(new Supplier<DataSource>() {
+            public DataSource get() {
+                return target;
+            }
+        });
+        Thread thread = new Thread() {
+            public void run() {
+                closeableTargets.getTarget();
+            }
+        };
+        thread.start();
+        thread.join();
+
+        // when
+        closeableTargets.close();
+
+        // then
+        verify(target).close();
+    }
+}
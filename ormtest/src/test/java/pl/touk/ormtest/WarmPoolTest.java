@@ -0,0 +1,160 @@
+package pl.touk.ormtest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WarmPoolTest {
+
+    private final AtomicInteger built = new AtomicInteger();
+    private final Callable<String> builder = new Callable<String>() {
+        public String call() {
+            return "object" + built.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void before() {
+        WarmPool.setSize(2);
+        WarmPool.resetStatistics();
+    }
+
+    @After
+    public void after() {
+        WarmPool.drain();
+        WarmPool.setSize(0);
+        WarmPool.resetStatistics();
+    }
+
+    @Test
+    public void shouldHandOutObjectBuiltInBackground() throws Exception {
+        // given
+        String key = "shouldHandOutObjectBuiltInBackground";
+        WarmPool.fill(key, builder);
+
+        // when
+        String pooled = takeWithin(key, 5000);
+
+        // then
+        assertThat(pooled).startsWith("object");
+        assertThat(WarmPool.getHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReplaceObjectTakenFromPool() throws Exception {
+        // given
+        String key = "shouldReplaceObjectTakenFromPool";
+        WarmPool.fill(key, builder);
+        takeWithin(key, 5000);
+
+        // when
+        WarmPool.fill(key, builder);
+        takeWithin(key, 5000);
+        WarmPool.fill(key, builder);
+        takeWithin(key, 5000);
+
+        // then
+        assertThat(built.get()).isGreaterThanOrEqualTo(3);
+    }
+
+    @Test
+    public void shouldCountMissIfPoolIsEmpty() {
+        // when
+        String pooled = WarmPool.take("shouldCountMissIfPoolIsEmpty", String.class);
+
+        // then
+        assertThat(pooled).isNull();
+        assertThat(WarmPool.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldDoNothingIfDisabled() {
+        // given
+        WarmPool.setSize(0);
+
+        // when
+        WarmPool.fill("shouldDoNothingIfDisabled", builder);
+
+        // then
+        assertThat(WarmPool.take("shouldDoNothingIfDisabled", String.class)).isNull();
+        assertThat(WarmPool.getMisses()).isZero();
+        assertThat(built.get()).isZero();
+    }
+
+    @Test
+    public void shouldTryAgainAfterBackingOffIfBuildingFailed() throws Exception {
+        // given
+        String key = "shouldTryAgainAfterBackingOffIfBuildingFailed";
+        final AtomicInteger attempts = new AtomicInteger();
+        Callable<String> failingOnce = new Callable<String>() {
+            public String call() {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new IllegalStateException("first attempt fails");
+                }
+                return "object";
+            }
+        };
+        WarmPool.setSize(1);
+        WarmPool.fill(key, failingOnce);
+        while (attempts.get() == 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+
+        // when
+        WarmPool.fill(key, failingOnce);
+        String duringBackoff = WarmPool.take(key, String.class);
+        Thread.sleep(1100);
+        WarmPool.fill(key, failingOnce);
+
+        // then
+        assertThat(duringBackoff).isNull();
+        assertThat(takeWithin(key, 5000)).isEqualTo("object");
+    }
+
+    @Test
+    public void shouldCloseObjectsNotHandedToAnyThreadWhenDrained() throws Exception {
+        // given
+        String key = "shouldCloseObjectsNotHandedToAnyThreadWhenDrained";
+        final AtomicBoolean closed = new AtomicBoolean();
+        WarmPool.setSize(1);
+        WarmPool.fill(key, new Callable<ThreadContext>() {
+            public ThreadContext call() {
+                ThreadContext context = new ThreadContext("shouldCloseObjectsNotHandedToAnyThreadWhenDrained");
+                context.putResource(Closeable.class, new Closeable() {
+                    public void close() {
+                        closed.set(true);
+                    }
+                });
+                return context;
+            }
+        });
+
+        // when
+        WarmPool.drain();
+
+        // then
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!closed.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(closed.get()).isTrue();
+        assertThat(WarmPool.take(key, ThreadContext.class)).isNull();
+    }
+
+    private String takeWithin(String key, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        String pooled;
+        while ((pooled = WarmPool.take(key, String.class)) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return pooled;
+    }
+}
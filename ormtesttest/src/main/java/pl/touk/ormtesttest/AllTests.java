@@ -3,16 +3,24 @@ package pl.touk.ormtesttest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
+import pl.touk.ormtest.ParallelSuite;
 import pl.touk.ormtesttest.resetmethodtestforsuiterunner.FirstSuite;
 import pl.touk.ormtesttest.resetmethodtestforsuiterunner.SecondSuite;
 
-@RunWith(Suite.class)
+@RunWith(ParallelSuite.class)
 @Suite.SuiteClasses({
         FirstSuite.class,
         SecondSuite.class,
         HibernateSpringTxTestRuleTest.class,
+        StatisticsHibernateSpringTxTestRuleTest.class,
+        BatchingHibernateSpringTxTestRuleTest.class,
+        PersistenceContextLimitHibernateSpringTxTestRuleTest.class,
+        ReadOnlyHibernateSpringTxTestRuleTest.class,
         IbatisSpringTxTestRuleTest.class,
         JdbcSpringTxTestRuleTest.class,
+        FixtureJdbcSpringTxTestRuleTest.class,
+        ReadOnlyJdbcSpringTxTestRuleTest.class,
+        LazyJdbcSpringTxTestRuleTest.class,
         MysqlIbatisSpringTxTestRuleTest.class
 })
 public class AllTests {
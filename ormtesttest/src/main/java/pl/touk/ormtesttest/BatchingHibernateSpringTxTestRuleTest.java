@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtesttest;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import pl.touk.ormtest.BatchStatistics;
+import pl.touk.ormtest.HibernateSpringTxTestRule;
+
+/**
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public class BatchingHibernateSpringTxTestRuleTest {
+
+    @Rule
+    public HibernateSpringTxTestRule txContext = new HibernateSpringTxTestRuleWithExampleEntity() {
+        @Override
+        protected int jdbcBatchSize() {
+            return 10;
+        }
+    };
+
+    @Test
+    public void shouldBatchInserts() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            txContext.getHibernateTemplate().persist(new ExampleEntity(i, "name" + i));
+        }
+
+        txContext.flush();
+
+        BatchStatistics statistics = txContext.getBatchStatistics();
+        Assert.assertEquals(5, statistics.getBatchedStatementCount());
+        statistics.assertAllStatementsBatched().assertLargestBatchAtLeast(5);
+    }
+
+    @Test
+    public void shouldStartEveryTestWithoutRecordedStatements() throws Exception {
+        Assert.assertEquals(0, txContext.getBatchStatistics().getBatchCount());
+        Assert.assertTrue(txContext.getBatchStatistics().getIndividualStatements().isEmpty());
+    }
+}
@@ -5,10 +5,13 @@
 package pl.touk.ormtesttest;
 
 import pl.touk.ormtest.IbatisSpringTxTestRule;
+import pl.touk.ormtest.RunSerially;
 
 /**
  * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
  */
+// Changes the sql map configuration shared by all IbatisSpringTxTestRules:
+@RunSerially
 public class CustomSqlMapConfigIbatisSpringTxTestRuleTest extends IbatisSpringTxTestRuleTest {
     @Override
     protected IbatisSpringTxTestRule createIbatisSpringTxTestRule() {
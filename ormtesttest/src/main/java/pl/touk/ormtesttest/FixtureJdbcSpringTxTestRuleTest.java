@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtesttest;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import pl.touk.ormtest.JdbcSpringTxTestRule;
+
+/**
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public class FixtureJdbcSpringTxTestRuleTest {
+
+    @Rule
+    public JdbcSpringTxTestRule txContext = new JdbcSpringTxTestRule();
+
+    @Before
+    public void before() {
+        txContext.loadFixture("fixture.sql");
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        JdbcSpringTxTestRule.resetThreadsForCurrentTestClass();
+    }
+
+    @Test
+    public void shouldLoadFixture() {
+        Assert.assertEquals(2, countEntities());
+    }
+
+    @Test
+    public void shouldNotExecuteFixtureAgainIfDatabaseIsClean() {
+        txContext.getJdbcTemplate().execute("INSERT INTO FIXTUREENTITIES (name) VALUES ('third')");
+
+        txContext.loadFixture("fixture.sql");
+
+        // The fixture script deletes all rows so the new row would be gone if the script was executed:
+        Assert.assertEquals(3, countEntities());
+    }
+
+    @Test
+    public void shouldRestoreFixtureAfterCommit() {
+        txContext.getJdbcTemplate().execute("DELETE FROM FIXTUREENTITIES");
+        txContext.commitTransactionAndBeginNewOne();
+        Assert.assertEquals(0, countEntities());
+
+        txContext.loadFixture("fixture.sql");
+
+        Assert.assertEquals(2, countEntities());
+    }
+
+    @Test
+    public void shouldRemoveRowsOfPreviousFixtureWhenLoadingDifferentOne() {
+        txContext.loadFixture("other-fixture.sql");
+
+        // The other fixture doesn't delete anything, so rows of the previous fixture would be counted too:
+        Assert.assertEquals(1, countEntities());
+        Assert.assertEquals("other", txContext.getJdbcTemplate().queryForObject(
+                "SELECT name FROM FIXTUREENTITIES", String.class));
+    }
+
+    private int countEntities() {
+        return txContext.getJdbcTemplate().queryForInt("SELECT COUNT(*) FROM FIXTUREENTITIES");
+    }
+}
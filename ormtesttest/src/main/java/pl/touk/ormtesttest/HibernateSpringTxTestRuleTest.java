@@ -9,7 +9,15 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.hibernate.ScrollableResults;
 import pl.touk.ormtest.HibernateSpringTxTestRule;
+import pl.touk.ormtest.ScrollCallback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -67,4 +75,84 @@ public class HibernateSpringTxTestRuleTest {
         Assert.assertEquals(Integer.valueOf(1), exampleEntity.getId());
         Assert.assertEquals("name", exampleEntity.getName());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldRollBackToSavepoint() throws Exception {
+        txContext.getHibernateTemplate().persist(new ExampleEntity(1, "name"));
+        String savepoint = txContext.setSavepoint();
+        txContext.getHibernateTemplate().persist(new ExampleEntity(4, "nameAfterSavepoint"));
+        txContext.flush();
+
+        txContext.rollbackToSavepoint(savepoint);
+
+        Assert.assertNotNull(txContext.getHibernateTemplate().get(ExampleEntity.class, 1));
+        Assert.assertNull(txContext.getHibernateTemplate().get(ExampleEntity.class, 4));
+    }
+
+    @Test
+    public void shouldBulkInsertEntitiesInCurrentTransaction() throws Exception {
+        txContext.bulkInsert(Arrays.asList(new ExampleEntity(10, "bulk10"), new ExampleEntity(11, "bulk11")));
+
+        ExampleEntity exampleEntity = (ExampleEntity) txContext.getHibernateTemplate().get(ExampleEntity.class, 11);
+        Assert.assertNotNull(exampleEntity);
+        Assert.assertEquals("bulk11", exampleEntity.getName());
+        // The entity persisted in before() has been flushed before bulk insert:
+        Assert.assertEquals(3, txContext.getHibernateTemplate().find("from ExampleEntity").size());
+    }
+
+    @Test
+    public void shouldBuildBulkInsertedFixtureOnlyOnce() throws Exception {
+        final AtomicInteger builds = new AtomicInteger();
+        Callable<List<ExampleEntity>> builder = new Callable<List<ExampleEntity>>() {
+            public List<ExampleEntity> call() {
+                builds.incrementAndGet();
+                return Arrays.asList(new ExampleEntity(20, "fixture20"));
+            }
+        };
+
+        txContext.bulkInsert("twenty", builder);
+        txContext.rollback();
+        txContext.beginTransaction();
+        txContext.bulkInsert("twenty", builder);
+
+        Assert.assertEquals(1, builds.get());
+        Assert.assertNotNull(txContext.getHibernateTemplate().get(ExampleEntity.class, 20));
+    }
+
+    @Test
+    public void shouldScrollEntitiesClearingSessionPeriodically() throws Exception {
+        for (int i = 30; i < 40; i++) {
+            txContext.getHibernateTemplate().persist(new ExampleEntity(i, "scrolled" + i));
+        }
+        final List<String> names = new ArrayList<String>();
+
+        int count = txContext.getStreamingTemplate().scroll("from ExampleEntity where id >= ? order by id",
+                new Object[]{30}, 4, 3, new ScrollCallback() {
+            public void processRow(Object row) {
+                names.add(((ExampleEntity) row).getName());
+            }
+        });
+
+        Assert.assertEquals(10, count);
+        Assert.assertEquals("scrolled30", names.get(0));
+        Assert.assertEquals("scrolled39", names.get(9));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotProvideBatchStatisticsIfBatchesAreNotRecorded() throws Exception {
+        txContext.getBatchStatistics();
+    }
+
+    @Test
+    public void shouldScrollProjectionsInCurrentTransaction() throws Exception {
+        ScrollableResults results = txContext.getStreamingTemplate().scroll(
+                "select e.id, e.name from ExampleEntity e where e.id = ?", new Object[]{2}, 0);
+        try {
+            Assert.assertTrue(results.next());
+            Assert.assertEquals("nameInBefore", results.get(1));
+            Assert.assertFalse(results.next());
+        } finally {
+            results.close();
+        }
+    }
+}
@@ -108,4 +108,21 @@ public class JdbcSpringTxTestRuleTest {
         Assert.assertEquals(firstExampleEntity.getId(), exampleEntity.getId());
         Assert.assertEquals(firstExampleEntity.getName(), exampleEntity.getName());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldRollBackToSavepoint() throws Exception {
+        String savepoint = txContext.setSavepoint();
+        txContext.getJdbcTemplate().execute("INSERT INTO EXAMPLEENTITIES (name) VALUES ('nameAfterSavepoint')");
+        Assert.assertEquals(2, txContext.getJdbcTemplate().query("SELECT * FROM EXAMPLEENTITIES", rowMapper).size());
+
+        txContext.rollbackToSavepoint(savepoint);
+
+        List list = txContext.getJdbcTemplate().query("SELECT * FROM EXAMPLEENTITIES", rowMapper);
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(firstExampleEntity.getName(), ((ExampleEntity) list.get(0)).getName());
+
+        txContext.getJdbcTemplate().execute("INSERT INTO EXAMPLEENTITIES (name) VALUES ('nameAfterSavepoint')");
+        txContext.releaseSavepoint(savepoint);
+        Assert.assertEquals(2, txContext.getJdbcTemplate().query("SELECT * FROM EXAMPLEENTITIES", rowMapper).size());
+    }
+}
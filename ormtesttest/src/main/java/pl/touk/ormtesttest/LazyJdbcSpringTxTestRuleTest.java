@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtesttest;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import pl.touk.ormtest.JdbcSpringTxTestRule;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public class LazyJdbcSpringTxTestRuleTest {
+
+    private static final AtomicInteger physicalConnections = new AtomicInteger();
+
+    private boolean expectNoPhysicalConnections;
+
+    private final JdbcSpringTxTestRule txContext = new JdbcSpringTxTestRule() {
+        @Override
+        protected boolean lazyTransactionStart() {
+            return true;
+        }
+
+        @Override
+        protected DataSource dataSource() {
+            return new DelegatingDataSource(super.dataSource()) {
+                @Override
+                public Connection getConnection() throws SQLException {
+                    physicalConnections.incrementAndGet();
+                    return super.getConnection();
+                }
+            };
+        }
+    };
+
+    // Wraps the rule so that connections fetched to begin and roll back transactions are counted too:
+    @Rule
+    public TestRule connectionCounter = new TestRule() {
+        public Statement apply(Statement base, Description description) {
+            final Statement transactional = txContext.apply(base, description);
+            return new Statement() {
+                public void evaluate() throws Throwable {
+                    int before = physicalConnections.get();
+                    transactional.evaluate();
+                    if (expectNoPhysicalConnections) {
+                        Assert.assertEquals(0, physicalConnections.get() - before);
+                    }
+                }
+            };
+        }
+    };
+
+    @AfterClass
+    public static void afterClass() {
+        JdbcSpringTxTestRule.resetThreadsForCurrentTestClass();
+    }
+
+    @Test
+    public void shouldNotConnectInTestsWhichDontTouchDatabase() {
+        expectNoPhysicalConnections = true;
+        Assert.assertNotNull(txContext.getJdbcTemplate());
+    }
+
+    @Test
+    public void shouldRollBackLazilyStartedTransaction() {
+        txContext.loadFixture("fixture.sql");
+        txContext.getJdbcTemplate().execute("INSERT INTO FIXTUREENTITIES (name) VALUES ('third')");
+        Assert.assertEquals(3, countEntities());
+
+        txContext.rollBackTransactionAndBeginNewOne();
+
+        Assert.assertEquals(2, countEntities());
+    }
+
+    private int countEntities() {
+        return txContext.getJdbcTemplate().queryForInt("SELECT COUNT(*) FROM FIXTUREENTITIES");
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtesttest;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import pl.touk.ormtest.HibernateSpringTxTestRule;
+import pl.touk.ormtest.PersistenceContextStatistics;
+
+/**
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public class PersistenceContextLimitHibernateSpringTxTestRuleTest {
+
+    @Rule
+    public HibernateSpringTxTestRule txContext = new HibernateSpringTxTestRuleWithExampleEntity() {
+        @Override
+        protected int persistenceContextLimit() {
+            return 10;
+        }
+    };
+
+    @Test
+    public void shouldFlushAndClearSessionReachingLimit() throws Exception {
+        for (int i = 1; i <= 25; i++) {
+            txContext.getHibernateTemplate().persist(new ExampleEntity(i, "name" + i));
+        }
+
+        PersistenceContextStatistics statistics = txContext.getPersistenceContextStatistics();
+        Assert.assertEquals(2, statistics.getAutomaticClearCount());
+        Assert.assertEquals(10, statistics.getPeakManagedEntities());
+        Assert.assertEquals(2, statistics.getFlushCount());
+        Assert.assertEquals(25, txContext.getHibernateTemplate().find("from ExampleEntity").size());
+    }
+
+    @Test
+    public void shouldStartEveryTestWithResetStatistics() throws Exception {
+        PersistenceContextStatistics statistics = txContext.getPersistenceContextStatistics();
+        Assert.assertEquals(0, statistics.getPeakManagedEntities());
+        Assert.assertEquals(0, statistics.getFlushCount());
+    }
+}
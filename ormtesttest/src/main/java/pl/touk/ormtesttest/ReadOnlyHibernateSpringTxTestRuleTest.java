@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtesttest;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.orm.hibernate3.HibernateCallback;
+import pl.touk.ormtest.HibernateSpringTxTestRule;
+import pl.touk.ormtest.ReadOnlyTransaction;
+
+import java.util.Arrays;
+
+/**
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+@ReadOnlyTransaction
+public class ReadOnlyHibernateSpringTxTestRuleTest {
+
+    @Rule
+    public HibernateSpringTxTestRule txContext = new HibernateSpringTxTestRuleWithExampleEntity();
+
+    @Before
+    public void before() {
+        txContext.bulkInsert(Arrays.asList(new ExampleEntity(1, "first"), new ExampleEntity(2, "second")));
+    }
+
+    @Test
+    public void shouldReadEntitiesInsertedInReadOnlyTest() throws Exception {
+        Assert.assertEquals(2, txContext.getHibernateTemplate().find("from ExampleEntity").size());
+    }
+
+    @Test
+    public void shouldFailOnWrite() throws Exception {
+        txContext.getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(Session session) {
+                session.persist(new ExampleEntity(3, "third"));
+                return null;
+            }
+        });
+
+        try {
+            txContext.flush();
+            Assert.fail("insert should be refused by the read-only guard");
+        } catch (HibernateException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("@ReadOnlyTransaction"));
+        }
+    }
+
+    @Test
+    public void shouldNotWriteChangesOfLoadedEntities() throws Exception {
+        ExampleEntity exampleEntity = (ExampleEntity) txContext.getHibernateTemplate().get(ExampleEntity.class, 1);
+        exampleEntity.setName("changed");
+
+        txContext.flush();
+
+        exampleEntity = (ExampleEntity) txContext.getHibernateTemplate().get(ExampleEntity.class, 1);
+        Assert.assertEquals("first", exampleEntity.getName());
+    }
+}
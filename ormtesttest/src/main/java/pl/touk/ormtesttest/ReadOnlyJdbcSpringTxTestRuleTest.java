@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtesttest;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.transaction.annotation.Isolation;
+import pl.touk.ormtest.JdbcSpringTxTestRule;
+import pl.touk.ormtest.ReadOnlyTransaction;
+
+/**
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+@ReadOnlyTransaction
+public class ReadOnlyJdbcSpringTxTestRuleTest {
+
+    @Rule
+    public JdbcSpringTxTestRule txContext = new JdbcSpringTxTestRule();
+
+    @Before
+    public void before() {
+        txContext.loadFixture("fixture.sql");
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        JdbcSpringTxTestRule.resetThreadsForCurrentTestClass();
+    }
+
+    @Test
+    public void shouldReadFixtureLoadedInReadOnlyTest() {
+        Assert.assertEquals(2, countEntities());
+    }
+
+    @Test(expected = DataAccessException.class)
+    public void shouldFailOnWrite() {
+        txContext.getJdbcTemplate().execute("INSERT INTO FIXTUREENTITIES (name) VALUES ('third')");
+    }
+
+    @Test
+    @ReadOnlyTransaction(isolation = Isolation.SERIALIZABLE)
+    public void shouldReadWithGivenIsolationLevel() {
+        Assert.assertEquals(2, countEntities());
+    }
+
+    private int countEntities() {
+        return txContext.getJdbcTemplate().queryForInt("SELECT COUNT(*) FROM FIXTUREENTITIES");
+    }
+}
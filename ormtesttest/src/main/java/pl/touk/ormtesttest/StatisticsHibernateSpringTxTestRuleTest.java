@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2012 TouK
+ * All rights reserved
+ */
+package pl.touk.ormtesttest;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import pl.touk.ormtest.HibernateSpringTxTestRule;
+import pl.touk.ormtest.HibernateTestStatistics;
+
+/**
+ * @author <a href="mailto:msk@touk.pl">Michał Sokołowski</a>
+ */
+public class StatisticsHibernateSpringTxTestRuleTest {
+
+    @Rule
+    public HibernateSpringTxTestRule txContext = new HibernateSpringTxTestRuleWithExampleEntity() {
+        @Override
+        protected boolean generateStatistics() {
+            return true;
+        }
+    };
+
+    @Test
+    public void shouldCountQueriesOfCurrentTest() throws Exception {
+        txContext.getHibernateTemplate().persist(new ExampleEntity(1, "name"));
+        txContext.flush();
+
+        txContext.getHibernateTemplate().find("from ExampleEntity");
+
+        HibernateTestStatistics statistics = txContext.getTestStatistics();
+        Assert.assertEquals(1, statistics.getQueryExecutionCount());
+        statistics.assertQueriesAtMost(1).assertCollectionFetchesAtMost(0);
+    }
+
+    @Test
+    public void shouldStartEveryTestWithResetStatistics() throws Exception {
+        Assert.assertEquals(0, txContext.getTestStatistics().getQueryExecutionCount());
+
+        txContext.getHibernateTemplate().find("from ExampleEntity");
+
+        Assert.assertEquals(1, txContext.getTestStatistics().getQueryExecutionCount());
+    }
+
+    @Test(expected = AssertionError.class)
+    public void shouldFailAssertionWhenThereAreTooManyQueries() throws Exception {
+        txContext.getHibernateTemplate().find("from ExampleEntity");
+        txContext.getHibernateTemplate().find("from ExampleEntity");
+
+        txContext.getTestStatistics().assertQueriesAtMost(1);
+    }
+}
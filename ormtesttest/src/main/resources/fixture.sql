@@ -0,0 +1,4 @@
+CREATE TABLE IF NOT EXISTS FIXTUREENTITIES (id INTEGER IDENTITY, name VARCHAR);
+DELETE FROM FIXTUREENTITIES;
+INSERT INTO FIXTUREENTITIES (name) VALUES ('first');
+INSERT INTO FIXTUREENTITIES (name) VALUES ('second');
@@ -0,0 +1,2 @@
+CREATE TABLE IF NOT EXISTS FIXTUREENTITIES (id INTEGER IDENTITY, name VARCHAR);
+INSERT INTO FIXTUREENTITIES (name) VALUES ('other');
@@ -15,9 +15,16 @@ import pl.touk.ormtesttest.resetmethodtestforsuiterunner.SecondSuite;
         FirstSuite.class,
         SecondSuite.class,
         HibernateSpringTxTestRuleTest.class,
+        StatisticsHibernateSpringTxTestRuleTest.class,
+        BatchingHibernateSpringTxTestRuleTest.class,
+        PersistenceContextLimitHibernateSpringTxTestRuleTest.class,
+        ReadOnlyHibernateSpringTxTestRuleTest.class,
         IbatisSpringTxTestRuleTest.class,
         CustomSqlMapConfigIbatisSpringTxTestRuleTest.class,
         JdbcSpringTxTestRuleTest.class,
+        FixtureJdbcSpringTxTestRuleTest.class,
+        ReadOnlyJdbcSpringTxTestRuleTest.class,
+        LazyJdbcSpringTxTestRuleTest.class,
         MysqlIbatisSpringTxTestRuleTest.class
 })
 public class Test {